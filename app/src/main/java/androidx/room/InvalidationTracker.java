@@ -99,6 +99,13 @@ public class InvalidationTracker {
 
     AtomicBoolean mPendingRefresh = new AtomicBoolean(false);
 
+    // Minimum time between two refreshes of the same live data, see RoomTrackingLiveData
+    static volatile long sCoalesceWindow = 0; // milliseconds
+
+    public static void setCoalesceWindow(long window) {
+        sCoalesceWindow = window;
+    }
+
     private volatile boolean mInitialized = false;
 
     @SuppressWarnings("WeakerAccess") /* synthetic access */
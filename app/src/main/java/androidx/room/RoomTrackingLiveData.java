@@ -18,6 +18,9 @@ package androidx.room;
 
 
 import android.annotation.SuppressLint;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
@@ -65,6 +68,12 @@ class RoomTrackingLiveData<T> extends LiveData<T> {
     final AtomicInteger queued = new AtomicInteger(0);
     final AtomicInteger running = new AtomicInteger(0);
 
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Main thread only
+    private long lastInvalidated = 0;
+    private boolean delayed = false;
+
     @SuppressWarnings("WeakerAccess")
     final AtomicBoolean mRegisteredObserver = new AtomicBoolean(false);
 
@@ -128,6 +137,34 @@ class RoomTrackingLiveData<T> extends LiveData<T> {
         }
     };
 
+    // Invalidate immediately after a quiet period
+    // and coalesce a burst of writes into one trailing refresh
+    final Runnable mCoalesceRunnable = new Runnable() {
+        @MainThread
+        @Override
+        public void run() {
+            long window = InvalidationTracker.sCoalesceWindow;
+            long now = SystemClock.elapsedRealtime();
+            if (window <= 0 || (!delayed && now - lastInvalidated >= window)) {
+                lastInvalidated = now;
+                mInvalidationRunnable.run();
+            } else if (!delayed) {
+                delayed = true;
+                handler.postDelayed(mDelayedRunnable, lastInvalidated + window - now);
+            }
+        }
+    };
+
+    final Runnable mDelayedRunnable = new Runnable() {
+        @MainThread
+        @Override
+        public void run() {
+            delayed = false;
+            lastInvalidated = SystemClock.elapsedRealtime();
+            mInvalidationRunnable.run();
+        }
+    };
+
     @SuppressLint("RestrictedApi")
     RoomTrackingLiveData(
             RoomDatabase database,
@@ -142,7 +179,7 @@ class RoomTrackingLiveData<T> extends LiveData<T> {
         mObserver = new InvalidationTracker.Observer(tableNames) {
             @Override
             public void onInvalidated(@NonNull Set<String> tables) {
-                ArchTaskExecutor.getInstance().executeOnMainThread(mInvalidationRunnable);
+                ArchTaskExecutor.getInstance().executeOnMainThread(mCoalesceRunnable);
             }
         };
     }
@@ -1203,7 +1203,7 @@ public class IMAPProtocol extends Protocol {
 	Argument args = new Argument();	
 	writeMailboxName(args, mbox);
 
-	if (rd != null) {
+	if (rd != null && rd != ResyncData.QRESYNC) {
 	    if (rd == ResyncData.CONDSTORE) {
 		if (!hasCapability("CONDSTORE"))
 		    throw new BadCommandException("CONDSTORE not supported");
@@ -1265,7 +1265,7 @@ public class IMAPProtocol extends Protocol {
 	Argument args = new Argument();	
 	writeMailboxName(args, mbox);
 
-	if (rd != null) {
+	if (rd != null && rd != ResyncData.QRESYNC) {
 	    if (rd == ResyncData.CONDSTORE) {
 		if (!hasCapability("CONDSTORE"))
 		    throw new BadCommandException("CONDSTORE not supported");
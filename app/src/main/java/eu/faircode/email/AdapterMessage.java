@@ -178,15 +178,12 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Properties;
 import java.util.SortedMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 
 import javax.mail.Address;
-import javax.mail.Session;
 import javax.mail.internet.InternetAddress;
-import javax.mail.internet.MimeMessage;
 
 import biweekly.Biweekly;
 import biweekly.ICalVersion;
@@ -1555,8 +1552,14 @@ public class AdapterMessage extends RecyclerView.Adapter<AdapterMessage.ViewHold
             tvPreview.setTypeface(
                     StyleHelper.getTypeface(display_font, context),
                     preview_italic ? Typeface.ITALIC : Typeface.NORMAL);
-            tvPreview.setText(message.preview);
-            tvPreview.setVisibility(preview && !TextUtils.isEmpty(message.preview) ? View.VISIBLE : View.GONE);
+            CharSequence snippet = (message.ui_found ? getSnippet(message.id) : null);
+            if (snippet == null) {
+                tvPreview.setText(message.preview);
+                tvPreview.setVisibility(preview && !TextUtils.isEmpty(message.preview) ? View.VISIBLE : View.GONE);
+            } else {
+                tvPreview.setText(snippet);
+                tvPreview.setVisibility(preview ? View.VISIBLE : View.GONE);
+            }
 
             tvNotes.setText(message.notes);
             tvNotes.setTextColor(message.notes_color == null ? textColorSecondary : message.notes_color);
@@ -1926,6 +1929,27 @@ public class AdapterMessage extends RecyclerView.Adapter<AdapterMessage.ViewHold
             }
         }
 
+        private CharSequence getSnippet(long id) {
+            String snippet = BoundaryCallbackMessages.getSnippet(id);
+            if (TextUtils.isEmpty(snippet))
+                return null;
+
+            SpannableStringBuilder ssb = new SpannableStringBuilderEx();
+            int start = -1;
+            for (int i = 0; i < snippet.length(); i++) {
+                char kar = snippet.charAt(i);
+                if (kar == Fts5DbHelper.SNIPPET_START)
+                    start = ssb.length();
+                else if (kar == Fts5DbHelper.SNIPPET_END) {
+                    if (start >= 0 && start < ssb.length())
+                        ssb.setSpan(new StyleSpan(Typeface.BOLD), start, ssb.length(), 0);
+                    start = -1;
+                } else
+                    ssb.append(kar);
+            }
+            return ssb;
+        }
+
         private void bindFlagged(TupleMessageEx message, boolean expanded) {
             boolean pro = ActivityBilling.isPro(context);
             boolean flagged = (message.count - message.unflagged) > 0;
@@ -2942,6 +2966,7 @@ public class AdapterMessage extends RecyclerView.Adapter<AdapterMessage.ViewHold
                             db.beginTransaction();
 
                             db.message().resetMessageContent(message.id);
+                            EntityMessage.getTextFile(context, message.id).delete();
                             EntityOperation.queue(context, message, EntityOperation.BODY);
 
                             db.setTransactionSuccessful();
@@ -2956,78 +2981,19 @@ public class AdapterMessage extends RecyclerView.Adapter<AdapterMessage.ViewHold
                         signed_data = false;
                     args.putBoolean("signed_data", signed_data);
 
-                    Document document = JsoupEx.parse(file);
-                    HtmlHelper.cleanup(document);
-
-                    // Add embedded messages
-                    for (EntityAttachment attachment : attachments)
-                        if (attachment.available && "message/rfc822".equals(attachment.getMimeType()))
-                            try (FileInputStream fis = new FileInputStream(attachment.getFile(context))) {
-                                Properties props = MessageHelper.getSessionProperties(true);
-                                Session isession = Session.getInstance(props, null);
-                                MimeMessage imessage = new MimeMessage(isession, fis);
-                                MessageHelper helper = new MessageHelper(imessage, context);
-                                MessageHelper.MessageParts parts = helper.getMessageParts();
-
-                                EntityMessage embedded = new EntityMessage();
-                                embedded.from = helper.getFrom();
-                                embedded.to = helper.getTo();
-                                embedded.cc = helper.getCc();
-                                embedded.received = helper.getReceivedHeader();
-                                if (embedded.received == null)
-                                    embedded.received = helper.getSent();
-                                embedded.subject = helper.getSubject();
-
-                                String html = parts.getHtml(context, download_plain);
-                                Document d = (html == null ? Document.createShell("") : JsoupEx.parse(html));
-
-                                Element div = document.createElement("div");
-                                div.appendElement("hr");
-
-                                Element h = document.createElement("p");
-                                h.attr("style", "text-align: center;");
-
-                                Element em = document.createElement("em");
-                                em.text(TextUtils.isEmpty(attachment.name)
-                                        ? context.getString(R.string.title_attachment_eml) : attachment.name);
-                                h.appendChild(em);
-
-                                div.appendChild(h);
-
-                                Element p = embedded.getReplyHeader(context, document, false, true);
-                                div.appendChild(p);
-
-                                div.appendChild(d.body().tagName("p"));
-
-                                document.body().appendChild(div);
-                            } catch (Throwable ex) {
-                                Log.e(ex);
-                            }
-
-                    HtmlHelper.removeRelativeLinks(document);
-
-                    // Check for inline encryption
-                    boolean iencrypted = HtmlHelper.contains(document, new String[]{
-                            Helper.PGP_BEGIN_MESSAGE,
-                            Helper.PGP_END_MESSAGE
-                    });
-                    args.putBoolean("inline_encrypted", iencrypted);
-
-                    // Check for images
-                    boolean has_images = false;
-                    for (Element img : document.select("img")) {
-                        if (inline) {
-                            String src = img.attr("src");
-                            if (!src.startsWith("cid:")) {
-                                has_images = true;
-                                break;
-                            }
-                        } else {
-                            has_images = true;
-                            break;
-                        }
+                    // The reformatted view is cached
+                    Document document;
+                    if (show_full) {
+                        document = BodyCache.getDocument(context, file, attachments, download_plain);
+                        args.putBoolean("inline_encrypted", BodyCache.isInlineEncrypted(document));
+                        args.putBoolean("has_images", BodyCache.hasImages(document, inline));
+                    } else {
+                        String highlight = (message.ui_found && found ? searched : null);
+                        BodyCache.Entry rendered = BodyCache.render(context, message, attachments, show_images, highlight);
+                        document = rendered.getDocument();
+                        args.putBoolean("inline_encrypted", rendered.inline_encrypted);
+                        args.putBoolean("has_images", rendered.has_images);
                     }
-                    args.putBoolean("has_images", has_images);
 
                     // Download inline images
                     if (show_images)
@@ -3129,14 +3095,6 @@ public class AdapterMessage extends RecyclerView.Adapter<AdapterMessage.ViewHold
 
                         return document.html();
                     } else {
-                        HtmlHelper.autoLink(document);
-
-                        if (message.ui_found && found && !TextUtils.isEmpty(searched))
-                            HtmlHelper.highlightSearched(context, document, searched);
-
-                        // Cleanup message
-                        document = HtmlHelper.sanitizeView(context, document, show_images);
-
                         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
                             args.putParcelable("actions", getConversationActions(message, document, context));
 
@@ -6721,6 +6679,7 @@ public class AdapterMessage extends RecyclerView.Adapter<AdapterMessage.ViewHold
                                             return null;
 
                                         db.message().resetMessageContent(message.id);
+                                        EntityMessage.getTextFile(context, message.id).delete();
                                         EntityOperation.queue(context, message, EntityOperation.BODY, null, charset);
 
                                         db.setTransactionSuccessful();
@@ -0,0 +1,346 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2023 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.preference.PreferenceManager;
+
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.mail.Address;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+// Sanitized documents of the reformatted message view
+// The spannable text itself cannot be cached, because images are bound to the text view
+
+class BodyCache {
+    private static final int CACHE_VERSION = 1;
+    private static final String CACHE_DIR = "rendered";
+    private static final int CACHE_MAX_MEMORY = 8 * 1024 * 1024; // characters
+    private static final long CACHE_DISK_DURATION = 3 * 24 * 3600 * 1000L; // milliseconds
+
+    // Preferences used by HtmlHelper.sanitizeView
+    private static final String[] OPTIONS = new String[]{
+            "theme", "background_color", "text_color", "text_size", "text_font", "text_align",
+            "text_titles", "display_hidden", "disable_tracking", "parse_classes", "inline_images",
+            "text_separators", "image_placeholders", "download_plain"
+    };
+
+    private static final ExecutorService executor =
+            Helper.getBackgroundExecutor(1, "prefetch");
+
+    private static final LruCache<String, Entry> cache =
+            new LruCache<String, Entry>(CACHE_MAX_MEMORY) {
+                @Override
+                protected int sizeOf(String key, Entry entry) {
+                    return entry.weight;
+                }
+            };
+
+    static class Entry {
+        private Document document;
+        private int weight;
+        boolean has_images;
+        boolean inline_encrypted;
+
+        Document getDocument() {
+            // fromDocument and the conversation actions can change the document
+            return document.clone();
+        }
+    }
+
+    @NonNull
+    static Entry render(Context context, EntityMessage message, List<EntityAttachment> attachments,
+                        boolean show_images, String highlight) throws IOException {
+        File file = message.getFile(context);
+        String key = getKey(context, message, file, attachments, show_images, highlight);
+
+        Entry entry = cache.get(key);
+        if (entry != null) {
+            Log.i("Rendered from memory id=" + message.id);
+            return entry;
+        }
+
+        File cached = new File(Helper.ensureExists(new File(context.getCacheDir(), CACHE_DIR)), key);
+        entry = read(cached);
+        if (entry != null) {
+            Log.i("Rendered from disk id=" + message.id);
+            cache.put(key, entry);
+            return entry;
+        }
+
+        long start = new Date().getTime();
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean inline = prefs.getBoolean("inline_images", false);
+        boolean download_plain = prefs.getBoolean("download_plain", false);
+
+        Document document = getDocument(context, file, attachments, download_plain);
+
+        entry = new Entry();
+        entry.inline_encrypted = isInlineEncrypted(document);
+        entry.has_images = hasImages(document, inline);
+
+        HtmlHelper.autoLink(document);
+
+        if (!TextUtils.isEmpty(highlight))
+            HtmlHelper.highlightSearched(context, document, highlight);
+
+        entry.document = HtmlHelper.sanitizeView(context, document, show_images);
+        entry.document.outputSettings().prettyPrint(false);
+
+        String html = entry.document.html();
+        entry.weight = html.length();
+        cache.put(key, entry);
+        write(cached, entry, html);
+
+        Log.i("Rendered id=" + message.id + " elapsed=" + (new Date().getTime() - start) + " ms");
+
+        return entry;
+    }
+
+    static void prefetch(Context context, long id) {
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DB db = DB.getInstance(context);
+                    EntityMessage message = db.message().getMessage(id);
+                    if (message == null || !message.content || !message.getFile(context).exists())
+                        return;
+
+                    EntityFolder folder = db.folder().getFolder(message.folder);
+                    if (folder == null)
+                        return;
+
+                    // Same as AdapterMessage.evalProperties
+                    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+                    boolean confirm_images = prefs.getBoolean("confirm_images", true);
+                    boolean confirm_html = prefs.getBoolean("confirm_html", true);
+
+                    boolean show_full = (Boolean.TRUE.equals(message.show_full) ||
+                            (!confirm_html && !EntityFolder.JUNK.equals(folder.type)));
+                    boolean show_images = (Boolean.TRUE.equals(message.show_images) ||
+                            (!confirm_images && !EntityFolder.JUNK.equals(folder.type)));
+
+                    if (message.from != null)
+                        for (Address sender : message.from) {
+                            String from = ((InternetAddress) sender).getAddress();
+                            if (TextUtils.isEmpty(from))
+                                continue;
+                            int at = from.indexOf('@');
+                            String domain = (at < 0 ? from : from.substring(at));
+                            if (prefs.getBoolean(from + ".show_full", false) ||
+                                    prefs.getBoolean(domain + ".show_full", false))
+                                show_full = true;
+                            if (prefs.getBoolean(from + ".show_images", false) ||
+                                    prefs.getBoolean(domain + ".show_images", false))
+                                show_images = true;
+                        }
+
+                    // The original message view is not cached
+                    if (show_full && Helper.hasWebView(context))
+                        return;
+
+                    List<EntityAttachment> attachments = db.attachment().getAttachments(message.id);
+                    render(context, message, attachments, show_images, null);
+                } catch (Throwable ex) {
+                    Log.w(ex);
+                }
+            }
+        });
+    }
+
+    static void cleanup(Context context, boolean manual) {
+        if (manual)
+            cache.evictAll();
+
+        long now = new Date().getTime();
+        File[] files = new File(context.getCacheDir(), CACHE_DIR).listFiles();
+        if (files != null)
+            for (File file : files)
+                if (manual || file.lastModified() + CACHE_DISK_DURATION < now) {
+                    Log.i("Deleting " + file);
+                    if (!file.delete())
+                        Log.w("Error deleting " + file);
+                }
+    }
+
+    @NonNull
+    static Document getDocument(Context context, File file, List<EntityAttachment> attachments, boolean download_plain) throws IOException {
+        Document document = JsoupEx.parse(file);
+        HtmlHelper.cleanup(document);
+
+        // Add embedded messages
+        for (EntityAttachment attachment : attachments)
+            if (attachment.available && "message/rfc822".equals(attachment.getMimeType()))
+                try (FileInputStream fis = new FileInputStream(attachment.getFile(context))) {
+                    Properties props = MessageHelper.getSessionProperties(true);
+                    Session isession = Session.getInstance(props, null);
+                    MimeMessage imessage = new MimeMessage(isession, fis);
+                    MessageHelper helper = new MessageHelper(imessage, context);
+                    MessageHelper.MessageParts parts = helper.getMessageParts();
+
+                    EntityMessage embedded = new EntityMessage();
+                    embedded.from = helper.getFrom();
+                    embedded.to = helper.getTo();
+                    embedded.cc = helper.getCc();
+                    embedded.received = helper.getReceivedHeader();
+                    if (embedded.received == null)
+                        embedded.received = helper.getSent();
+                    embedded.subject = helper.getSubject();
+
+                    String html = parts.getHtml(context, download_plain);
+                    Document d = (html == null ? Document.createShell("") : JsoupEx.parse(html));
+
+                    Element div = document.createElement("div");
+                    div.appendElement("hr");
+
+                    Element h = document.createElement("p");
+                    h.attr("style", "text-align: center;");
+
+                    Element em = document.createElement("em");
+                    em.text(TextUtils.isEmpty(attachment.name)
+                            ? context.getString(R.string.title_attachment_eml) : attachment.name);
+                    h.appendChild(em);
+
+                    div.appendChild(h);
+
+                    Element p = embedded.getReplyHeader(context, document, false, true);
+                    div.appendChild(p);
+
+                    div.appendChild(d.body().tagName("p"));
+
+                    document.body().appendChild(div);
+                } catch (Throwable ex) {
+                    Log.e(ex);
+                }
+
+        HtmlHelper.removeRelativeLinks(document);
+
+        return document;
+    }
+
+    static boolean isInlineEncrypted(Document document) {
+        return HtmlHelper.contains(document, new String[]{
+                Helper.PGP_BEGIN_MESSAGE,
+                Helper.PGP_END_MESSAGE
+        });
+    }
+
+    static boolean hasImages(Document document, boolean inline) {
+        for (Element img : document.select("img"))
+            if (!inline || !img.attr("src").startsWith("cid:"))
+                return true;
+        return false;
+    }
+
+    private static String getKey(Context context, EntityMessage message, File file, List<EntityAttachment> attachments,
+                                 boolean show_images, String highlight) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Map<String, ?> all = prefs.getAll();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(CACHE_VERSION)
+                .append(':').append(file.length())
+                .append(':').append(file.lastModified())
+                .append(':').append(show_images)
+                .append(':').append(highlight)
+                .append(':').append(Helper.isDarkTheme(context))
+                .append(':').append(Helper.resolveColor(context, android.R.attr.textColorPrimary));
+        for (String option : OPTIONS)
+            sb.append(':').append(all.get(option));
+        for (EntityAttachment attachment : attachments)
+            if (attachment.available && "message/rfc822".equals(attachment.getMimeType()))
+                sb.append(':').append(attachment.id);
+
+        try {
+            return message.id + "_" + Helper.sha256(sb.toString());
+        } catch (NoSuchAlgorithmException ex) {
+            return message.id + "_" + Math.abs(sb.toString().hashCode());
+        }
+    }
+
+    private static Entry read(File file) {
+        if (!file.exists())
+            return null;
+
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file))))) {
+            Entry entry = new Entry();
+            entry.has_images = is.readBoolean();
+            entry.inline_encrypted = is.readBoolean();
+            String html = new String(Helper.readBytes(is), StandardCharsets.UTF_8);
+            entry.document = JsoupEx.parse(html);
+            entry.document.outputSettings().prettyPrint(false);
+            entry.weight = html.length();
+            file.setLastModified(new Date().getTime());
+            return entry;
+        } catch (IOException ex) {
+            Log.w(ex);
+            file.delete();
+            return null;
+        }
+    }
+
+    private static void write(File file, Entry entry, String html) {
+        File tmp = new File(file.getParentFile(),
+                file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(new FileOutputStream(tmp))))) {
+                os.writeBoolean(entry.has_images);
+                os.writeBoolean(entry.inline_encrypted);
+                os.write(html.getBytes(StandardCharsets.UTF_8));
+            }
+            if (!tmp.renameTo(file))
+                throw new IOException("Rename failed file=" + file);
+        } catch (IOException ex) {
+            Log.w(ex);
+            tmp.delete();
+        }
+    }
+}
@@ -23,6 +23,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.sqlite.SQLiteDatabase;
 import android.text.TextUtils;
+import android.util.LruCache;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -57,12 +58,13 @@ import java.util.Calendar;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Pattern;
 
 import javax.mail.Address;
 import javax.mail.FetchProfile;
@@ -104,6 +106,10 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
     private static ExecutorService executor = Helper.getBackgroundExecutor(1, "boundary");
 
     private static final int SEARCH_LIMIT_DEVICE = 1000;
+    private static final int SEARCH_LIMIT_FTS = 100;
+    private static final int SNIPPET_CACHE_SIZE = 500;
+
+    private static final LruCache<Long, String> snippets = new LruCache<>(SNIPPET_CACHE_SIZE);
 
     interface IBoundaryCallbackMessages {
         void onLoading();
@@ -136,6 +142,7 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
 
         this.intf = intf;
         this.state = new State();
+        snippets.evictAll();
 
         return this.state;
     }
@@ -289,40 +296,94 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
         }
 
         if (criteria.fts && word.size() > 0 && !criteria.in_headers && !criteria.in_html) {
-            if (state.ids == null) {
-                SQLiteDatabase sdb = Fts4DbHelper.getInstance(context);
-                state.ids = Fts4DbHelper.match(sdb, account, folder, exclude, criteria, TextUtils.join(" ", word));
-                EntityLog.log(context, "Boundary FTS" +
-                        " account=" + account +
-                        " folder=" + folder +
-                        " criteria=" + criteria +
-                        " ids=" + state.ids.size());
-            }
+            boolean fts5 = Fts5DbHelper.isEnabled(context);
+
+            // FTS5 restricts the match to the selected columns,
+            // but senders and recipients share the address column
+            // and jsoup selectors can't be expressed as a match
+            boolean verify = (!fts5 ||
+                    criteria.in_senders != criteria.in_recipients ||
+                    criteria.getJsoup() != null);
+            if (verify && state.matcher == null)
+                state.matcher = new TextMatcher(criteria.query, false);
+
+            while (found < pageSize && !state.destroyed) {
+                if (state.ids == null || state.index >= state.ids.size()) {
+                    List<Long> ids;
+                    if (fts5) {
+                        SQLiteDatabase sdb = Fts5DbHelper.getInstance(context);
+                        ids = Fts5DbHelper.match(sdb, account, folder, exclude, criteria,
+                                SEARCH_LIMIT_FTS, state.offset, snippets);
+                    } else {
+                        SQLiteDatabase sdb = Fts4DbHelper.getInstance(context);
+                        ids = Fts4DbHelper.match(sdb, account, folder, exclude, criteria, TextUtils.join(" ", word),
+                                SEARCH_LIMIT_FTS, state.offset);
+                    }
+                    state.offset += ids.size();
+                    state.index = 0;
+
+                    // Apply the other conditions with a single query, keeping the FTS order
+                    state.ids = new ArrayList<>(ids.size());
+                    if (ids.size() > 0) {
+                        List<Long> matching = db.message().getMatchingIds(
+                                ids, exclude,
+                                criteria.with_unseen,
+                                criteria.with_flagged,
+                                criteria.with_hidden,
+                                criteria.with_encrypted,
+                                criteria.with_attachments,
+                                criteria.with_notes,
+                                criteria.with_types == null ? 0 : criteria.with_types.length,
+                                criteria.with_types == null ? new String[]{} : criteria.with_types,
+                                criteria.with_size,
+                                criteria.after,
+                                criteria.before);
+                        Set<Long> set = new HashSet<>(matching);
+                        for (Long id : ids)
+                            if (set.contains(id))
+                                state.ids.add(id);
+                    }
 
-            List<Long> excluded = Helper.fromLongArray(exclude);
+                    EntityLog.log(context, "Boundary FTS" +
+                            " account=" + account +
+                            " folder=" + folder +
+                            " criteria=" + criteria +
+                            " fts5=" + fts5 +
+                            " verify=" + verify +
+                            " offset=" + state.offset +
+                            " ids=" + ids.size() + "/" + state.ids.size());
 
-            try {
-                db.beginTransaction();
+                    if (ids.size() == 0)
+                        break;
+                }
 
-                for (; state.index < state.ids.size() && found < pageSize && !state.destroyed; state.index++) {
-                    long id = state.ids.get(state.index);
-                    EntityMessage message = db.message().getMessage(id);
-                    if (message == null || message.ui_hide)
-                        continue;
+                try {
+                    db.beginTransaction();
 
-                    if (excluded.contains(message.folder))
-                        continue;
+                    for (; state.index < state.ids.size() && found < pageSize && !state.destroyed; state.index++) {
+                        long id = state.ids.get(state.index);
 
-                    if (!matchMessage(context, message, criteria, false))
-                        continue;
+                        if (verify) {
+                            EntityMessage message = db.message().getMessage(id);
+                            if (message == null || message.ui_hide)
+                                continue;
 
-                    found += db.message().setMessageFound(message.id, true);
-                    Log.i("Boundary matched=" + message.id + " found=" + found);
-                }
-                db.setTransactionSuccessful();
+                            if (!matchMessage(context, message, criteria, state.matcher))
+                                continue;
+                        }
 
-            } finally {
-                db.endTransaction();
+                        // Keep the relevance order of FTS5 over pages
+                        if (fts5)
+                            found += db.message().setMessageFound(id, state.rank++);
+                        else
+                            found += db.message().setMessageFound(id, true);
+                        Log.i("Boundary matched=" + id + " found=" + found);
+                    }
+                    db.setTransactionSuccessful();
+
+                } finally {
+                    db.endTransaction();
+                }
             }
 
             return found;
@@ -376,8 +437,11 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
 
                 if (!matched) {
                     EntityMessage message = db.message().getMessage(match.id);
-                    if (message != null && !message.ui_hide)
-                        matched = matchMessage(context, message, criteria, true);
+                    if (message != null && !message.ui_hide) {
+                        if (state.matcher == null)
+                            state.matcher = new TextMatcher(criteria.query, true);
+                        matched = matchMessage(context, message, criteria, state.matcher);
+                    }
                 }
 
                 if (matched) {
@@ -751,7 +815,7 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
         return imessages;
     }
 
-    private static boolean matchMessage(Context context, EntityMessage message, SearchCriteria criteria, boolean partial) {
+    private static boolean matchMessage(Context context, EntityMessage message, SearchCriteria criteria, TextMatcher matcher) {
         if (criteria.with_unseen) {
             if (message.ui_seen)
                 return false;
@@ -803,31 +867,31 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
         }
 
         if (criteria.in_senders) {
-            if (contains(message.from, criteria.query, partial))
+            if (contains(message.from, matcher))
                 return true;
         }
 
         if (criteria.in_recipients) {
-            if (contains(message.to, criteria.query, partial) ||
-                    contains(message.cc, criteria.query, partial) ||
-                    contains(message.bcc, criteria.query, partial))
+            if (contains(message.to, matcher) ||
+                    contains(message.cc, matcher) ||
+                    contains(message.bcc, matcher))
                 return true;
         }
 
         if (criteria.in_subject) {
-            if (contains(message.subject, criteria.query, partial, false))
+            if (matcher.matches(message.subject))
                 return true;
         }
 
         if (criteria.in_keywords) {
             if (message.keywords != null)
                 for (String keyword : message.keywords)
-                    if (contains(keyword, criteria.query, partial, false))
+                    if (matcher.matches(keyword))
                         return true;
         }
 
         if (criteria.in_notes) {
-            if (contains(message.notes, criteria.query, partial, false))
+            if (matcher.matches(message.notes))
                 return true;
         }
 
@@ -846,19 +910,17 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
                         return (d.select(selector).size() > 0);
                     }
 
-                    String html = Helper.readText(file);
                     if (criteria.in_html) {
+                        String html = Helper.readText(file);
                         if (html.contains(criteria.query))
                             return true;
                     }
 
                     if (criteria.in_message) {
                         // This won't match <p>An <b>example</b><p> when searching for "An example"
-                        if (contains(html, criteria.query, partial, true)) {
-                            String text = HtmlHelper.getFullText(html);
-                            if (contains(text, criteria.query, partial, false))
-                                return true;
-                        }
+                        String text = HtmlHelper.getFullText(context, message.id);
+                        if (matcher.matches(text))
+                            return true;
                     }
                 }
             } catch (IOException ex) {
@@ -868,48 +930,15 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
         return false;
     }
 
-    private static boolean contains(Address[] addresses, String query, boolean partial) {
+    private static boolean contains(Address[] addresses, TextMatcher matcher) {
         if (addresses == null)
             return false;
         for (Address address : addresses)
-            if (contains(address.toString(), query, partial, false))
+            if (matcher.matches(address.toString()))
                 return true;
         return false;
     }
 
-    private static boolean contains(String text, String query, boolean partial, boolean html) {
-        if (TextUtils.isEmpty(text))
-            return false;
-
-        text = Fts4DbHelper.breakText(text);
-
-        List<String> word = new ArrayList<>();
-        for (String w : query.trim().split("\\s+"))
-            if (w.length() > 1 && w.startsWith("+")) {
-                if (!text.contains(Fts4DbHelper.preprocessText(w.substring(1))))
-                    return false;
-            } else if (w.length() > 1 && w.startsWith("-")) {
-                if (!html && text.contains(Fts4DbHelper.preprocessText(w.substring(1))))
-                    return false;
-            } else
-                word.addAll(Arrays.asList(Fts4DbHelper.breakText(w).split("\\s+")));
-
-        if (word.size() == 0)
-            return true;
-
-        StringBuilder sb = new StringBuilder();
-        sb.append(partial ? ".*(" : ".*?\\b(");
-        for (int i = 0; i < word.size(); i++) {
-            if (i > 0)
-                sb.append("\\s+");
-            sb.append(Pattern.quote(word.get(i)));
-        }
-        sb.append(partial ? ").*" : ")\\b.*?");
-
-        Pattern pat = Pattern.compile(sb.toString(), Pattern.DOTALL);
-        return pat.matcher(text).matches();
-    }
-
     State getState() {
         return this.state;
     }
@@ -948,14 +977,20 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
             state.reset();
     }
 
+    static String getSnippet(long id) {
+        return snippets.get(id);
+    }
+
     static class State {
         final AtomicInteger queued = new AtomicInteger(0);
         boolean destroyed = false;
         boolean error = false;
         int index = 0;
         int offset = 0;
+        int rank = 0;
         List<Long> ids = null;
         List<TupleMatch> matches = null;
+        TextMatcher matcher = null;
 
         EmailService iservice = null;
         IMAPFolder ifolder = null;
@@ -968,8 +1003,10 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
             error = false;
             index = 0;
             offset = 0;
+            rank = 0;
             ids = null;
             matches = null;
+            matcher = null;
             iservice = null;
             ifolder = null;
             imessages = null;
@@ -59,6 +59,7 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 
 import javax.mail.MessagingException;
@@ -705,6 +706,10 @@ public class ConnectionHelper {
     }
 
     static HttpURLConnection openConnectionUnsafe(Context context, URL url, int ctimeout, int rtimeout) throws IOException {
+        return openConnectionUnsafe(context, url, ctimeout, rtimeout, null);
+    }
+
+    static HttpURLConnection openConnectionUnsafe(Context context, URL url, int ctimeout, int rtimeout, Map<String, String> headers) throws IOException {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         boolean open_safe = prefs.getBoolean("open_safe", false);
 
@@ -731,6 +736,9 @@ public class ConnectionHelper {
             }
 
             ConnectionHelper.setUserAgent(context, urlConnection);
+            if (headers != null)
+                for (String name : headers.keySet())
+                    urlConnection.setRequestProperty(name, headers.get(name));
             urlConnection.connect();
 
             try {
@@ -759,6 +767,9 @@ public class ConnectionHelper {
 
                 if (status == HttpURLConnection.HTTP_NOT_FOUND)
                     throw new FileNotFoundException("Error " + status + ": " + urlConnection.getResponseMessage());
+                // Conditional requests
+                if (status == HttpURLConnection.HTTP_NOT_MODIFIED && headers != null)
+                    return urlConnection;
                 if (status != HttpURLConnection.HTTP_OK)
                     throw new IOException("Error " + status + ": " + urlConnection.getResponseMessage());
 
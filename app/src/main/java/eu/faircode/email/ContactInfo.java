@@ -35,6 +35,7 @@ import android.net.NetworkInfo;
 import android.net.Uri;
 import android.provider.ContactsContract;
 import android.text.TextUtils;
+import android.util.LruCache;
 import android.util.Pair;
 
 import androidx.annotation.NonNull;
@@ -77,6 +78,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.mail.Address;
 import javax.mail.internet.InternetAddress;
@@ -95,19 +97,33 @@ public class ContactInfo {
     private Uri lookupUri;
     private boolean known;
     private long time;
+    private int weight;
 
     static final int FAVICON_READ_BYTES = 50 * 1024;
 
     private static final Object lock = new Object();
     private static ContactInfo anonymous = null;
     private static Map<String, Lookup> emailLookup = new ConcurrentHashMap<>();
-    private static final Map<String, ContactInfo> emailContactInfo = new HashMap<>();
+    private static final Map<String, FutureTask<ContactInfo>> emailPending = new HashMap<>();
+    private static final LruCache<String, Long> domainFailed = new LruCache<>(CACHE_FAILED_SIZE);
+
+    // Weighted by bitmap bytes, since a few large favicons can outweigh hundreds of letter icons
+    private static final LruCache<String, ContactInfo> emailContactInfo =
+            new LruCache<String, ContactInfo>(getCacheSize()) {
+                @Override
+                protected int sizeOf(String key, ContactInfo info) {
+                    return info.weight;
+                }
+            };
 
     private static final int GENERATED_ICON_SIZE = 48; // dp
     private static final int FAVICON_ICON_SIZE = 64; // dp
     private static final int FAVICON_CONNECT_TIMEOUT = 5 * 1000; // milliseconds
     private static final int FAVICON_READ_TIMEOUT = 10 * 1000; // milliseconds
     private static final long CACHE_CONTACT_DURATION = 2 * 60 * 1000L; // milliseconds
+    private static final int CACHE_CONTACT_MAX_SIZE = 16 * 1024 * 1024; // bytes
+    private static final int CACHE_FAILED_SIZE = 500; // domains
+    private static final long CACHE_FAILED_DURATION = 5 * 60 * 1000L; // milliseconds
     private static final long CACHE_FAVICON_DURATION = 2 * 7 * 24 * 60 * 60 * 1000L; // milliseconds
     private static final float MIN_FAVICON_LUMINANCE = 0.2f;
 
@@ -172,6 +188,21 @@ public class ContactInfo {
         return (new Date().getTime() - time > CACHE_CONTACT_DURATION);
     }
 
+    private static int getCacheSize() {
+        return (int) Math.min(Runtime.getRuntime().maxMemory() / 16, CACHE_CONTACT_MAX_SIZE);
+    }
+
+    private static boolean isFailed(String key) {
+        Long failed = domainFailed.get(key);
+        if (failed == null)
+            return false;
+        if (failed + CACHE_FAILED_DURATION < new Date().getTime()) {
+            domainFailed.remove(key);
+            return false;
+        }
+        return true;
+    }
+
     static void cleanup(Context context) {
         long now = new Date().getTime();
 
@@ -194,9 +225,8 @@ public class ContactInfo {
     }
 
     static void clearCache(Context context, boolean files) {
-        synchronized (emailContactInfo) {
-            emailContactInfo.clear();
-        }
+        emailContactInfo.evictAll();
+        domainFailed.evictAll();
 
         if (!files)
             return;
@@ -260,15 +290,58 @@ public class ContactInfo {
             long account, String folderType,
             String selector, InternetAddress address, boolean cacheOnly) {
         String key = MessageHelper.formatAddresses(new Address[]{address});
-        synchronized (emailContactInfo) {
-            ContactInfo info = emailContactInfo.get(key);
-            if (info != null && !info.isExpired())
-                return info;
-        }
+        ContactInfo cached = emailContactInfo.get(key);
+        if (cached != null)
+            if (cached.isExpired())
+                emailContactInfo.remove(key);
+            else
+                return cached;
 
         if (cacheOnly)
             return null;
 
+        // Identical concurrent lookups wait for the first one
+        FutureTask<ContactInfo> task;
+        boolean owner = false;
+        synchronized (emailPending) {
+            task = emailPending.get(key);
+            if (task == null) {
+                task = new FutureTask<>(new Callable<ContactInfo>() {
+                    @Override
+                    public ContactInfo call() {
+                        return load(context, account, folderType, selector, address, key);
+                    }
+                });
+                emailPending.put(key, task);
+                owner = true;
+            }
+        }
+
+        if (owner)
+            try {
+                task.run();
+            } finally {
+                synchronized (emailPending) {
+                    emailPending.remove(key);
+                }
+            }
+
+        try {
+            return task.get();
+        } catch (ExecutionException ex) {
+            Log.e(ex.getCause());
+            return null;
+        } catch (InterruptedException ex) {
+            Log.w(ex);
+            return null;
+        }
+    }
+
+    @NonNull
+    private static ContactInfo load(
+            Context context,
+            long account, String folderType,
+            String selector, InternetAddress address, String key) {
         ContactInfo info = new ContactInfo();
         info.email = address.getAddress();
 
@@ -358,6 +431,9 @@ public class ContactInfo {
 
                 final String domain = d.toLowerCase(Locale.ROOT);
 
+                // Email based avatars can exist for some addresses of a domain only
+                final String fkey = (gravatars || libravatars ? ekey : domain);
+
                 File dir = Helper.ensureExists(new File(context.getFilesDir(), "favicons"));
 
                 try {
@@ -394,7 +470,9 @@ public class ContactInfo {
                                 info.verified = (data.length > 1 && "verified".equals(data[1]));
                             }
                         }
-                    } else {
+                    } else if (isFailed(fkey))
+                        Log.i("Avatar failed recently key=" + fkey);
+                    else {
                         final int scaleToPixels = Helper.dp2pixels(context, FAVICON_ICON_SIZE);
 
                         List<Future<Favicon>> futures = new ArrayList<>();
@@ -518,6 +596,7 @@ public class ContactInfo {
                         Log.i("Avatar to cache=" + output.getName());
                     }
                 } catch (Throwable ex) {
+                    domainFailed.put(fkey, new Date().getTime());
                     if (isRecoverable(ex, context))
                         Log.i(ex);
                     else {
@@ -600,11 +679,11 @@ public class ContactInfo {
                 Log.e(ex);
             }
 
-        synchronized (emailContactInfo) {
-            emailContactInfo.put(key, info);
-        }
-
+        // Weigh once, since the anonymous bitmap can be assigned later
         info.time = new Date().getTime();
+        info.weight = Math.max(1, info.bitmap == null ? 0 : info.bitmap.getByteCount());
+        emailContactInfo.put(key, info);
+
         return info;
     }
 
@@ -1098,9 +1177,7 @@ public class ContactInfo {
     }
 
     static int[] getStats() {
-        synchronized (emailContactInfo) {
-            return new int[]{emailLookup.size(), emailContactInfo.size()};
-        }
+        return new int[]{emailLookup.size(), emailContactInfo.snapshot().size()};
     }
 
     private static class Lookup {
@@ -55,6 +55,7 @@ import androidx.preference.PreferenceManager;
 
 import com.sun.mail.gimap.GmailFolder;
 import com.sun.mail.gimap.GmailMessage;
+import com.sun.mail.gimap.protocol.GmailProtocol;
 import com.sun.mail.iap.BadCommandException;
 import com.sun.mail.iap.CommandFailedException;
 import com.sun.mail.iap.ConnectionException;
@@ -67,6 +68,7 @@ import com.sun.mail.imap.IMAPStore;
 import com.sun.mail.imap.protocol.FLAGS;
 import com.sun.mail.imap.protocol.FetchResponse;
 import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
 import com.sun.mail.imap.protocol.Status;
 import com.sun.mail.imap.protocol.UID;
 import com.sun.mail.imap.protocol.UIDSet;
@@ -99,12 +101,14 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -147,6 +151,8 @@ class Core {
     private static final long SCREEN_ON_DURATION = 3000L; // milliseconds
     private static final int SYNC_BATCH_SIZE = 20;
     private static final int DOWNLOAD_BATCH_SIZE = 20;
+    private static final long PREFETCH_MESSAGE_SIZE = 256 * 1024L; // bytes
+    private static final long PREFETCH_BATCH_SIZE = 2 * 1024 * 1024L; // bytes
     private static final long YIELD_DURATION = 200L; // milliseconds
     private static final long JOIN_WAIT_ALIVE = 5 * 60 * 1000L; // milliseconds
     private static final long JOIN_WAIT_INTERRUPT = 1 * 60 * 1000L; // milliseconds
@@ -193,6 +199,9 @@ class Core {
 
             NotificationManager nm = Helper.getSystemService(context, NotificationManager.class);
 
+            // Index the operations once, so that similar operations can be found without scanning the queue
+            OperationIndex index = new OperationIndex(account.protocol, ops);
+
             int retry = 0;
             boolean group = true;
             Log.i(folder.name + " executing serial=" + serial + " operations=" + ops.size());
@@ -260,102 +269,54 @@ class Core {
 
                         // Process similar operations
                         boolean skip = false;
-                        for (int j = 1; j < ops.size(); j++) {
-                            TupleOperationEx next = ops.get(j);
-
-                            switch (op.name) {
-                                case EntityOperation.SEEN:
-                                case EntityOperation.FLAG:
-                                    if (group &&
-                                            message.uid != null &&
-                                            op.name.equals(next.name) &&
-                                            account.protocol == EntityAccount.TYPE_IMAP) {
-                                        JSONArray jnext = new JSONArray(next.args);
-                                        // Same flag
-                                        if (jargs.getBoolean(0) == jnext.getBoolean(0)) {
-                                            EntityMessage m = db.message().getMessage(next.message);
-                                            if (m != null && m.uid != null)
-                                                similar.put(next, m);
-                                        }
-                                    }
-                                    break;
-
-                                case EntityOperation.ADD:
-                                    // Same message
-                                    if (Objects.equals(op.message, next.message) &&
-                                            (EntityOperation.ADD.equals(next.name) ||
-                                                    EntityOperation.DELETE.equals(next.name)))
-                                        skip = true;
-                                    break;
-
-                                case EntityOperation.FETCH:
-                                    if (EntityOperation.FETCH.equals(next.name)) {
-                                        JSONArray jnext = new JSONArray(next.args);
-                                        // Same uid, invalidate, delete flag
-                                        if (jargs.getLong(0) == jnext.getLong(0) &&
-                                                jargs.optBoolean(1) == jnext.optBoolean(1) &&
-                                                jargs.optBoolean(2) == jnext.optBoolean(2))
-                                            skip = true;
-                                    }
-                                    break;
-
-                                case EntityOperation.DOWNLOAD:
-                                    if (EntityOperation.DOWNLOAD.equals(next.name)) {
-                                        JSONArray jnext = new JSONArray(next.args);
-                                        // Same uid
-                                        if (jargs.getLong(0) == jnext.getLong(0))
-                                            skip = true;
-                                    }
-                                    break;
+                        switch (op.name) {
+                            case EntityOperation.ADD:
+                                // Same message
+                                skip = index.exists(OperationIndex.getMessageKey(op), op);
+                                break;
 
-                                case EntityOperation.MOVE:
-                                    if (group &&
-                                            message.uid != null &&
-                                            op.name.equals(next.name) &&
-                                            account.protocol == EntityAccount.TYPE_IMAP) {
-                                        JSONArray jnext = new JSONArray(next.args);
-                                        // Same target
-                                        if (jargs.getLong(0) == jnext.getLong(0) &&
-                                                jargs.optBoolean(4) == jnext.optBoolean(4)) {
-                                            EntityMessage m = db.message().getMessage(next.message);
-                                            if (m != null && m.uid != null)
-                                                similar.put(next, m);
-                                        }
-                                    }
-                                    if (group &&
-                                            op.name.equals(next.name) &&
-                                            account.protocol == EntityAccount.TYPE_POP) {
-                                        JSONArray jnext = new JSONArray(next.args);
-                                        // Same target
-                                        if (jargs.getLong(0) == jnext.getLong(0)) {
-                                            EntityMessage m = db.message().getMessage(next.message);
-                                            if (m != null)
-                                                similar.put(next, m);
-                                        }
-                                    }
-                                    break;
+                            case EntityOperation.FETCH:
+                            case EntityOperation.DOWNLOAD:
+                                // Same uid, for fetch also same invalidate, delete flag
+                                skip = index.exists(op.getSimilarKey(account.protocol), op);
+                                break;
 
-                                case EntityOperation.DELETE:
-                                    if (group &&
-                                            message.uid != null &&
-                                            op.name.equals(next.name) &&
-                                            account.protocol == EntityAccount.TYPE_IMAP) {
-                                        EntityMessage m = db.message().getMessage(next.message);
-                                        if (m != null &&
-                                                m.uid != null && m.ui_deleted == message.ui_deleted)
-                                            similar.put(next, m);
-                                    }
-                                    if (group &&
-                                            op.name.equals(next.name) &&
-                                            account.protocol == EntityAccount.TYPE_POP) {
-                                        EntityMessage m = db.message().getMessage(next.message);
-                                        if (m != null)
+                            case EntityOperation.SEEN:
+                            case EntityOperation.FLAG:
+                            case EntityOperation.MOVE:
+                            case EntityOperation.DELETE:
+                                // Same flag or same target
+                                boolean imap = (account.protocol == EntityAccount.TYPE_IMAP);
+                                if (group && (!imap || message.uid != null)) {
+                                    // Messages without uid are left out, so fill up to the chunk size
+                                    String key = op.getSimilarKey(account.protocol);
+                                    int skipped = 0;
+                                    while (similar.size() < chunk_size) {
+                                        List<TupleOperationEx> candidates = index.get(key, op, skipped, chunk_size - similar.size());
+                                        if (candidates.size() == 0)
+                                            break;
+                                        skipped += candidates.size();
+
+                                        List<Long> ids = new ArrayList<>();
+                                        for (TupleOperationEx next : candidates)
+                                            ids.add(next.message);
+                                        Map<Long, EntityMessage> messages = new HashMap<>();
+                                        for (List<Long> chunk : Helper.chunkList(ids, 500))
+                                            for (EntityMessage m : db.message().getMessages(chunk))
+                                                messages.put(m.id, m);
+
+                                        for (TupleOperationEx next : candidates) {
+                                            EntityMessage m = messages.get(next.message);
+                                            if (m == null)
+                                                continue;
+                                            if (imap &&
+                                                    (m.uid == null ||
+                                                            (EntityOperation.DELETE.equals(op.name) && m.ui_deleted != message.ui_deleted)))
+                                                continue;
                                             similar.put(next, m);
+                                        }
                                     }
-                                    break;
-                            }
-
-                            if (similar.size() >= chunk_size)
+                                }
                                 break;
                         }
 
@@ -365,6 +326,7 @@ class Core {
                                     " msg=" + op.message + " args=" + op.args);
                             db.operation().deleteOperation(op.id);
                             ops.remove(op);
+                            index.remove(op);
                             continue;
                         }
 
@@ -563,8 +525,10 @@ class Core {
                         }
 
                         ops.remove(op);
+                        ops.removeAll(similar.keySet());
+                        index.remove(op);
                         for (TupleOperationEx s : similar.keySet())
-                            ops.remove(s);
+                            index.remove(s);
                     } catch (Throwable ex) {
                         iservice.dump(account.name + "/" + folder.name);
                         if (ex instanceof OperationCanceledException ||
@@ -741,6 +705,7 @@ class Core {
                             }
 
                             ops.remove(op);
+                            index.remove(op);
 
                             if (!MessageHelper.isRemoved(ex)) {
                                 int resid = context.getResources().getIdentifier(
@@ -799,6 +764,73 @@ class Core {
         }
     }
 
+    private static class OperationIndex {
+        private final Map<String, List<TupleOperationEx>> keyOps = new HashMap<>();
+        private final Map<String, Integer> keyStart = new HashMap<>();
+        private final Set<Long> removed = new HashSet<>();
+
+        OperationIndex(int protocol, List<TupleOperationEx> ops) {
+            for (TupleOperationEx op : ops) {
+                add(op.getSimilarKey(protocol), op);
+                add(getMessageKey(op), op);
+            }
+        }
+
+        static String getMessageKey(TupleOperationEx op) {
+            if (op.message != null &&
+                    (EntityOperation.ADD.equals(op.name) || EntityOperation.DELETE.equals(op.name)))
+                return "msg:" + op.message;
+            else
+                return null;
+        }
+
+        private void add(String key, TupleOperationEx op) {
+            if (key == null)
+                return;
+            List<TupleOperationEx> list = keyOps.get(key);
+            if (list == null) {
+                list = new ArrayList<>();
+                keyOps.put(key, list);
+            }
+            list.add(op);
+        }
+
+        void remove(TupleOperationEx op) {
+            removed.add(op.id);
+        }
+
+        boolean exists(String key, TupleOperationEx op) {
+            return (get(key, op, 0, 1).size() > 0);
+        }
+
+        @NonNull
+        List<TupleOperationEx> get(String key, TupleOperationEx op, int skip, int max) {
+            List<TupleOperationEx> result = new ArrayList<>();
+
+            List<TupleOperationEx> list = (key == null ? null : keyOps.get(key));
+            if (list == null)
+                return result;
+
+            // Processed operations are at the start of the list, so skip them once
+            Integer start = keyStart.get(key);
+            int i = (start == null ? 0 : start);
+            while (i < list.size() && removed.contains(list.get(i).id))
+                i++;
+            keyStart.put(key, i);
+
+            for (; i < list.size() && result.size() < max; i++) {
+                TupleOperationEx next = list.get(i);
+                if (!next.id.equals(op.id) && !removed.contains(next.id))
+                    if (skip > 0)
+                        skip--;
+                    else
+                        result.add(next);
+            }
+
+            return result;
+        }
+    }
+
     private static void ensureUid(Context context, EntityAccount account, EntityFolder folder, EntityMessage message, EntityOperation op, IMAPFolder ifolder) throws MessagingException, IOException {
         if (folder.local)
             return;
@@ -2034,6 +2066,7 @@ class Core {
         File file = message.getFile(context);
         Helper.writeText(file, body);
         String text = HtmlHelper.getFullText(body);
+        HtmlHelper.setFullText(context, message.id, text);
         message.preview = HtmlHelper.getPreview(text);
         message.language = HtmlHelper.getLanguage(context, message.subject, text);
         Integer plain_only = parts.isPlainOnly();
@@ -2148,6 +2181,7 @@ class Core {
         File file = message.getFile(context);
         Helper.writeText(file, body);
         String text = HtmlHelper.getFullText(body);
+        HtmlHelper.setFullText(context, message.id, text);
         message.preview = HtmlHelper.getPreview(text);
         message.language = HtmlHelper.getLanguage(context, message.subject, text);
 
@@ -3426,6 +3460,7 @@ class Core {
                         File file = message.getFile(context);
                         Helper.writeText(file, body);
                         String text = HtmlHelper.getFullText(body);
+                        HtmlHelper.setFullText(context, message.id, text);
                         message.preview = HtmlHelper.getPreview(text);
                         message.language = HtmlHelper.getLanguage(context, message.subject, text);
                         db.message().setMessageContent(message.id,
@@ -3547,6 +3582,7 @@ class Core {
             boolean sync_kept = prefs.getBoolean("sync_kept", true);
             boolean delete_unseen = prefs.getBoolean("delete_unseen", false);
             boolean use_modseq = prefs.getBoolean("use_modseq", true);
+            boolean use_qresync = prefs.getBoolean("use_qresync", false);
             boolean perform_expunge = prefs.getBoolean("perform_expunge", true);
             boolean log = prefs.getBoolean("protocol", false);
 
@@ -3610,11 +3646,13 @@ class Core {
             }
 
             // Check uid validity
+            boolean uidv_changed = false;
             try {
                 long uidv = ifolder.getUIDValidity();
                 if (folder.uidv != null && !folder.uidv.equals(uidv)) {
                     Log.w(folder.name + " uid validity changed from " + folder.uidv + " to " + uidv);
                     db.message().deleteLocalMessages(folder.id);
+                    uidv_changed = true;
                 }
                 folder.uidv = uidv;
                 db.folder().setFolderUidValidity(folder.id, uidv);
@@ -3641,6 +3679,17 @@ class Core {
                     Log.w(folder.name, ex);
                 }
 
+            // https://datatracker.ietf.org/doc/html/rfc7162#section-3.2.6
+            boolean delta = false;
+            if (use_qresync && modified && !force && initialize == 0 && !uidv_changed &&
+                    modseq != null && folder.modseq != null && folder.modseq < modseq)
+                try {
+                    delta = MessageHelper.isEnabled(ifolder, "QRESYNC");
+                    EntityLog.log(context, folder.name + " delta=" + delta);
+                } catch (MessagingException ex) {
+                    Log.w(folder.name, ex);
+                }
+
             // Get reference times
             Calendar cal_sync = Calendar.getInstance();
             cal_sync.add(Calendar.DAY_OF_MONTH, -sync_days);
@@ -3689,7 +3738,232 @@ class Core {
             Message[] imessages;
             long search;
             Long[] ids;
-            if (modified || !sync_quick_imap || force) {
+            if (delta) {
+                search = SystemClock.elapsedRealtime();
+
+                // This is done outside of JavaMail to prevent changed notifications
+                final long changedsince = folder.modseq;
+                final boolean gmail = account.isGmail();
+                final List<FetchResponse> changed = new ArrayList<>();
+                final List<UIDSet> vanished = new ArrayList<>();
+                MessagingException ex = (MessagingException) ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+                    @Override
+                    public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                        // https://datatracker.ietf.org/doc/html/rfc7162#section-3.2.6
+                        String command = "UID FETCH 1:* (UID FLAGS" + (gmail ? " X-GM-LABELS" : "") + ")" +
+                                " (CHANGEDSINCE " + changedsince + " VANISHED)";
+                        Response[] responses = protocol.command(command, null);
+
+                        if (responses.length > 0 && responses[responses.length - 1].isOK()) {
+                            List<Response> other = new ArrayList<>();
+                            for (int i = 0; i < responses.length - 1; i++) {
+                                Response response = responses[i];
+                                if (response instanceof FetchResponse &&
+                                        ((FetchResponse) response).getItem(UID.class) != null)
+                                    changed.add((FetchResponse) response);
+                                else if (response instanceof IMAPResponse &&
+                                        ((IMAPResponse) response).keyEquals("VANISHED")) {
+                                    // "VANISHED" SP "(EARLIER)" SP known-uids
+                                    String[] earlier = response.readAtomStringList();
+                                    if (earlier != null && earlier.length == 1 &&
+                                            "EARLIER".equalsIgnoreCase(earlier[0])) {
+                                        UIDSet[] uidsets = UIDSet.parseUIDSets(response.readAtom());
+                                        if (uidsets != null)
+                                            vanished.addAll(Arrays.asList(uidsets));
+                                    } else {
+                                        response.reset();
+                                        other.add(response);
+                                    }
+                                } else
+                                    other.add(response);
+                            }
+
+                            // Expunges of this session affect message numbers
+                            protocol.notifyResponseHandlers(other.toArray(new Response[0]));
+                            return null;
+                        } else {
+                            for (Response response : responses)
+                                if (response.isBYE())
+                                    return new MessagingException("UID FETCH", new IOException(response.toString()));
+                                else if (response.isNO()) {
+                                    Log.e("UID FETCH " + response);
+                                    throw new CommandFailedException(response);
+                                } else if (response.isBAD()) {
+                                    Log.e("UID FETCH " + response);
+                                    throw new BadCommandException(response);
+                                }
+                            throw new ProtocolException("UID FETCH failed");
+                        }
+                    }
+                });
+                if (ex != null)
+                    throw ex;
+
+                stats.flags = changed.size();
+                stats.flags_ms = (SystemClock.elapsedRealtime() - search);
+                Log.i(folder.name + " delta changed=" + changed.size() +
+                        " vanished=" + vanished.size() + " " + stats.flags_ms + " ms");
+
+                // Delete local messages expunged at remote
+                for (UIDSet uidset : vanished) {
+                    int count = db.message().deleteMessages(folder.id, uidset.start, uidset.end);
+                    Log.i(folder.name + " vanished uid=" + uidset.start + ":" + uidset.end + " count=" + count);
+                }
+
+                // Update existing local messages
+                List<Long> added = new ArrayList<>();
+                List<Long> deleted = new ArrayList<>();
+                for (FetchResponse fr : changed) {
+                    state.ensureRunning("Sync/IMAP/delta");
+
+                    long uid = fr.getItem(UID.class).uid;
+                    FLAGS iflags = fr.getItem(FLAGS.class);
+                    if (iflags == null)
+                        continue;
+
+                    if (perform_expunge && iflags.contains(Flags.Flag.DELETED)) {
+                        deleted.add(uid);
+                        continue;
+                    }
+
+                    EntityMessage message = db.message().getMessageByUid(folder.id, uid);
+                    if (message == null)
+                        added.add(uid);
+                    else
+                        try {
+                            String[] labels = null;
+                            if (gmail)
+                                labels = MessageHelper.getLabels(
+                                        (String[]) fr.getExtensionItems().get(GmailProtocol.LABELS_ITEM.getName()));
+                            if (updateFlags(context, account, folder, ifolder, message,
+                                    iflags.contains(Flags.Flag.RECENT),
+                                    iflags.contains(Flags.Flag.SEEN),
+                                    iflags.contains(Flags.Flag.ANSWERED),
+                                    iflags.contains(Flags.Flag.FLAGGED),
+                                    iflags.contains(Flags.Flag.DELETED),
+                                    MessageHelper.getFlags(iflags),
+                                    MessageHelper.getKeywords(iflags),
+                                    labels))
+                                db.message().updateMessage(message);
+                        } catch (Throwable ex1) {
+                            Log.e(folder.name, ex1);
+                            modseq = null;
+                        }
+                }
+
+                if (deleted.size() > 0) {
+                    Message[] idelete = ifolder.getMessagesByUID(Helper.toLongArray(deleted));
+                    List<Message> expunge = new ArrayList<>();
+                    for (Message imessage : idelete)
+                        if (imessage != null)
+                            expunge.add(imessage);
+                    if (expunge(context, ifolder, expunge))
+                        for (long uid : deleted) {
+                            int count = db.message().deleteMessage(folder.id, uid);
+                            Log.i(folder.name + " delete local uid=" + uid + " count=" + count);
+                        }
+                }
+
+                // Add new messages
+                Collections.sort(added);
+                List<Message> inew = new ArrayList<>();
+                for (Message imessage : ifolder.getMessagesByUID(Helper.toLongArray(added)))
+                    if (imessage != null)
+                        inew.add(imessage);
+                imessages = inew.toArray(new Message[0]);
+                ids = new Long[imessages.length];
+
+                if (imessages.length > 0) {
+                    List<EntityRule> rules = db.rule().getEnabledRules(folder.id, false);
+
+                    FetchProfile fp = new FetchProfile();
+                    fp.add(UIDFolder.FetchProfileItem.UID);
+                    fp.add(FetchProfile.Item.FLAGS);
+                    fp.add(FetchProfile.Item.ENVELOPE);
+                    fp.add(FetchProfile.Item.CONTENT_INFO); // body structure
+                    fp.add(IMAPFolder.FetchProfileItem.HEADERS);
+                    fp.add(FetchProfile.Item.SIZE);
+                    fp.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
+
+                    long headers = SystemClock.elapsedRealtime();
+                    ifolder.fetch(imessages, fp);
+                    stats.headers += imessages.length;
+                    stats.headers_ms += (SystemClock.elapsedRealtime() - headers);
+                    Log.i(folder.name + " delta added=" + imessages.length + " " + stats.headers_ms + " ms");
+
+                    for (int i = 0; i < imessages.length; i++) {
+                        state.ensureRunning("Sync/IMAP/delta/add");
+
+                        try {
+                            // Some providers erroneously return old messages
+                            Date received = imessages[i].getReceivedDate();
+                            if (received == null || received.getTime() == 0)
+                                received = imessages[i].getSentDate();
+                            boolean unseen = (sync_unseen && !imessages[i].isSet(Flags.Flag.SEEN));
+                            boolean flagged = (sync_flagged && imessages[i].isSet(Flags.Flag.FLAGGED));
+                            if (received != null && received.getTime() < keep_time && !unseen && !flagged) {
+                                Log.i(folder.name + " Skipping old uid=" + ifolder.getUID(imessages[i]) + " date=" + received);
+                                continue;
+                            }
+
+                            EntityMessage message = synchronizeMessage(
+                                    context,
+                                    account, folder,
+                                    istore, ifolder, (MimeMessage) imessages[i],
+                                    false, download,
+                                    rules, state, stats);
+                            ids[i] = (message == null || message.ui_hide ? null : message.id);
+                        } catch (MessageRemovedException ex1) {
+                            Log.w(folder.name, ex1);
+                        } catch (FolderClosedException ex1) {
+                            throw ex1;
+                        } catch (Throwable ex1) {
+                            Log.e(folder.name, ex1);
+                            modseq = null;
+                            db.folder().setFolderError(folder.id, Log.formatThrowable(ex1));
+                        }
+                    }
+                }
+
+                // Delete not synchronized messages without uid
+                if (!EntityFolder.isOutgoing(folder.type)) {
+                    int orphans = db.message().deleteOrphans(folder.id, new Date().getTime());
+                    Log.i(folder.name + " deleted orphans=" + orphans);
+                }
+
+                // Download messages left without content
+                if (download && initialize == 0) {
+                    List<Long> _ids = new ArrayList<>();
+                    List<Long> _uids = new ArrayList<>();
+                    List<Long> known = Arrays.asList(ids);
+                    List<EntityMessage> messages = db.message().getMessagesWithoutContent(
+                            folder.id, sync_kept || force ? null : sync_time);
+                    if (messages != null)
+                        for (EntityMessage message : messages)
+                            if (!known.contains(message.id)) {
+                                _ids.add(message.id);
+                                _uids.add(message.uid);
+                            }
+
+                    if (_ids.size() > 0) {
+                        Log.i(folder.name + " needs content=" + _ids.size());
+                        Message[] icontent = ifolder.getMessagesByUID(Helper.toLongArray(_uids));
+
+                        Message[] iall = Arrays.copyOf(imessages, imessages.length + icontent.length);
+                        System.arraycopy(icontent, 0, iall, imessages.length, icontent.length);
+                        imessages = iall;
+
+                        Long[] all = Arrays.copyOf(ids, ids.length + _ids.size());
+                        for (int i = 0; i < _ids.size(); i++)
+                            all[ids.length + i] = _ids.get(i);
+                        ids = all;
+                    }
+                }
+
+                EntityLog.log(context, folder.name + " delta" +
+                        " changed=" + changed.size() + " vanished=" + vanished.size() +
+                        " deleted=" + deleted.size() + " added=" + added.size());
+            } else if (modified || !sync_quick_imap || force) {
                 // Get list of local uids
                 final List<Long> uids = db.message().getUids(folder.id, sync_kept || force ? null : sync_time);
                 Log.i(folder.name + " local count=" + uids.size());
@@ -4151,6 +4425,18 @@ class Core {
                     Log.breadcrumb("download", crumb);
                     Log.i("Download " + from + ".." + i + " free=" + free);
 
+                    Set<Message> prefetched = new HashSet<>();
+                    try {
+                        dc.start();
+                        prefetched.addAll(prefetchMessages(context, folder, ifolder, isub, ids, from, state));
+                    } catch (FolderClosedException ex) {
+                        throw ex;
+                    } catch (Throwable ex) {
+                        Log.w(folder.name, ex);
+                    } finally {
+                        dc.stop(state.getForeground(), false);
+                    }
+
                     for (int j = isub.length - 1; j >= 0; j--) {
                         state.ensureRunning("Sync/IMAP/download");
 
@@ -4169,6 +4455,8 @@ class Core {
                             Log.e(folder.name, ex);
                         } finally {
                             // Free memory
+                            if (prefetched.contains(isub[j]))
+                                ((IMAPMessage) isub[j]).invalidateHeaders();
                             isub[j] = null;
                             dc.stop(state.getForeground(), from == 0 && j == 0);
                         }
@@ -4688,6 +4976,7 @@ class Core {
                             File file = message.getFile(context);
                             Helper.writeText(file, body);
                             String text = HtmlHelper.getFullText(body);
+                            HtmlHelper.setFullText(context, message.id, text);
                             message.content = true;
                             message.preview = HtmlHelper.getPreview(text);
                             message.language = HtmlHelper.getLanguage(context, message.subject, text);
@@ -4726,79 +5015,6 @@ class Core {
                 }
             }
 
-            if (!message.recent.equals(recent)) {
-                update = true;
-                message.recent = recent;
-                Log.i(folder.name + " updated id=" + message.id + " uid=" + message.uid + " recent=" + recent);
-                syncSimilar = true;
-            }
-
-            if ((!message.seen.equals(seen) ||
-                    (!folder.read_only && !message.ui_seen.equals(seen))) &&
-                    db.operation().getOperationCount(folder.id, message.id, EntityOperation.SEEN) == 0) {
-                update = true;
-                message.seen = seen;
-                message.ui_seen = seen;
-                if (seen)
-                    message.ui_ignored = true;
-                Log.i(folder.name + " updated id=" + message.id + " uid=" + message.uid + " seen=" + seen);
-                syncSimilar = true;
-            }
-
-            if ((!message.answered.equals(answered) ||
-                    (!folder.read_only && !message.ui_answered.equals(message.answered))) &&
-                    db.operation().getOperationCount(folder.id, message.id, EntityOperation.ANSWERED) == 0) {
-                update = true;
-                message.answered = answered;
-                message.ui_answered = answered;
-                Log.i(folder.name + " updated id=" + message.id + " uid=" + message.uid + " answered=" + answered);
-                syncSimilar = true;
-            }
-
-            if ((!message.flagged.equals(flagged) ||
-                    (!folder.read_only && !message.ui_flagged.equals(flagged))) &&
-                    db.operation().getOperationCount(folder.id, message.id, EntityOperation.FLAG) == 0) {
-                update = true;
-                message.flagged = flagged;
-                message.ui_flagged = flagged;
-                if (!flagged)
-                    message.color = null;
-                Log.i(folder.name + " updated id=" + message.id + " uid=" + message.uid + " flagged=" + flagged);
-                syncSimilar = true;
-            }
-
-            if ((!message.deleted.equals(deleted) || !message.ui_deleted.equals(deleted)) &&
-                    db.operation().getOperationCount(folder.id, message.id, EntityOperation.DELETE) == 0) {
-                update = true;
-                message.deleted = deleted;
-                message.ui_deleted = deleted;
-                message.ui_ignored = deleted;
-                Log.i(folder.name + " updated id=" + message.id + " uid=" + message.uid + " deleted=" + deleted);
-                syncSimilar = true;
-            }
-
-            if (!Objects.equals(flags, message.flags)) {
-                update = true;
-                message.flags = flags;
-                Log.i(folder.name + " updated id=" + message.id + " uid=" + message.uid + " flags=" + flags);
-            }
-
-            if (!Helper.equal(message.keywords, keywords) &&
-                    !folder.read_only &&
-                    (ifolder.getPermanentFlags().contains(Flags.Flag.USER) || keywords.length > 0)) {
-                update = true;
-                message.keywords = keywords;
-                Log.i(folder.name + " updated id=" + message.id + " uid=" + message.uid +
-                        " keywords=" + TextUtils.join(" ", keywords));
-            }
-
-            if (!Helper.equal(message.labels, labels)) {
-                update = true;
-                message.labels = labels;
-                Log.i(folder.name + " updated id=" + message.id + " uid=" + message.uid +
-                        " labels=" + (labels == null ? null : TextUtils.join(" ", labels)));
-            }
-
             if (download_headers && message.headers == null) {
                 update = true;
                 message.headers = helper.getHeaders();
@@ -4816,14 +5032,11 @@ class Core {
                         db.message().setMessageHash(dup.id, message.hash);
             }
 
-            if (message.ui_hide &&
-                    (message.ui_busy == null || message.ui_busy < new Date().getTime()) &&
-                    db.operation().getOperationCount(folder.id, message.id) == 0 &&
-                    db.operation().getOperationCount(folder.id, EntityOperation.PURGE) == 0) {
+            // Similar messages are found by hash
+            if (updateFlags(context, account, folder, ifolder, message,
+                    recent, seen, answered, flagged, deleted,
+                    flags, keywords, labels))
                 update = true;
-                message.ui_hide = false;
-                Log.i(folder.name + " updated id=" + message.id + " uid=" + message.uid + " unhide");
-            }
 
             if (message.ui_browsed != browsed) {
                 update = true;
@@ -4880,30 +5093,7 @@ class Core {
         }
 
         if (syncSimilar && account.isGmail())
-            for (EntityMessage similar : db.message().getMessagesBySimilarity(message.account, message.id, message.msgid, message.hash)) {
-                if (similar.recent != message.recent) {
-                    Log.i(folder.name + " Synchronize similar id=" + similar.id + " recent=" + message.recent);
-                    db.message().setMessageRecent(similar.id, message.recent);
-                }
-
-                if (similar.seen != message.seen) {
-                    Log.i(folder.name + " Synchronize similar id=" + similar.id + " seen=" + message.seen);
-                    db.message().setMessageSeen(similar.id, message.seen);
-                    db.message().setMessageUiSeen(similar.id, message.seen);
-                }
-
-                if (similar.answered != message.answered) {
-                    Log.i(folder.name + " Synchronize similar id=" + similar.id + " answered=" + message.answered);
-                    db.message().setMessageAnswered(similar.id, message.answered);
-                    db.message().setMessageUiAnswered(similar.id, message.answered);
-                }
-
-                if (similar.flagged != flagged) {
-                    Log.i(folder.name + " Synchronize similar id=" + similar.id + " flagged=" + message.flagged);
-                    db.message().setMessageFlagged(similar.id, message.flagged);
-                    db.message().setMessageUiFlagged(similar.id, message.flagged, flagged ? similar.color : null);
-                }
-            }
+            syncSimilar(context, folder, message, flagged);
 
         List<String> fkeywords = new ArrayList<>(Arrays.asList(folder.keywords));
 
@@ -4921,6 +5111,131 @@ class Core {
         return message;
     }
 
+    private static boolean updateFlags(
+            Context context, EntityAccount account, EntityFolder folder, IMAPFolder ifolder, EntityMessage message,
+            boolean recent, boolean seen, boolean answered, boolean flagged, boolean deleted,
+            String flags, String[] keywords, String[] labels) throws MessagingException {
+        DB db = DB.getInstance(context);
+
+        boolean update = false;
+        boolean similar = false;
+
+        if (!message.recent.equals(recent)) {
+            update = true;
+            message.recent = recent;
+            Log.i(folder.name + " updated id=" + message.id + " uid=" + message.uid + " recent=" + recent);
+            similar = true;
+        }
+
+        if ((!message.seen.equals(seen) ||
+                (!folder.read_only && !message.ui_seen.equals(seen))) &&
+                db.operation().getOperationCount(folder.id, message.id, EntityOperation.SEEN) == 0) {
+            update = true;
+            message.seen = seen;
+            message.ui_seen = seen;
+            if (seen)
+                message.ui_ignored = true;
+            Log.i(folder.name + " updated id=" + message.id + " uid=" + message.uid + " seen=" + seen);
+            similar = true;
+        }
+
+        if ((!message.answered.equals(answered) ||
+                (!folder.read_only && !message.ui_answered.equals(message.answered))) &&
+                db.operation().getOperationCount(folder.id, message.id, EntityOperation.ANSWERED) == 0) {
+            update = true;
+            message.answered = answered;
+            message.ui_answered = answered;
+            Log.i(folder.name + " updated id=" + message.id + " uid=" + message.uid + " answered=" + answered);
+            similar = true;
+        }
+
+        if ((!message.flagged.equals(flagged) ||
+                (!folder.read_only && !message.ui_flagged.equals(flagged))) &&
+                db.operation().getOperationCount(folder.id, message.id, EntityOperation.FLAG) == 0) {
+            update = true;
+            message.flagged = flagged;
+            message.ui_flagged = flagged;
+            if (!flagged)
+                message.color = null;
+            Log.i(folder.name + " updated id=" + message.id + " uid=" + message.uid + " flagged=" + flagged);
+            similar = true;
+        }
+
+        if ((!message.deleted.equals(deleted) || !message.ui_deleted.equals(deleted)) &&
+                db.operation().getOperationCount(folder.id, message.id, EntityOperation.DELETE) == 0) {
+            update = true;
+            message.deleted = deleted;
+            message.ui_deleted = deleted;
+            message.ui_ignored = deleted;
+            Log.i(folder.name + " updated id=" + message.id + " uid=" + message.uid + " deleted=" + deleted);
+            similar = true;
+        }
+
+        if (!Objects.equals(flags, message.flags)) {
+            update = true;
+            message.flags = flags;
+            Log.i(folder.name + " updated id=" + message.id + " uid=" + message.uid + " flags=" + flags);
+        }
+
+        if (!Helper.equal(message.keywords, keywords) &&
+                !folder.read_only &&
+                (ifolder.getPermanentFlags().contains(Flags.Flag.USER) || keywords.length > 0)) {
+            update = true;
+            message.keywords = keywords;
+            Log.i(folder.name + " updated id=" + message.id + " uid=" + message.uid +
+                    " keywords=" + TextUtils.join(" ", keywords));
+        }
+
+        if (!Helper.equal(message.labels, labels)) {
+            update = true;
+            message.labels = labels;
+            Log.i(folder.name + " updated id=" + message.id + " uid=" + message.uid +
+                    " labels=" + (labels == null ? null : TextUtils.join(" ", labels)));
+        }
+
+        if (message.ui_hide &&
+                (message.ui_busy == null || message.ui_busy < new Date().getTime()) &&
+                db.operation().getOperationCount(folder.id, message.id) == 0 &&
+                db.operation().getOperationCount(folder.id, EntityOperation.PURGE) == 0) {
+            update = true;
+            message.ui_hide = false;
+            Log.i(folder.name + " updated id=" + message.id + " uid=" + message.uid + " unhide");
+        }
+
+        if (similar && account.isGmail())
+            syncSimilar(context, folder, message, flagged);
+
+        return update;
+    }
+
+    private static void syncSimilar(Context context, EntityFolder folder, EntityMessage message, boolean flagged) {
+        DB db = DB.getInstance(context);
+        for (EntityMessage similar : db.message().getMessagesBySimilarity(message.account, message.id, message.msgid, message.hash)) {
+            if (similar.recent != message.recent) {
+                Log.i(folder.name + " Synchronize similar id=" + similar.id + " recent=" + message.recent);
+                db.message().setMessageRecent(similar.id, message.recent);
+            }
+
+            if (similar.seen != message.seen) {
+                Log.i(folder.name + " Synchronize similar id=" + similar.id + " seen=" + message.seen);
+                db.message().setMessageSeen(similar.id, message.seen);
+                db.message().setMessageUiSeen(similar.id, message.seen);
+            }
+
+            if (similar.answered != message.answered) {
+                Log.i(folder.name + " Synchronize similar id=" + similar.id + " answered=" + message.answered);
+                db.message().setMessageAnswered(similar.id, message.answered);
+                db.message().setMessageUiAnswered(similar.id, message.answered);
+            }
+
+            if (similar.flagged != flagged) {
+                Log.i(folder.name + " Synchronize similar id=" + similar.id + " flagged=" + message.flagged);
+                db.message().setMessageFlagged(similar.id, message.flagged);
+                db.message().setMessageUiFlagged(similar.id, message.flagged, flagged ? similar.color : null);
+            }
+        }
+    }
+
     private static boolean expunge(Context context, IMAPFolder ifolder, List<Message> messages) {
         if (messages.size() == 0)
             return false;
@@ -5144,6 +5459,55 @@ class Core {
         }
     }
 
+    private static List<Message> prefetchMessages(
+            Context context, EntityFolder folder, IMAPFolder ifolder,
+            Message[] isub, Long[] ids, int from, State state) throws MessagingException {
+        List<Message> result = new ArrayList<>();
+        if (state.getNetworkState().isRoaming())
+            return result;
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        long maxSize = prefs.getInt("download", MessageHelper.DEFAULT_DOWNLOAD_SIZE);
+        if (maxSize == 0)
+            maxSize = Long.MAX_VALUE;
+
+        // Small messages are fetched completely with one command per batch,
+        // instead of one round trip per body part, limiting memory usage by the total size
+        DB db = DB.getInstance(context);
+        long total = 0;
+        for (int j = isub.length - 1; j >= 0; j--) {
+            if (!(isub[j] instanceof IMAPMessage) || ids[from + j] == null)
+                continue;
+            if (Boolean.parseBoolean(isub[j].getSession().getProperty("fairemail.rawfetch")))
+                break;
+
+            EntityMessage message = db.message().getMessage(ids[from + j]);
+            if (message == null || message.ui_hide || message.content || message.total == null)
+                continue;
+            if (message.total > PREFETCH_MESSAGE_SIZE || message.total >= maxSize)
+                continue;
+            if (total + message.total > PREFETCH_BATCH_SIZE)
+                break;
+
+            total += message.total;
+            result.add(isub[j]);
+        }
+
+        if (result.size() > 1) {
+            long start = SystemClock.elapsedRealtime();
+
+            FetchProfile fp = new FetchProfile();
+            fp.add(IMAPFolder.FetchProfileItem.MESSAGE);
+            ifolder.fetch(result.toArray(new Message[0]), fp);
+
+            Log.i(folder.name + " prefetched messages=" + result.size() + " size=" + total +
+                    " elapsed=" + (SystemClock.elapsedRealtime() - start) + " ms");
+        } else
+            result.clear();
+
+        return result;
+    }
+
     private static boolean downloadMessage(
             Context context,
             EntityAccount account, EntityFolder folder,
@@ -5211,6 +5575,7 @@ class Core {
                     File file = message.getFile(context);
                     Helper.writeText(file, body);
                     String text = HtmlHelper.getFullText(body);
+                    HtmlHelper.setFullText(context, message.id, text);
                     message.preview = HtmlHelper.getPreview(text);
                     message.language = HtmlHelper.getLanguage(context, message.subject, text);
                     db.message().setMessageContent(message.id,
@@ -5301,6 +5666,13 @@ class Core {
         if (nm == null)
             return;
 
+        // Any write to the message table emits the complete list again
+        Set<Long> changed = data.getChanged(messages, foreground);
+        if (changed == null) {
+            Log.i("Notify unchanged messages=" + messages.size());
+            return;
+        }
+
         DB db = DB.getInstance(context);
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
@@ -5326,6 +5698,7 @@ class Core {
             notify_screen_on = false;
 
         Log.i("Notify messages=" + messages.size() +
+                " changed=" + changed.size() +
                 " biometrics=" + biometrics + "/" + biometric_notify +
                 " summary=" + notify_summary);
 
@@ -5393,10 +5766,13 @@ class Core {
                         " hide=" + message.ui_hide);
             else {
                 // Prevent reappearing notifications
-                EntityMessage msg = db.message().getMessage(message.id);
-                if (msg == null || msg.ui_ignored) {
-                    Log.i("Notify skip id=" + message.id + " msg=" + (msg != null));
-                    continue;
+                // Unchanged messages were checked before
+                if (changed.contains(message.id)) {
+                    EntityMessage msg = db.message().getMessage(message.id);
+                    if (msg == null || msg.ui_ignored) {
+                        Log.i("Notify skip id=" + message.id + " msg=" + (msg != null));
+                        continue;
+                    }
                 }
 
                 Integer current = newMessages.get(group);
@@ -5465,11 +5841,11 @@ class Core {
                             groupMessages.get(group).size() > 0 &&
                             groupMessages.get(group).get(0).accountSummary));
 
-            // Build notifications
+            // Build changed notifications only
             List<NotificationCompat.Builder> notifications = getNotificationUnseen(context,
                     group, groupMessages.get(group),
                     summary, current - prev, current,
-                    redacted);
+                    redacted, !prev.equals(current), add);
 
             Log.i("Notify group=" + group +
                     " new=" + prev + "/" + current +
@@ -5489,7 +5865,7 @@ class Core {
                 db.message().setMessageNotifying(Math.abs(id), 0);
             }
 
-            if (notifications.size() == 0) {
+            if (groupMessages.get(group).size() == 0) {
                 String tag = "unseen." + group + "." + 0;
                 EntityLog.log(context, EntityLog.Type.Notification,
                         "Notify cancel tag=" + tag);
@@ -5545,12 +5921,15 @@ class Core {
                     BuildConfig.APPLICATION_ID + ":notification");
             wakeLock.acquire(SCREEN_ON_DURATION);
         }
+
+        data.setPublished(messages, foreground);
     }
 
     private static List<NotificationCompat.Builder> getNotificationUnseen(
             Context context,
             long group, List<TupleMessageEx> messages,
-            boolean notify_summary, int new_messages, int total_messages, boolean redacted) {
+            boolean notify_summary, int new_messages, int total_messages, boolean redacted,
+            boolean with_summary, List<Long> ids) {
         List<NotificationCompat.Builder> notifications = new ArrayList<>();
 
         // Android 7+ N https://developer.android.com/training/notify-user/group
@@ -5596,11 +5975,18 @@ class Core {
         boolean alert_once = prefs.getBoolean("alert_once", true);
         boolean perform_expunge = prefs.getBoolean("perform_expunge", true);
 
+        boolean summary = (with_summary &&
+                (notify_summary || (notify_grouping && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)));
+
         // Get contact info
         Map<Long, Address[]> messageFrom = new HashMap<>();
         Map<Long, ContactInfo[]> messageInfo = new HashMap<>();
         for (int m = 0; m < messages.size() && m < MAX_NOTIFICATION_DISPLAY; m++) {
             TupleMessageEx message = messages.get(m);
+            if (!(summary && notify_preview && !redacted) &&
+                    !isNotificationChanged(message, ids))
+                continue;
+
             ContactInfo[] info = ContactInfo.get(context,
                     message.account, message.folderType,
                     message.bimi_selector, message.from);
@@ -5627,8 +6013,7 @@ class Core {
         }
 
         // Summary notification
-        if (notify_summary ||
-                (notify_grouping && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)) {
+        if (summary) {
             // Build pending intents
             Intent content;
             if (group < 0) {
@@ -5759,6 +6144,9 @@ class Core {
         // Message notifications
         for (int m = 0; m < messages.size() && m < MAX_NOTIFICATION_DISPLAY; m++) {
             TupleMessageEx message = messages.get(m);
+            if (!isNotificationChanged(message, ids))
+                continue;
+
             ContactInfo[] info = messageInfo.get(message.id);
 
             // Build arguments
@@ -6117,8 +6505,7 @@ class Core {
                 String preview = message.preview;
                 if (notify_preview_all)
                     try {
-                        File file = message.getFile(context);
-                        preview = HtmlHelper.getFullText(file);
+                        preview = HtmlHelper.getFullText(context, message.id);
                         if (preview != null && preview.length() > MAX_PREVIEW)
                             preview = preview.substring(0, MAX_PREVIEW);
                     } catch (Throwable ex) {
@@ -6199,6 +6586,10 @@ class Core {
         return notifications;
     }
 
+    private static boolean isNotificationChanged(TupleMessageEx message, List<Long> ids) {
+        return ids.contains(message.content ? message.id : -message.id);
+    }
+
     private static Integer getColor(TupleMessageEx message) {
         if (!message.folderUnified && message.folderColor != null)
             return message.folderColor;
@@ -6555,6 +6946,30 @@ class Core {
 
     static class NotificationData {
         private Map<Long, List<Long>> groupNotifying = new HashMap<>();
+        private Boolean lastForeground = null;
+        private Map<Long, TupleMessageEx> lastMessages = new HashMap<>();
+
+        // Messages added or changed since the last published state, null if nothing changed
+        Set<Long> getChanged(List<TupleMessageEx> messages, boolean foreground) {
+            Set<Long> changed = new HashSet<>();
+            for (TupleMessageEx message : messages)
+                if (!message.equals(lastMessages.get(message.id)))
+                    changed.add(message.id);
+
+            if (changed.size() == 0 &&
+                    messages.size() == lastMessages.size() &&
+                    Objects.equals(lastForeground, foreground))
+                return null;
+
+            return changed;
+        }
+
+        void setPublished(List<TupleMessageEx> messages, boolean foreground) {
+            lastForeground = foreground;
+            lastMessages.clear();
+            for (TupleMessageEx message : messages)
+                lastMessages.put(message.id, message);
+        }
 
         NotificationData(Context context) {
             // Get existing notifications
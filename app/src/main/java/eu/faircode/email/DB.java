@@ -68,12 +68,15 @@ import javax.mail.internet.InternetAddress;
 // https://developer.android.com/topic/libraries/architecture/room.html
 
 @Database(
-        version = 280,
+        version = 284,
         entities = {
                 EntityIdentity.class,
                 EntityAccount.class,
                 EntityFolder.class,
                 EntityMessage.class,
+                EntityThread.class,
+                EntityThreadStale.class,
+                EntityFolderCount.class,
                 EntityAttachment.class,
                 EntityOperation.class,
                 EntityContact.class,
@@ -123,12 +126,21 @@ public abstract class DB extends RoomDatabase {
     static final String DB_NAME = "fairemail";
     static final int DEFAULT_QUERY_THREADS = 4; // AndroidX default thread count: 4
     static final int DEFAULT_CACHE_SIZE = 20; // percentage of memory class
+    static final int DEFAULT_COALESCE_WINDOW = 500; // milliseconds
     private static final int DB_JOURNAL_SIZE_LIMIT = 1048576; // requery/sqlite-android default
     private static final int DB_CHECKPOINT = 1000; // requery/sqlite-android default
 
     private static ExecutorService executor =
             Helper.getBackgroundExecutor(0, "db");
 
+    // SQLite transactions are bound to the connection of the calling thread
+    private static final ThreadLocal<Integer> transactionDepth = new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+            return 0;
+        }
+    };
+
     private static final String[] DB_TABLES = new String[]{
             "identity", "account", "folder", "message", "attachment", "operation", "contact", "certificate", "answer", "rule", "search", "log"};
 
@@ -396,6 +408,11 @@ public abstract class DB extends RoomDatabase {
 
             sInstance = migrate(sContext, getBuilder(sContext)).build();
 
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(sContext);
+            int sqlite_coalesce = prefs.getInt("sqlite_coalesce", DEFAULT_COALESCE_WINDOW);
+            Log.i("DB coalesce=" + sqlite_coalesce);
+            InvalidationTracker.setCoalesceWindow(sqlite_coalesce);
+
             Helper.getSerialExecutor().execute(new Runnable() {
                 @Override
                 public void run() {
@@ -515,6 +532,7 @@ public abstract class DB extends RoomDatabase {
                             dropTriggers(db);
 
                         createTriggers(db);
+                        refreshThreads(db);
                     }
                 });
 
@@ -551,6 +569,16 @@ public abstract class DB extends RoomDatabase {
 
         db.execSQL("DROP TRIGGER IF EXISTS `account_update`");
         db.execSQL("DROP TRIGGER IF EXISTS `identity_update`");
+
+        db.execSQL("DROP TRIGGER IF EXISTS `thread_insert`");
+        db.execSQL("DROP TRIGGER IF EXISTS `thread_delete`");
+        db.execSQL("DROP TRIGGER IF EXISTS `thread_update`");
+        db.execSQL("DROP TRIGGER IF EXISTS `thread_move`");
+
+        db.execSQL("DROP TRIGGER IF EXISTS `folder_count_insert`");
+        db.execSQL("DROP TRIGGER IF EXISTS `folder_count_delete`");
+        db.execSQL("DROP TRIGGER IF EXISTS `folder_count_update`");
+        db.execSQL("DROP TRIGGER IF EXISTS `folder_count_folder`");
     }
 
     private static void createTriggers(@NonNull SupportSQLiteDatabase db) {
@@ -612,6 +640,87 @@ public abstract class DB extends RoomDatabase {
                 "  AND OLD.last_connected IS NEW.last_connected" +
                 "  AND (NEW.auth_type = " + AUTH_TYPE_PASSWORD + " OR OLD.password = NEW.password);" +
                 " END");
+
+        // Mark conversations to recompute the aggregates of, see refreshThreads
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS thread_insert" +
+                " AFTER INSERT ON message" +
+                " WHEN NOT NEW.thread IS NULL" +
+                " BEGIN " +
+                EntityThread.getStale("NEW") +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS thread_delete" +
+                " AFTER DELETE ON message" +
+                " WHEN NOT OLD.thread IS NULL" +
+                " BEGIN " +
+                EntityThread.getStale("OLD") +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS thread_update" +
+                " AFTER UPDATE ON message" +
+                " WHEN NOT NEW.thread IS NULL" +
+                " AND (OLD.account IS NOT NEW.account" +
+                "  OR OLD.folder IS NOT NEW.folder" +
+                "  OR OLD.thread IS NOT NEW.thread" +
+                "  OR OLD.hash IS NOT NEW.hash" +
+                "  OR OLD.msgid IS NOT NEW.msgid" +
+                "  OR OLD.received IS NOT NEW.received" +
+                "  OR OLD.`from` IS NOT NEW.`from`" +
+                "  OR OLD.`to` IS NOT NEW.`to`" +
+                "  OR OLD.attachments IS NOT NEW.attachments" +
+                "  OR OLD.total IS NOT NEW.total" +
+                "  OR OLD.ui_seen IS NOT NEW.ui_seen" +
+                "  OR OLD.ui_flagged IS NOT NEW.ui_flagged" +
+                "  OR OLD.ui_hide IS NOT NEW.ui_hide" +
+                "  OR OLD.ui_snoozed IS NOT NEW.ui_snoozed)" +
+                " BEGIN " +
+                EntityThread.getStale("NEW") +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS thread_move" +
+                " AFTER UPDATE ON message" +
+                " WHEN NOT OLD.thread IS NULL" +
+                " AND (OLD.account IS NOT NEW.account OR OLD.thread IS NOT NEW.thread)" +
+                " BEGIN " +
+                EntityThread.getStale("OLD") +
+                " END");
+
+        // Keep the message counts of the folder list up to date
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS folder_count_insert" +
+                " AFTER INSERT ON message" +
+                " BEGIN " +
+                EntityFolderCount.getInsert("NEW") +
+                EntityFolderCount.getUpdate("NEW", "+") +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS folder_count_delete" +
+                " AFTER DELETE ON message" +
+                " BEGIN " +
+                EntityFolderCount.getUpdate("OLD", "-") +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS folder_count_update" +
+                " AFTER UPDATE ON message" +
+                " WHEN OLD.folder IS NOT NEW.folder" +
+                "  OR OLD.content IS NOT NEW.content" +
+                "  OR OLD.ui_seen IS NOT NEW.ui_seen" +
+                "  OR OLD.ui_flagged IS NOT NEW.ui_flagged" +
+                "  OR OLD.ui_hide IS NOT NEW.ui_hide" +
+                " BEGIN " +
+                EntityFolderCount.getUpdate("OLD", "-") +
+                EntityFolderCount.getInsert("NEW") +
+                EntityFolderCount.getUpdate("NEW", "+") +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS folder_count_folder" +
+                " AFTER DELETE ON folder" +
+                " BEGIN" +
+                "  DELETE FROM folder_count WHERE folder = OLD.id;" +
+                " END");
+    }
+
+    private static void refreshThreads(@NonNull SupportSQLiteDatabase db) {
+        // Recompute every changed conversation once instead of for every changed message
+        try (Cursor cursor = db.query("SELECT EXISTS (SELECT 1 FROM thread_stale)")) {
+            if (!cursor.moveToNext() || cursor.getInt(0) == 0)
+                return;
+        }
+        for (String sql : EntityThread.getRefresh())
+            db.execSQL(sql);
     }
 
     private static void logMigration(int startVersion, int endVersion) {
@@ -2841,6 +2950,50 @@ public abstract class DB extends RoomDatabase {
                         logMigration(startVersion, endVersion);
                         db.execSQL("ALTER TABLE `folder` ADD COLUMN `flags` TEXT");
                     }
+                }).addMigrations(new Migration(280, 281) {
+                    @Override
+                    public void migrate(@NonNull SupportSQLiteDatabase db) {
+                        logMigration(startVersion, endVersion);
+                        db.execSQL("CREATE TABLE IF NOT EXISTS `thread`" +
+                                " (`account` INTEGER NOT NULL, `thread` TEXT NOT NULL" +
+                                ", `count` INTEGER NOT NULL, `unseen` INTEGER NOT NULL, `unflagged` INTEGER NOT NULL" +
+                                ", `drafts` INTEGER NOT NULL, `visible` INTEGER NOT NULL, `visible_unseen` INTEGER NOT NULL" +
+                                ", `attachments` INTEGER NOT NULL, `snoozed` INTEGER NOT NULL, `total` INTEGER" +
+                                ", `received` INTEGER NOT NULL, `senders` TEXT, `recipients` TEXT" +
+                                ", PRIMARY KEY(`account`, `thread`))");
+                        db.execSQL("INSERT INTO `thread` (" + EntityThread.COLUMNS + ") " + EntityThread.getSummary("1"));
+                        createTriggers(db);
+                    }
+                }).addMigrations(new Migration(281, 282) {
+                    @Override
+                    public void migrate(@NonNull SupportSQLiteDatabase db) {
+                        logMigration(startVersion, endVersion);
+                        db.execSQL("CREATE TABLE IF NOT EXISTS `folder_count`" +
+                                " (`folder` INTEGER NOT NULL, `messages` INTEGER NOT NULL, `content` INTEGER NOT NULL" +
+                                ", `unseen` INTEGER NOT NULL, `flagged` INTEGER NOT NULL" +
+                                ", PRIMARY KEY(`folder`))");
+                        db.execSQL("INSERT INTO `folder_count` (" + EntityFolderCount.COLUMNS + ") " + EntityFolderCount.getSummary());
+                        createTriggers(db);
+                    }
+                }).addMigrations(new Migration(282, 283) {
+                    @Override
+                    public void migrate(@NonNull SupportSQLiteDatabase db) {
+                        logMigration(startVersion, endVersion);
+                        db.execSQL("CREATE TABLE IF NOT EXISTS `thread_stale`" +
+                                " (`account` INTEGER NOT NULL, `thread` TEXT NOT NULL" +
+                                ", PRIMARY KEY(`account`, `thread`))");
+                        db.execSQL("DROP TRIGGER IF EXISTS `thread_insert`");
+                        db.execSQL("DROP TRIGGER IF EXISTS `thread_delete`");
+                        db.execSQL("DROP TRIGGER IF EXISTS `thread_update`");
+                        db.execSQL("DROP TRIGGER IF EXISTS `thread_move`");
+                        createTriggers(db);
+                    }
+                }).addMigrations(new Migration(283, 284) {
+                    @Override
+                    public void migrate(@NonNull SupportSQLiteDatabase db) {
+                        logMigration(startVersion, endVersion);
+                        db.execSQL("ALTER TABLE `message` ADD COLUMN `ui_found_rank` INTEGER");
+                    }
                 })
                 .addMigrations(new Migration(998, 999) {
                     @Override
@@ -2934,17 +3087,25 @@ public abstract class DB extends RoomDatabase {
     @SuppressWarnings("deprecation")
     public void beginTransaction() {
         super.beginTransaction();
+        transactionDepth.set(transactionDepth.get() + 1);
     }
 
     @Override
     @SuppressWarnings("deprecation")
     public void setTransactionSuccessful() {
+        // Nested transactions, like DAO methods annotated with @Transaction, commit with the outermost one
+        if (transactionDepth.get() == 1)
+            refreshThreads(getOpenHelper().getWritableDatabase());
         super.setTransactionSuccessful();
     }
 
     @Override
     @SuppressWarnings("deprecation")
     public void endTransaction() {
+        int depth = transactionDepth.get();
+        if (depth > 0)
+            transactionDepth.set(depth - 1);
+
         try {
             super.endTransaction();
         } catch (Throwable ex) {
@@ -40,19 +40,16 @@ public interface DaoFolder {
             ", account.id AS accountId, account.pop AS accountProtocol, account.`order` AS accountOrder" +
             ", account.name AS accountName, account.category AS accountCategory, account.color AS accountColor" +
             ", account.state AS accountState, account.error AS accountError" +
-            ", COUNT(DISTINCT CASE WHEN rule.enabled THEN rule.id ELSE NULL END) rules" +
-            ", COUNT(DISTINCT message.id) AS messages" +
-            ", COUNT(DISTINCT CASE WHEN message.content = 1 THEN message.id ELSE NULL END) AS content" +
-            ", COUNT(DISTINCT CASE WHEN NOT message.ui_seen THEN message.id ELSE NULL END) AS unseen" +
-            ", COUNT(DISTINCT CASE WHEN message.ui_flagged THEN message.id ELSE NULL END) AS flagged" +
-            ", COUNT(DISTINCT CASE WHEN operation.state = 'executing' THEN operation.id ELSE NULL END) AS executing" +
+            ", (SELECT COUNT(*) FROM rule WHERE rule.folder = folder.id AND rule.enabled) AS rules" +
+            ", IFNULL(folder_count.messages, 0) AS messages" +
+            ", IFNULL(folder_count.content, 0) AS content" +
+            ", IFNULL(folder_count.unseen, 0) AS unseen" +
+            ", IFNULL(folder_count.flagged, 0) AS flagged" +
+            ", (SELECT COUNT(*) FROM operation WHERE operation.folder = folder.id AND operation.state = 'executing') AS executing" +
             " FROM folder" +
             " LEFT JOIN account ON account.id = folder.account" +
-            " LEFT JOIN message ON message.folder = folder.id AND NOT message.ui_hide" +
-            " LEFT JOIN rule ON rule.folder = folder.id" +
-            " LEFT JOIN operation ON operation.folder = folder.id" +
-            " WHERE folder.account = :account AND account.synchronize" +
-            " GROUP BY folder.id")
+            " LEFT JOIN folder_count ON folder_count.folder = folder.id" +
+            " WHERE folder.account = :account AND account.synchronize")
     List<TupleFolderEx> getFoldersEx(long account);
 
     @Query("SELECT folder.* FROM folder" +
@@ -80,44 +77,38 @@ public interface DaoFolder {
             ", account.id AS accountId, account.pop AS accountProtocol, account.`order` AS accountOrder" +
             ", account.name AS accountName, account.category AS accountCategory, account.color AS accountColor" +
             ", account.state AS accountState, account.error AS accountError" +
-            ", COUNT(DISTINCT CASE WHEN rule.enabled THEN rule.id ELSE NULL END) rules" +
-            ", COUNT(DISTINCT CASE WHEN message.ui_hide THEN NULL ELSE message.id END) AS messages" +
-            ", COUNT(DISTINCT CASE WHEN message.content = 1 AND NOT message.ui_hide THEN message.id ELSE NULL END) AS content" +
-            ", COUNT(DISTINCT CASE WHEN NOT message.ui_seen AND NOT message.ui_hide THEN message.id ELSE NULL END) AS unseen" +
-            ", COUNT(DISTINCT CASE WHEN message.ui_flagged AND NOT message.ui_hide THEN message.id ELSE NULL END) AS flagged" +
-            ", COUNT(DISTINCT CASE WHEN operation.state = 'executing' THEN operation.id ELSE NULL END) AS executing" +
+            ", (SELECT COUNT(*) FROM rule WHERE rule.folder = folder.id AND rule.enabled) AS rules" +
+            ", IFNULL(folder_count.messages, 0) AS messages" +
+            ", IFNULL(folder_count.content, 0) AS content" +
+            ", IFNULL(folder_count.unseen, 0) AS unseen" +
+            ", IFNULL(folder_count.flagged, 0) AS flagged" +
+            ", (SELECT COUNT(*) FROM operation WHERE operation.folder = folder.id AND operation.state = 'executing') AS executing" +
             " FROM folder" +
             " JOIN account ON account.id = folder.account" +
-            " LEFT JOIN message ON message.folder = folder.id" +
-            " LEFT JOIN rule ON rule.folder = folder.id" +
-            " LEFT JOIN operation ON operation.folder = folder.id" +
+            " LEFT JOIN folder_count ON folder_count.folder = folder.id" +
             " WHERE CASE WHEN :primary THEN account.`primary` ELSE" +
             "  CASE WHEN :account IS NULL" +
             "   THEN folder.unified AND account.synchronize" +
             "   ELSE folder.account = :account AND account.synchronize" +
             "  END" +
-            " END" +
-            " GROUP BY folder.id")
+            " END")
     LiveData<List<TupleFolderEx>> liveFolders(Long account, boolean primary);
 
     @Query("SELECT folder.*" +
             ", account.id AS accountId, account.pop AS accountProtocol, account.`order` AS accountOrder" +
             ", account.name AS accountName, account.category AS accountCategory, account.color AS accountColor" +
             ", account.state AS accountState, account.error AS accountError" +
-            ", COUNT(DISTINCT CASE WHEN rule.enabled THEN rule.id ELSE NULL END) rules" +
-            ", COUNT(DISTINCT message.id) AS messages" +
-            ", COUNT(DISTINCT CASE WHEN message.content = 1 THEN message.id ELSE NULL END) AS content" +
-            ", COUNT(DISTINCT CASE WHEN NOT message.ui_seen THEN message.id ELSE NULL END) AS unseen" +
-            ", COUNT(DISTINCT CASE WHEN message.ui_flagged THEN message.id ELSE NULL END) AS flagged" +
-            ", COUNT(DISTINCT CASE WHEN operation.state = 'executing' THEN operation.id ELSE NULL END) AS executing" +
+            ", (SELECT COUNT(*) FROM rule WHERE rule.folder = folder.id AND rule.enabled) AS rules" +
+            ", IFNULL(folder_count.messages, 0) AS messages" +
+            ", IFNULL(folder_count.content, 0) AS content" +
+            ", IFNULL(folder_count.unseen, 0) AS unseen" +
+            ", IFNULL(folder_count.flagged, 0) AS flagged" +
+            ", (SELECT COUNT(*) FROM operation WHERE operation.folder = folder.id AND operation.state = 'executing') AS executing" +
             " FROM folder" +
             " JOIN account ON account.id = folder.account" +
-            " LEFT JOIN message ON message.folder = folder.id AND NOT message.ui_hide" +
-            " LEFT JOIN rule ON rule.folder = folder.id" +
-            " LEFT JOIN operation ON operation.folder = folder.id" +
+            " LEFT JOIN folder_count ON folder_count.folder = folder.id" +
             " WHERE account.`synchronize`" +
-            " AND ((:type IS NULL AND folder.unified) OR folder.type = :type)" +
-            " GROUP BY folder.id")
+            " AND ((:type IS NULL AND folder.unified) OR folder.type = :type)")
     LiveData<List<TupleFolderEx>> liveUnified(String type);
 
     @Query("SELECT folder.account, folder.id AS folder, unified, sync_state" +
@@ -132,19 +123,16 @@ public interface DaoFolder {
             ", account.id AS accountId, account.pop AS accountProtocol, account.`order` AS accountOrder" +
             ", account.name AS accountName, account.category AS accountCategory, account.color AS accountColor" +
             ", account.state AS accountState, account.error AS accountError" +
-            ", COUNT(DISTINCT CASE WHEN rule.enabled THEN rule.id ELSE NULL END) rules" +
-            ", COUNT(DISTINCT message.id) AS messages" +
-            ", COUNT(DISTINCT CASE WHEN message.content = 1 THEN message.id ELSE NULL END) AS content" +
-            ", COUNT(DISTINCT CASE WHEN NOT message.ui_seen THEN message.id ELSE NULL END) AS unseen" +
-            ", COUNT(DISTINCT CASE WHEN message.ui_flagged THEN message.id ELSE NULL END) AS flagged" +
-            ", COUNT(DISTINCT CASE WHEN operation.state = 'executing' THEN operation.id ELSE NULL END) AS executing" +
+            ", (SELECT COUNT(*) FROM rule WHERE rule.folder = folder.id AND rule.enabled) AS rules" +
+            ", IFNULL(folder_count.messages, 0) AS messages" +
+            ", IFNULL(folder_count.content, 0) AS content" +
+            ", IFNULL(folder_count.unseen, 0) AS unseen" +
+            ", IFNULL(folder_count.flagged, 0) AS flagged" +
+            ", (SELECT COUNT(*) FROM operation WHERE operation.folder = folder.id AND operation.state = 'executing') AS executing" +
             " FROM folder" +
             " LEFT JOIN account ON account.id = folder.account" +
-            " LEFT JOIN message ON message.folder = folder.id AND NOT message.ui_hide" +
-            " LEFT JOIN rule ON rule.folder = folder.id" +
-            " LEFT JOIN operation ON operation.folder = folder.id" +
-            " WHERE folder.id = :id" +
-            " GROUP BY folder.id")
+            " LEFT JOIN folder_count ON folder_count.folder = folder.id" +
+            " WHERE folder.id = :id")
     LiveData<TupleFolderEx> liveFolderEx(long id);
 
     @Query(TupleFolderView.query)
@@ -182,13 +170,13 @@ public interface DaoFolder {
 
     @Query("SELECT folder.type, folder.unified" +
             ", COUNT(DISTINCT folder.id) AS folders" +
-            ", COUNT(message.id) AS messages" +
-            ", SUM(CASE WHEN NOT message.ui_seen THEN 1 ELSE 0 END) AS unseen" +
+            ", IFNULL(SUM(folder_count.messages), 0) AS messages" +
+            ", IFNULL(SUM(folder_count.unseen), 0) AS unseen" +
             ", CASE WHEN folder.account IS NULL THEN folder.sync_state ELSE NULL END AS sync_state" +
             ", folder.color, COUNT (DISTINCT folder.color) AS colorCount" +
             " FROM folder" +
             " LEFT JOIN account ON account.id = folder.account" +
-            " LEFT JOIN message ON message.folder = folder.id AND NOT message.ui_hide" +
+            " LEFT JOIN folder_count ON folder_count.folder = folder.id" +
             " WHERE (account.id IS NULL OR account.synchronize)" +
             " AND ((folder.type <> '" + EntityFolder.SYSTEM + "'" +
             " AND folder.type <> '" + EntityFolder.USER + "')" +
@@ -44,6 +44,11 @@ public interface DaoMessage {
     String is_sent = "folder.type = '" + EntityFolder.SENT + "'";
     String is_outgoing = is_drafts + " OR " + is_outbox + " OR " + is_sent;
 
+    // Ranked search results first, in the order of the search index
+    // No aggregate to keep 'dummy' selecting the bare columns
+    String found_rank = ", CASE WHEN :found THEN message.ui_found_rank IS NULL ELSE 0 END" +
+            ", CASE WHEN :found THEN message.ui_found_rank ELSE 0 END";
+
     @Transaction
     @SuppressWarnings(RoomWarnings.CURSOR_MISMATCH)
     @Query("SELECT message.*" +
@@ -102,6 +107,7 @@ public interface DaoMessage {
             " AND (NOT :filter_deleted OR NOT message.ui_deleted)" +
             " AND (:filter_language IS NULL OR SUM(message.language = :filter_language) > 0)" +
             " ORDER BY CASE WHEN :found THEN 0 ELSE -IFNULL(message.importance, 1) END" +
+            found_rank +
             ", CASE WHEN :group_category THEN account.category ELSE '' END COLLATE NOCASE" +
             ", CASE" +
             "   WHEN 'unread' = :sort THEN SUM(1 - message.ui_seen) = 0" +
@@ -177,6 +183,7 @@ public interface DaoMessage {
             " AND (NOT :filter_deleted OR NOT message.ui_deleted)" +
             " AND (:filter_language IS NULL OR SUM(message.language = :filter_language) > 0 OR " + is_outbox + ")" +
             " ORDER BY CASE WHEN :found THEN 0 ELSE -IFNULL(message.importance, 1) END" +
+            found_rank +
             ", CASE" +
             "   WHEN 'unread' = :sort THEN SUM(1 - message.ui_seen) = 0" +
             "   WHEN 'starred' = :sort THEN COUNT(message.id) - SUM(1 - message.ui_flagged) = 0" +
@@ -196,6 +203,92 @@ public interface DaoMessage {
             boolean found,
             boolean debug);
 
+    String thread_summary = ", IFNULL(thread.senders, '[' || message.`from` || ']') AS senders" +
+            ", IFNULL(thread.recipients, '[' || message.`to` || ']') AS recipients" +
+            ", IFNULL(thread.count, 1) AS count" +
+            ", IFNULL(thread.unseen, 1 - message.ui_seen) AS unseen" +
+            ", IFNULL(thread.unflagged, 1 - message.ui_flagged) AS unflagged" +
+            ", IFNULL(thread.drafts, folder.type = '" + EntityFolder.DRAFTS + "') AS drafts" +
+            ", IFNULL(thread.visible, 1) AS visible" +
+            ", IFNULL(thread.visible_unseen, 1 - message.ui_seen) AS visible_unseen" +
+            ", IFNULL(thread.attachments, message.attachments) AS totalAttachments" +
+            ", CASE WHEN thread.thread IS NULL THEN message.total ELSE thread.total END AS totalSize" +
+            ", message.priority AS ui_priority" +
+            ", message.importance AS ui_importance" +
+            ", MAX(message.received) AS dummy";
+
+    String thread_order = ", CASE" +
+            "   WHEN 'unread' = :sort THEN IFNULL(thread.unseen, 1 - message.ui_seen) = 0" +
+            "   WHEN 'starred' = :sort THEN IFNULL(thread.count - thread.unflagged, message.ui_flagged) = 0" +
+            "   WHEN 'priority' = :sort THEN -IFNULL(message.priority, 1)" +
+            "   WHEN 'sender' = :sort THEN LOWER(message.sender)" +
+            "   WHEN 'subject' = :sort THEN LOWER(message.subject)" +
+            "   WHEN 'size' = :sort THEN -(CASE WHEN thread.thread IS NULL THEN message.total ELSE thread.total END)" +
+            "   WHEN 'attachments' = :sort THEN -IFNULL(thread.attachments, message.attachments)" +
+            "   WHEN 'snoozed' = :sort THEN IFNULL(thread.snoozed, message.ui_snoozed IS NOT NULL) = 0" +
+            "   ELSE 0" +
+            "  END" +
+            ", CASE WHEN :ascending THEN message.received ELSE -message.received END";
+
+    // Same as pagedUnified with threading, but with the conversation aggregates of the thread table
+    @Transaction
+    @SuppressWarnings(RoomWarnings.CURSOR_MISMATCH)
+    @Query("SELECT message.*" +
+            ", account.pop AS accountProtocol, account.name AS accountName, account.category AS accountCategory, COALESCE(identity.color, folder.color, account.color) AS accountColor" +
+            ", account.notify AS accountNotify, account.summary AS accountSummary, account.leave_deleted AS accountLeaveDeleted, account.auto_seen AS accountAutoSeen" +
+            ", folder.name AS folderName, folder.color AS folderColor, folder.display AS folderDisplay, folder.type AS folderType, NULL AS folderInheritedType, folder.unified AS folderUnified, folder.read_only AS folderReadOnly" +
+            ", IFNULL(identity.display, identity.name) AS identityName, identity.email AS identityEmail, identity.color AS identityColor, identity.synchronize AS identitySynchronize" +
+            thread_summary +
+            " FROM message" +
+            " JOIN account_view AS account ON account.id = message.account" +
+            " LEFT JOIN identity_view AS identity ON identity.id = message.identity" +
+            " JOIN folder_view AS folder ON folder.id = message.folder" +
+            " LEFT JOIN thread ON thread.account = message.account AND thread.thread = message.thread" +
+            " WHERE account.`synchronize`" +
+            " AND ((:type IS NULL AND folder.unified) OR (:type IS NOT NULL AND folder.type = :type))" +
+            " AND NOT message.ui_hide" +
+            " GROUP BY message.account, CASE WHEN message.thread IS NULL THEN message.id ELSE message.thread END" +
+            " HAVING (NOT :filter_seen OR IFNULL(thread.unseen, 1 - message.ui_seen) > 0)" +
+            " AND (NOT :filter_unflagged OR IFNULL(thread.count - thread.unflagged, message.ui_flagged) > 0)" +
+            " AND (NOT :filter_snoozed OR message.ui_snoozed IS NULL OR " + is_drafts + ")" +
+            " AND (NOT :filter_deleted OR NOT message.ui_deleted)" +
+            " ORDER BY -IFNULL(message.importance, 1)" +
+            ", CASE WHEN :group_category THEN account.category ELSE '' END COLLATE NOCASE" +
+            thread_order)
+    DataSource.Factory<Integer, TupleMessageEx> pagedUnifiedThreads(
+            String type,
+            boolean group_category,
+            String sort, boolean ascending,
+            boolean filter_seen, boolean filter_unflagged, boolean filter_snoozed, boolean filter_deleted);
+
+    // Same as pagedFolder with threading, but with the conversation aggregates of the thread table
+    @Transaction
+    @SuppressWarnings(RoomWarnings.CURSOR_MISMATCH)
+    @Query("SELECT message.*" +
+            ", account.pop AS accountProtocol, account.name AS accountName, account.category AS accountCategory, COALESCE(identity.color, folder.color, account.color) AS accountColor" +
+            ", account.notify AS accountNotify, account.summary AS accountSummary, account.leave_deleted AS accountLeaveDeleted, account.auto_seen AS accountAutoSeen" +
+            ", folder.name AS folderName, folder.color AS folderColor, folder.display AS folderDisplay, folder.type AS folderType, folder.inherited_type AS folderInheritedType, folder.unified AS folderUnified, folder.read_only AS folderReadOnly" +
+            ", IFNULL(identity.display, identity.name) AS identityName, identity.email AS identityEmail, identity.color AS identityColor, identity.synchronize AS identitySynchronize" +
+            thread_summary +
+            " FROM message" +
+            " JOIN account_view AS account ON account.id = message.account" +
+            " LEFT JOIN identity_view AS identity ON identity.id = message.identity" +
+            " JOIN folder_view AS folder ON folder.id = message.folder" +
+            " LEFT JOIN thread ON thread.account = message.account AND thread.thread = message.thread" +
+            " WHERE message.folder = :folder" +
+            " AND NOT message.ui_hide" +
+            " GROUP BY message.account, CASE WHEN message.thread IS NULL THEN message.id ELSE message.thread END" +
+            " HAVING (NOT :filter_seen OR IFNULL(thread.unseen, 1 - message.ui_seen) > 0 OR " + is_outbox + ")" +
+            " AND (NOT :filter_unflagged OR IFNULL(thread.count - thread.unflagged, message.ui_flagged) > 0 OR " + is_outbox + ")" +
+            " AND (NOT :filter_snoozed OR message.ui_snoozed IS NULL OR " + is_outbox + " OR " + is_drafts + ")" +
+            " AND (NOT :filter_deleted OR NOT message.ui_deleted)" +
+            " ORDER BY -IFNULL(message.importance, 1)" +
+            thread_order)
+    DataSource.Factory<Integer, TupleMessageEx> pagedFolderThreads(
+            long folder,
+            String sort, boolean ascending,
+            boolean filter_seen, boolean filter_unflagged, boolean filter_snoozed, boolean filter_deleted);
+
     @Transaction
     @Query("SELECT message.*" +
             ", account.pop AS accountProtocol, account.name AS accountName, account.category AS accountCategory, COALESCE(identity.color, folder.color, account.color) AS accountColor" +
@@ -311,6 +404,11 @@ public interface DaoMessage {
             " WHERE id = :id")
     EntityMessage getMessage(long id);
 
+    @Query("SELECT *" +
+            " FROM message" +
+            " WHERE id IN (:ids)")
+    List<EntityMessage> getMessages(List<Long> ids);
+
     @Query("SELECT *" +
             " FROM message" +
             " WHERE folder = :folder" +
@@ -380,6 +478,30 @@ public interface DaoMessage {
             Long after, Long before,
             int limit, int offset);
 
+    @Query("SELECT message.id" +
+            " FROM message" +
+            " LEFT JOIN attachment ON attachment.message = message.id" +
+            " WHERE message.id IN (:ids)" +
+            " AND NOT ui_hide" +
+            " AND (NOT :unseen OR NOT ui_seen)" +
+            " AND (NOT :flagged OR ui_flagged)" +
+            " AND (NOT :hidden OR NOT ui_snoozed IS NULL)" +
+            " AND (NOT :encrypted OR encrypt > 0)" +
+            " AND (NOT :with_attachments OR attachments > 0)" +
+            " AND (NOT :with_notes OR NOT `notes` IS NULL)" +
+            " AND (:type_count = 0 OR attachment.type IN (:types))" +
+            " AND (:size IS NULL OR total >= :size)" +
+            " AND (:after IS NULL OR received >= :after)" +
+            " AND (:before IS NULL OR received <= :before)" +
+            " AND NOT message.folder IN (:exclude)" +
+            " GROUP BY message.id")
+    List<Long> getMatchingIds(
+            List<Long> ids, long[] exclude,
+            boolean unseen, boolean flagged, boolean hidden, boolean encrypted, boolean with_attachments, boolean with_notes,
+            int type_count, String[] types,
+            Integer size,
+            Long after, Long before);
+
     @Query("SELECT id" +
             " FROM message" +
             " WHERE content" +
@@ -907,10 +1029,14 @@ public interface DaoMessage {
             "   OR (:folder IS NULL AND :type IS NULL AND unified)))")
     int ignoreAll(Long account, Long folder, String type);
 
-    @Query("UPDATE message SET ui_found = :found WHERE id = :id AND NOT (ui_found IS :found)")
+    @Query("UPDATE message SET ui_found = :found, ui_found_rank = NULL WHERE id = :id AND NOT (ui_found IS :found)")
     int setMessageFound(long id, boolean found);
 
-    @Query("UPDATE message SET ui_found = 0 WHERE NOT (ui_found IS 0)")
+    @Query("UPDATE message SET ui_found = 1, ui_found_rank = :rank" +
+            " WHERE id = :id AND NOT (ui_found IS 1 AND ui_found_rank IS :rank)")
+    int setMessageFound(long id, int rank);
+
+    @Query("UPDATE message SET ui_found = 0, ui_found_rank = NULL WHERE NOT (ui_found IS 0) OR ui_found_rank IS NOT NULL")
     int resetSearch();
 
     @Query("UPDATE message SET ui_snoozed = :wakeup WHERE id = :id AND NOT (ui_snoozed IS :wakeup)")
@@ -949,6 +1075,11 @@ public interface DaoMessage {
             " AND uid = :uid")
     int deleteMessage(long folder, long uid);
 
+    @Query("DELETE FROM message" +
+            " WHERE folder = :folder" +
+            " AND uid BETWEEN :first AND :last")
+    int deleteMessages(long folder, long first, long last);
+
     @Query("DELETE FROM message" +
             " WHERE folder = :folder" +
             " AND NOT uid IS NULL")
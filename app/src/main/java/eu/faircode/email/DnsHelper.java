@@ -48,10 +48,19 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.mail.Address;
 import javax.mail.internet.InternetAddress;
@@ -61,6 +70,25 @@ public class DnsHelper {
     private static final String DEFAULT_DNS = "84.200.69.80";
     private static final int CHECK_TIMEOUT = 5; // seconds
     private static final int LOOKUP_TIMEOUT = 15; // seconds
+    private static final int CACHE_SIZE = 500; // entries
+    private static final long CACHE_MIN_TTL = 60; // seconds
+    private static final long CACHE_MAX_TTL = 24 * 3600L; // seconds
+    private static final long CACHE_NEGATIVE_TTL = 5 * 60L; // seconds
+
+    private static final Map<String, CacheEntry> cache = new LinkedHashMap<String, CacheEntry>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+            return (size() > CACHE_SIZE);
+        }
+    };
+    private static final Map<String, FutureTask<CacheEntry>> pending = new HashMap<>();
+
+    static void clearCache() {
+        Log.i("DNS clear cache");
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
 
     static void checkMx(Context context, Address[] addresses) throws UnknownHostException {
         if (addresses == null)
@@ -109,8 +137,66 @@ public class DnsHelper {
                 throw new IllegalArgumentException(type);
         }
 
+        // Identical concurrent queries wait for the first one
+        // Answers depend on the resolver, for example of a VPN or private DNS
+        String server = getDnsServer(context);
+        String key = server + "/" + type + ":" + name.toLowerCase(Locale.ROOT);
+        FutureTask<CacheEntry> task;
+        boolean owner = false;
+        synchronized (cache) {
+            CacheEntry entry = cache.get(key);
+            if (entry != null)
+                if (entry.isExpired())
+                    cache.remove(key);
+                else {
+                    Log.i("DNS cached " + key + " found=" + (entry.records != null));
+                    return entry.getRecords(name);
+                }
+
+            task = pending.get(key);
+            if (task == null) {
+                task = new FutureTask<>(new Callable<CacheEntry>() {
+                    @Override
+                    public CacheEntry call() throws Exception {
+                        return _lookup(server, name, rtype, timeout);
+                    }
+                });
+                pending.put(key, task);
+                owner = true;
+            }
+        }
+
+        if (owner)
+            try {
+                task.run();
+            } finally {
+                synchronized (cache) {
+                    pending.remove(key);
+                }
+            }
+
         try {
-            SimpleResolver resolver = new SimpleResolver(getDnsServer(context)) {
+            CacheEntry entry = task.get(timeout, TimeUnit.SECONDS);
+            if (entry.ttl > 0)
+                synchronized (cache) {
+                    cache.put(key, entry);
+                }
+            return entry.getRecords(name);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new UnknownHostException(name + " " + cause);
+        } catch (InterruptedException | TimeoutException ex) {
+            Log.i("DNS error=" + ex);
+            return new DnsRecord[0];
+        }
+    }
+
+    @NonNull
+    private static CacheEntry _lookup(String server, String name, int rtype, int timeout) {
+        try {
+            SimpleResolver resolver = new SimpleResolver(server) {
                 private IOException ex;
                 private Message result;
 
@@ -190,15 +276,18 @@ public class DnsHelper {
 
             if (lookup.getResult() == Lookup.HOST_NOT_FOUND ||
                     lookup.getResult() == Lookup.TYPE_NOT_FOUND)
-                throw new UnknownHostException(name);
+                return new CacheEntry(null, CACHE_NEGATIVE_TTL);
             else if (lookup.getResult() != Lookup.SUCCESSFUL)
                 Log.i("DNS error=" + lookup.getErrorString());
 
             List<DnsRecord> result = new ArrayList<>();
 
+            // Transient errors are not cached
+            long ttl = (lookup.getResult() == Lookup.SUCCESSFUL ? CACHE_MAX_TTL : 0);
             if (records != null)
                 for (Record record : records) {
                     Log.i("Found record=" + record);
+                    ttl = Math.min(ttl, Math.max(CACHE_MIN_TTL, record.getTTL()));
                     if (record instanceof NSRecord) {
                         NSRecord ns = (NSRecord) record;
                         result.add(new DnsRecord(ns.getTarget().toString(true)));
@@ -241,13 +330,17 @@ public class DnsHelper {
                         throw new IllegalArgumentException(record.getClass().getName());
                 }
 
+            // A successful answer without records is a negative answer too
+            if (result.size() == 0)
+                ttl = Math.min(ttl, CACHE_NEGATIVE_TTL);
+
             for (DnsRecord record : result)
                 record.query = name;
 
-            return result.toArray(new DnsRecord[0]);
+            return new CacheEntry(result.toArray(new DnsRecord[0]), ttl);
         } catch (TextParseException ex) {
             Log.e(ex);
-            return new DnsRecord[0];
+            return new CacheEntry(new DnsRecord[0], 0);
         }
     }
 
@@ -285,6 +378,30 @@ public class DnsHelper {
             return dns.get(0).getHostAddress();
     }
 
+    private static class CacheEntry {
+        private final long time;
+        private final long ttl; // seconds
+        private final DnsRecord[] records; // null: not found
+
+        CacheEntry(DnsRecord[] records, long ttl) {
+            this.time = new Date().getTime();
+            this.ttl = ttl;
+            this.records = records;
+        }
+
+        boolean isExpired() {
+            return (new Date().getTime() - this.time > this.ttl * 1000L);
+        }
+
+        @NonNull
+        DnsRecord[] getRecords(String name) throws UnknownHostException {
+            if (records == null)
+                throw new UnknownHostException(name);
+            // Callers might sort the array
+            return records.clone();
+        }
+    }
+
     static class DnsRecord {
         String query;
         String response;
@@ -48,14 +48,18 @@ import com.sun.mail.util.TraceOutputStream;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.ConnectException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
@@ -73,6 +77,13 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import javax.mail.AuthenticationFailedException;
@@ -84,11 +95,14 @@ import javax.mail.Session;
 import javax.mail.Store;
 import javax.mail.event.StoreListener;
 import javax.net.SocketFactory;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
@@ -136,11 +150,15 @@ public class EmailService implements AutoCloseable {
 
     private final static int MAX_IPV4 = 2;
     private final static int MAX_IPV6 = 1;
+    private final static int CONNECTION_ATTEMPT_DELAY = 250; // milliseconds
 
     private final static int TCP_KEEP_ALIVE_INTERVAL = 9 * 60; // seconds
 
     private static final int APPEND_BUFFER_SIZE = 4 * 1024 * 1024; // bytes
 
+    private static final ExecutorService executor =
+            Helper.getBackgroundExecutor(0, "connect");
+
     // https://developer.android.com/reference/javax/net/ssl/SSLSocket.html#protocols
     private static final List<String> SSL_PROTOCOL_BLACKLIST = Collections.unmodifiableList(Arrays.asList(
             "SSLv2", "SSLv3", "TLSv1", "TLSv1.1"
@@ -314,6 +332,14 @@ public class EmailService implements AutoCloseable {
         properties.put("mail." + protocol + ".ignorebodystructuresize", Boolean.toString(enabled));
     }
 
+    void setUseSocketChannels(boolean enabled) {
+        // Required by the IDLE manager
+        properties.put("mail." + protocol + ".usesocketchannels", Boolean.toString(enabled));
+        // Deliver the events of all folders with one thread
+        if (enabled)
+            properties.put("mail.event.scope", "session");
+    }
+
     void setUseIp(boolean enabled, String host) {
         this.useip = enabled;
         this.ehlo = host;
@@ -334,7 +360,10 @@ public class EmailService implements AutoCloseable {
 
     // https://tools.ietf.org/html/rfc3461
     void setDsnNotify(String what) {
-        properties.put("mail." + protocol + ".dsn.notify", what);
+        if (what == null)
+            properties.remove("mail." + protocol + ".dsn.notify");
+        else
+            properties.put("mail." + protocol + ".dsn.notify", what);
     }
 
     void setReporter(TraceOutputStream.IReport reporter) {
@@ -441,7 +470,8 @@ public class EmailService implements AutoCloseable {
                     }
                 }
 
-            factory = new SSLSocketFactoryService(host, insecure, ssl_harden, strict, cert_strict, key, chain, fingerprint);
+            factory = SSLSocketFactoryService.getInstance(
+                    host, insecure, ssl_harden, strict, cert_strict, key, chain, fingerprint, user + "/" + certificate);
             properties.put("mail." + protocol + ".ssl.socketFactory", factory);
             properties.put("mail." + protocol + ".socketFactory.fallback", "false");
             properties.put("mail." + protocol + ".ssl.checkserveridentity", "false");
@@ -589,6 +619,8 @@ public class EmailService implements AutoCloseable {
         crumb.put("auth", Integer.toString(auth));
 
         InetAddress main = null;
+        Socket winner = null;
+        boolean raced = false;
         boolean require_id = (purpose == PURPOSE_CHECK &&
                 auth == AUTH_TYPE_OAUTH &&
                 "outlook.office365.com".equals(host));
@@ -601,38 +633,65 @@ public class EmailService implements AutoCloseable {
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 
             String key = "dns." + host;
+            InetAddress[] iaddrs;
             try {
-                main = InetAddress.getByName(host);
-                EntityLog.log(context, EntityLog.Type.Network, "Main address=" + main);
-                prefs.edit().putString(key, main.getHostAddress()).apply();
+                iaddrs = InetAddress.getAllByName(host);
+                EntityLog.log(context, EntityLog.Type.Network, "Main address=" + iaddrs[0] + " count=" + iaddrs.length);
             } catch (UnknownHostException ex) {
                 String last = prefs.getString(key, null);
                 if (TextUtils.isEmpty(last))
                     throw new MessagingException(ex.getMessage(), ex);
                 else {
                     EntityLog.log(context, EntityLog.Type.Network, "Using " + key + "=" + last);
-                    main = InetAddress.getByName(last);
+                    iaddrs = new InetAddress[]{InetAddress.getByName(last)};
                 }
             }
 
+            // Start with the address family which connected last time
+            String fkey = "family." + host;
             boolean prefer_ip4 = prefs.getBoolean("prefer_ip4", true);
-            if (prefer_ip4 && main instanceof Inet6Address) {
-                boolean[] has46 = ConnectionHelper.has46(context);
-                if (has46[0])
+            int family = prefs.getInt(fkey, prefer_ip4 ? 4 : 0);
+            List<InetAddress> candidates = getCandidates(iaddrs, family, ConnectionHelper.has46(context));
+            if (candidates.size() == 0)
+                candidates.add(iaddrs[0]);
+
+            if (candidates.size() == 1)
+                main = candidates.get(0);
+            else
+                try {
+                    winner = race(candidates, port);
+                    main = winner.getInetAddress();
+                } catch (IOException ex) {
+                    // All addresses were tried already
+                    raced = true;
+                    throw new MessagingException(ex.getMessage(), ex);
+                }
+
+            prefs.edit()
+                    .putString(key, main.getHostAddress())
+                    .putInt(fkey, main instanceof Inet6Address ? 6 : 4)
+                    .apply();
+
+            Log.breadcrumb("Connecting", crumb);
+            if (winner instanceof RacedSocket) {
+                // Let JavaMail use the connection of the race instead of connecting again
+                RacedSocketFactory rsf = new RacedSocketFactory(winner);
+                try {
+                    properties.put("fairemail.factory", rsf);
+                    _connect(main, port, require_id, user, factory);
+                } finally {
+                    properties.remove("fairemail.factory");
+                    rsf.close();
+                }
+            } else {
+                if (winner != null)
                     try {
-                        for (InetAddress iaddr : InetAddress.getAllByName(host))
-                            if (iaddr instanceof Inet4Address) {
-                                main = iaddr;
-                                EntityLog.log(context, EntityLog.Type.Network, "Preferring=" + main);
-                                break;
-                            }
-                    } catch (UnknownHostException ex) {
+                        winner.close();
+                    } catch (IOException ex) {
                         Log.w(ex);
                     }
+                _connect(main, port, require_id, user, factory);
             }
-
-            Log.breadcrumb("Connecting", crumb);
-            _connect(main, port, require_id, user, factory);
             Log.breadcrumb("Connected", crumb);
         } catch (UnknownHostException ex) {
             crumb.put("exception", ex + "\n" + android.util.Log.getStackTraceString(ex));
@@ -691,14 +750,14 @@ public class EmailService implements AutoCloseable {
             boolean ioError = false;
             Throwable ce = ex;
             while (ce != null) {
-                if (factory != null && ce instanceof CertificateException)
-                    throw new UntrustedException(ex, factory.certificate);
+                if (ce instanceof ServerCertificateException)
+                    throw new UntrustedException(ex, ((ServerCertificateException) ce).certificate);
                 if (ce instanceof IOException)
                     ioError = true;
                 ce = ce.getCause();
             }
 
-            if (ioError) {
+            if (ioError && !raced) {
                 EntityLog.log(context, EntityLog.Type.Network, "Connect ex=" +
                         ex.getClass().getName() + ":" +
                         ex + "\n" + android.util.Log.getStackTraceString(ex));
@@ -753,6 +812,119 @@ public class EmailService implements AutoCloseable {
         }
     }
 
+    @NonNull
+    private static List<InetAddress> getCandidates(InetAddress[] iaddrs, int family, boolean[] has46) {
+        List<InetAddress> ip4 = new ArrayList<>();
+        List<InetAddress> ip6 = new ArrayList<>();
+        for (InetAddress iaddr : iaddrs)
+            if (iaddr instanceof Inet4Address) {
+                if (has46[0] && ip4.size() < MAX_IPV4)
+                    ip4.add(iaddr);
+            } else if (iaddr instanceof Inet6Address) {
+                if (has46[1] && ip6.size() < MAX_IPV6)
+                    ip6.add(iaddr);
+            }
+
+        // https://datatracker.ietf.org/doc/html/rfc8305#section-4
+        boolean first4 = (family == 4 ||
+                (family == 0 && iaddrs.length > 0 && iaddrs[0] instanceof Inet4Address));
+        List<InetAddress> first = (first4 ? ip4 : ip6);
+        List<InetAddress> second = (first4 ? ip6 : ip4);
+
+        List<InetAddress> result = new ArrayList<>();
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size())
+                result.add(first.get(i));
+            if (i < second.size())
+                result.add(second.get(i));
+        }
+        return result;
+    }
+
+    private Socket race(List<InetAddress> iaddrs, int port) throws IOException {
+        // Happy eyeballs: start connecting to the next address when the previous one is slow or failed
+        int timeout = Integer.parseInt(properties.getProperty(
+                "mail." + protocol + ".connectiontimeout", Integer.toString(DEFAULT_CONNECT_TIMEOUT * 1000)));
+        SocketFactory sf = (SocketFactory) properties.get("fairemail.factory");
+
+        List<Socket> sockets = new ArrayList<>();
+        ObjectHolder<Socket> winner = new ObjectHolder<>();
+        ObjectHolder<Boolean> finished = new ObjectHolder<>(false);
+        ExecutorCompletionService<Socket> cs = new ExecutorCompletionService<>(executor);
+
+        long start = new Date().getTime();
+        int started = 0;
+        int completed = 0;
+        boolean next = true;
+        try {
+            while (true) {
+                if (next && started < iaddrs.size()) {
+                    InetAddress iaddr = iaddrs.get(started++);
+                    EntityLog.log(context, EntityLog.Type.Network, "Racing " + iaddr + ":" + port);
+                    cs.submit(new Callable<Socket>() {
+                        @Override
+                        public Socket call() throws Exception {
+                            // Sockets of a bound network cannot be handed over
+                            Socket socket = (sf == null ? new RacedSocket() : sf.createSocket());
+                            synchronized (sockets) {
+                                if (finished.value)
+                                    throw new IOException("Race finished");
+                                sockets.add(socket);
+                            }
+                            try {
+                                socket.connect(new InetSocketAddress(iaddr, port), timeout);
+                                return socket;
+                            } catch (IOException ex) {
+                                socket.close();
+                                throw ex;
+                            }
+                        }
+                    });
+                }
+                next = false;
+
+                Future<Socket> done = cs.poll(
+                        started < iaddrs.size() ? CONNECTION_ATTEMPT_DELAY : timeout + CONNECTION_ATTEMPT_DELAY,
+                        TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    if (started < iaddrs.size()) {
+                        next = true;
+                        continue;
+                    }
+                    throw new SocketTimeoutException("Racing " + iaddrs + " timeout=" + timeout);
+                }
+
+                completed++;
+                try {
+                    winner.value = done.get();
+                    EntityLog.log(context, EntityLog.Type.Network, "Race winner=" + winner.value.getInetAddress() +
+                            " elapsed=" + (new Date().getTime() - start) + " ms");
+                    return winner.value;
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    EntityLog.log(context, EntityLog.Type.Network, "Race ex=" + cause);
+                    if (completed == iaddrs.size())
+                        throw (cause instanceof IOException ? (IOException) cause : new IOException(cause));
+                    next = true;
+                }
+            }
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException(ex.getMessage());
+        } finally {
+            // Abort connection attempts still in progress
+            synchronized (sockets) {
+                finished.value = true;
+                for (Socket socket : sockets)
+                    if (socket != winner.value)
+                        try {
+                            socket.close();
+                        } catch (IOException ex) {
+                            Log.w(ex);
+                        }
+            }
+        }
+    }
+
     private void _connect(
             InetAddress address, int port, boolean require_id, String user,
             SSLSocketFactoryService factory) throws MessagingException {
@@ -981,6 +1153,66 @@ public class EmailService implements AutoCloseable {
         EntityLog.log(context, EntityLog.Type.Protocol, "Dump end " + tag);
     }
 
+    private static class RacedSocket extends Socket {
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            // Already connected to the winning address
+            if (isConnected() && !isClosed() && endpoint.equals(getRemoteSocketAddress()))
+                return;
+            super.connect(endpoint, timeout);
+        }
+    }
+
+    private static class RacedSocketFactory extends SocketFactory {
+        private Socket socket;
+        private SocketFactory factory = SocketFactory.getDefault();
+
+        RacedSocketFactory(Socket socket) {
+            this.socket = socket;
+        }
+
+        synchronized void close() {
+            if (socket != null)
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    Log.w(ex);
+                } finally {
+                    socket = null;
+                }
+        }
+
+        @Override
+        public synchronized Socket createSocket() throws IOException {
+            // Only the first connection uses the socket of the race
+            if (socket == null)
+                return factory.createSocket();
+            Socket result = socket;
+            socket = null;
+            return result;
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException, UnknownHostException {
+            return factory.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return factory.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException, UnknownHostException {
+            return factory.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return factory.createSocket(address, port, localAddress, localPort);
+        }
+    }
+
     private static class SocketFactoryService extends SocketFactory {
         private SocketFactory factory = SocketFactory.getDefault();
 
@@ -1025,7 +1257,36 @@ public class EmailService implements AutoCloseable {
         private boolean cert_strict;
         private String trustedFingerprint;
         private SSLSocketFactory factory;
-        private X509Certificate certificate;
+
+        private static final int MAX_CONTEXTS = 50;
+
+        // The client session cache belongs to the SSL context,
+        // so sharing the factory allows resuming sessions by session ID or ticket
+        private static final Map<String, SSLSocketFactoryService> cache =
+                new LinkedHashMap<String, SSLSocketFactoryService>(MAX_CONTEXTS, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, SSLSocketFactoryService> eldest) {
+                        return (size() > MAX_CONTEXTS);
+                    }
+                };
+        private static final AtomicInteger resumed = new AtomicInteger();
+        private static final AtomicInteger handshakes = new AtomicInteger();
+
+        static SSLSocketFactoryService getInstance(
+                String host, boolean insecure, boolean ssl_harden, boolean ssl_harden_strict, boolean cert_strict,
+                PrivateKey key, X509Certificate[] chain, String fingerprint, String identity) throws GeneralSecurityException {
+            String id = identity + "@" + host +
+                    ":" + insecure + ":" + ssl_harden + ":" + ssl_harden_strict + ":" + cert_strict +
+                    ":" + fingerprint;
+            synchronized (cache) {
+                SSLSocketFactoryService factory = cache.get(id);
+                if (factory == null) {
+                    factory = new SSLSocketFactoryService(host, insecure, ssl_harden, ssl_harden_strict, cert_strict, key, chain, fingerprint);
+                    cache.put(id, factory);
+                }
+                return factory;
+            }
+        }
 
         SSLSocketFactoryService(String host, boolean insecure, boolean ssl_harden, boolean ssl_harden_strict, boolean cert_strict, PrivateKey key, X509Certificate[] chain, String fingerprint) throws GeneralSecurityException {
             this.server = host;
@@ -1065,7 +1326,8 @@ public class EmailService implements AutoCloseable {
 
                     @Override
                     public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
-                        certificate = chain[0];
+                        // The factory is shared, so the certificate is passed with the exception of this handshake
+                        X509Certificate certificate = chain[0];
 
                         if (secure) {
                             // Check if selected fingerprint
@@ -1081,16 +1343,16 @@ public class EmailService implements AutoCloseable {
                             } catch (CertificateException ex) {
                                 Principal principal = certificate.getSubjectDN();
                                 if (principal == null)
-                                    throw ex;
+                                    throw new ServerCertificateException(ex.getMessage(), ex, certificate);
                                 else if (cert_strict)
-                                    throw new CertificateException(principal.getName(), ex);
+                                    throw new ServerCertificateException(principal.getName(), ex, certificate);
                                 else if (noAnchor(ex) || isExpired(ex)) {
                                     if (BuildConfig.PLAY_STORE_RELEASE)
                                         Log.i(ex);
                                     else
                                         Log.w(ex);
                                 } else
-                                    throw new CertificateException(principal.getName(), ex);
+                                    throw new ServerCertificateException(principal.getName(), ex, certificate);
                             }
 
                             // Check host name
@@ -1126,7 +1388,7 @@ public class EmailService implements AutoCloseable {
 
                             String error = server + " not in certificate: " + TextUtils.join(",", names);
                             Log.i(error);
-                            throw new CertificateException(error);
+                            throw new ServerCertificateException(error, null, certificate);
                         }
                     }
 
@@ -1284,6 +1546,22 @@ public class EmailService implements AutoCloseable {
 
                 Log.i("SSL protocols=" + TextUtils.join(",", sslSocket.getEnabledProtocols()));
                 Log.i("SSL ciphers=" + TextUtils.join(",", sslSocket.getEnabledCipherSuites()));
+
+                // A resumed session was created before this socket
+                long start = System.currentTimeMillis();
+                sslSocket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                    @Override
+                    public void handshakeCompleted(HandshakeCompletedEvent event) {
+                        SSLSession session = event.getSession();
+                        boolean resume = (session.getCreationTime() < start);
+                        int hits = (resume ? resumed.incrementAndGet() : resumed.get());
+                        int total = handshakes.incrementAndGet();
+                        Log.i("SSL handshake " + server +
+                                " protocol=" + session.getProtocol() +
+                                " resumed=" + resume +
+                                " hits=" + hits + " misses=" + (total - hits));
+                    }
+                });
             }
 
             return socket;
@@ -1383,6 +1661,15 @@ public class EmailService implements AutoCloseable {
         }
     }
 
+    private static class ServerCertificateException extends CertificateException {
+        private X509Certificate certificate;
+
+        ServerCertificateException(String message, Throwable cause, @NonNull X509Certificate certificate) {
+            super(message, cause);
+            this.certificate = certificate;
+        }
+    }
+
     static class UntrustedException extends MessagingException {
         private X509Certificate certificate;
 
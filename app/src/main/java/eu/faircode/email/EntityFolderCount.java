@@ -0,0 +1,75 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2023 by Marcel Bokhorst (M66B)
+*/
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+// Counts of the visible messages of a folder,
+// maintained by database triggers, see DB.createTriggers
+
+@Entity(
+        tableName = EntityFolderCount.TABLE_NAME
+)
+public class EntityFolderCount {
+    static final String TABLE_NAME = "folder_count";
+
+    static final String COLUMNS = "folder, messages, content, unseen, flagged";
+
+    @PrimaryKey
+    @NonNull
+    public Long folder;
+    @NonNull
+    public Integer messages;
+    @NonNull
+    public Integer content;
+    @NonNull
+    public Integer unseen;
+    @NonNull
+    public Integer flagged;
+
+    static String getSummary() {
+        return "SELECT folder" +
+                ", COUNT(id)" +
+                ", SUM(content)" +
+                ", SUM(1 - ui_seen)" +
+                ", SUM(ui_flagged)" +
+                " FROM message" +
+                " WHERE NOT ui_hide" +
+                " GROUP BY folder";
+    }
+
+    static String getInsert(String row) {
+        return "INSERT OR IGNORE INTO folder_count (" + COLUMNS + ")" +
+                " VALUES (" + row + ".folder, 0, 0, 0, 0);";
+    }
+
+    static String getUpdate(String row, String sign) {
+        // Hidden messages are not counted
+        String visible = "(1 - " + row + ".ui_hide)";
+        return "UPDATE folder_count SET" +
+                " messages = messages " + sign + " " + visible +
+                ", content = content " + sign + " " + row + ".content * " + visible +
+                ", unseen = unseen " + sign + " (1 - " + row + ".ui_seen) * " + visible +
+                ", flagged = flagged " + sign + " " + row + ".ui_flagged * " + visible +
+                " WHERE folder = " + row + ".folder;";
+    }
+}
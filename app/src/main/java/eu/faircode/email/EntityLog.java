@@ -30,8 +30,16 @@ import androidx.room.Entity;
 import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 @Entity(
         tableName = EntityLog.TABLE_NAME,
@@ -45,12 +53,20 @@ public class EntityLog {
     static final String TABLE_NAME = "log";
 
     private static boolean ok = true;
-    private static long count = 0;
     private static Long last_cleanup = null;
+    private static Context acontext = null;
+
+    private static final Ring buffer = new Ring(1024); // power of two
+    private static final AtomicBoolean scheduled = new AtomicBoolean();
+    private static final AtomicInteger dropped = new AtomicInteger();
+    private static final ExecutorService executor =
+            Helper.getBackgroundExecutor(1, "log");
 
     private static final long LOG_CLEANUP_INTERVAL = 3600 * 1000L; // milliseconds
     private static final long LOG_KEEP_DURATION = 12 * 3600 * 1000L; // milliseconds
     private static final int LOG_DELETE_BATCH_SIZE = 50;
+    private static final int LOG_FLUSH_BATCH_SIZE = 100;
+    private static final long LOG_FLUSH_DELAY = 1000L; // milliseconds
 
     @PrimaryKey(autoGenerate = true)
     public Long id;
@@ -134,48 +150,100 @@ public class EntityLog {
         entry.message = message;
         entry.data = data;
 
-        final DB db = DB.getInstance(context);
-        final Context acontext = context.getApplicationContext();
+        if (acontext == null)
+            acontext = context.getApplicationContext();
 
-        Helper.getSerialExecutor().submit(new Runnable() {
-            @Override
-            public void run() {
-                // Check available storage space
-                if (!ok || (++count % LOG_DELETE_BATCH_SIZE) == 0) {
-                    long cake = Helper.getAvailableStorageSpace();
-                    boolean wasOk = ok;
-                    ok = (cake > Helper.MIN_REQUIRED_SPACE);
-                    if (!ok)
-                        if (wasOk) {
-                            entry.type = Type.General;
-                            entry.account = null;
-                            entry.folder = null;
-                            entry.message = null;
-                            entry.data = "Insufficient storage space=" +
-                                    Helper.humanReadableByteCount(cake) + "/" +
-                                    Helper.humanReadableByteCount(Helper.MIN_REQUIRED_SPACE);
-                        } else
-                            return;
+        // Drop debug entries under backpressure
+        if (type == Type.Debug && buffer.size() > buffer.capacity() / 2) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        if (!buffer.offer(entry)) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        // Flush per batch of entries or after a delay, whichever comes first
+        int size = buffer.size();
+        if (size > 0 && size % LOG_FLUSH_BATCH_SIZE == 0)
+            executor.submit(flush);
+        else if (scheduled.compareAndSet(false, true))
+            ApplicationEx.getMainHandler().postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    executor.submit(flush);
                 }
+            }, LOG_FLUSH_DELAY);
+    }
+
+    private static final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            scheduled.set(false);
+
+            Context context = acontext;
+            if (context == null)
+                return;
+
+            // Check available storage space
+            long cake = Helper.getAvailableStorageSpace();
+            boolean wasOk = ok;
+            ok = (cake > Helper.MIN_REQUIRED_SPACE);
+
+            DB db = DB.getInstance(context);
+            List<EntityLog> entries = new ArrayList<>();
+            while (true) {
+                entries.clear();
+
+                if (!ok && wasOk) {
+                    wasOk = false;
+                    EntityLog entry = new EntityLog();
+                    entry.time = new Date().getTime();
+                    entry.thread = Thread.currentThread().getId();
+                    entry.data = "Insufficient storage space=" +
+                            Helper.humanReadableByteCount(cake) + "/" +
+                            Helper.humanReadableByteCount(Helper.MIN_REQUIRED_SPACE);
+                    entries.add(entry);
+                }
+
+                int lost = dropped.getAndSet(0);
+                if (lost > 0 && ok) {
+                    EntityLog entry = new EntityLog();
+                    entry.time = new Date().getTime();
+                    entry.thread = Thread.currentThread().getId();
+                    entry.data = "Dropped log entries=" + lost;
+                    entries.add(entry);
+                }
+
+                for (EntityLog entry = buffer.poll();
+                     entry != null;
+                     entry = (entries.size() < LOG_FLUSH_BATCH_SIZE ? buffer.poll() : null))
+                    if (ok)
+                        entries.add(entry);
+
+                if (entries.size() == 0)
+                    break;
 
                 try {
                     db.beginTransaction();
-                    db.log().insertLog(entry);
+                    for (EntityLog entry : entries)
+                        db.log().insertLog(entry);
                     db.setTransactionSuccessful();
                 } catch (Throwable ex) {
                     Log.e(ex);
                 } finally {
                     db.endTransaction();
                 }
+            }
 
-                long now = new Date().getTime();
-                if (last_cleanup == null || last_cleanup + LOG_CLEANUP_INTERVAL < now) {
-                    last_cleanup = now;
-                    cleanup(acontext, now - LOG_KEEP_DURATION);
-                }
+            long now = new Date().getTime();
+            if (last_cleanup == null || last_cleanup + LOG_CLEANUP_INTERVAL < now) {
+                last_cleanup = now;
+                cleanup(context, now - LOG_KEEP_DURATION);
             }
-        });
-    }
+        }
+    };
 
     static void clear(final Context context) {
         final Context acontext = context.getApplicationContext();
@@ -206,6 +274,59 @@ public class EntityLog {
             }
     }
 
+    // Bounded multiple producer, single consumer queue
+    // https://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue
+    private static class Ring {
+        private final int mask;
+        private final AtomicReferenceArray<EntityLog> items;
+        private final AtomicLongArray sequence;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+
+        Ring(int capacity) {
+            this.mask = capacity - 1;
+            this.items = new AtomicReferenceArray<>(capacity);
+            this.sequence = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++)
+                sequence.set(i, i);
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+
+        int size() {
+            return (int) Math.max(0, tail.get() - head.get());
+        }
+
+        boolean offer(EntityLog item) {
+            while (true) {
+                long pos = tail.get();
+                int index = (int) (pos & mask);
+                long diff = sequence.get(index) - pos;
+                if (diff == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) {
+                        items.set(index, item);
+                        sequence.set(index, pos + 1);
+                        return true;
+                    }
+                } else if (diff < 0)
+                    return false; // full
+            }
+        }
+
+        EntityLog poll() {
+            long pos = head.get();
+            int index = (int) (pos & mask);
+            if (sequence.get(index) != pos + 1)
+                return null; // empty or not yet published
+            EntityLog item = items.getAndSet(index, null);
+            sequence.set(index, pos + mask + 1);
+            head.set(pos + 1);
+            return item;
+        }
+    }
+
     Integer getColor(Context context) {
         return getColor(context, this.type);
     }
@@ -236,6 +236,7 @@ public class EntityMessage implements Serializable {
     public Boolean ui_hide = false;
     @NonNull
     public Boolean ui_found = false;
+    public Integer ui_found_rank; // search relevance
     @NonNull
     public Boolean ui_ignored = false;
     @NonNull
@@ -601,6 +602,11 @@ public class EntityMessage implements Serializable {
         return new File(dir, id.toString());
     }
 
+    static File getTextFile(Context context, Long id) {
+        File file = getFile(context, id);
+        return new File(file.getParentFile(), id + ".txt.gz");
+    }
+
     static File getRoot(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         boolean external_storage = prefs.getBoolean("external_storage_message", false);
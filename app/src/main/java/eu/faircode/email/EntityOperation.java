@@ -377,6 +377,7 @@ public class EntityOperation {
                     boolean _ui_flagged = message.ui_flagged;
                     boolean _ui_hide = message.ui_hide;
                     boolean _ui_found = message.ui_found;
+                    Integer _ui_found_rank = message.ui_found_rank;
                     boolean _ui_browsed = message.ui_browsed;
                     Long ui_busy = message.ui_busy;
                     Integer _color = message.color;
@@ -405,6 +406,7 @@ public class EntityOperation {
                     }
                     message.ui_hide = false;
                     message.ui_found = false;
+                    message.ui_found_rank = null;
                     message.ui_browsed = false;
                     message.ui_busy = null;
                     message.error = null;
@@ -431,6 +433,7 @@ public class EntityOperation {
                     message.ui_flagged = _ui_flagged;
                     message.ui_hide = _ui_hide;
                     message.ui_found = _ui_found;
+                    message.ui_found_rank = _ui_found_rank;
                     message.ui_browsed = _ui_browsed;
                     message.ui_busy = ui_busy;
                     message.color = _color;
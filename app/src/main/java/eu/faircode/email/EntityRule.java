@@ -32,6 +32,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.provider.ContactsContract;
 import android.text.TextUtils;
+import android.util.LruCache;
 
 import androidx.annotation.NonNull;
 import androidx.preference.PreferenceManager;
@@ -137,30 +138,37 @@ public class EntityRule {
     private static final String JSOUP_PREFIX = "jsoup:";
     private static final long SEND_DELAY = 5000L; // milliseconds
 
+    private static final int MAX_PROGRAMS = 250;
+    private static final int MAX_PATTERNS = 250;
+
+    // Compiled conditions are keyed by the condition itself, so changed rules will be compiled again
+    private static final LruCache<String, Program> programs = new LruCache<>(MAX_PROGRAMS);
+    private static final LruCache<String, Pattern> patterns = new LruCache<>(MAX_PATTERNS);
+
     static boolean needsHeaders(EntityMessage message, List<EntityRule> rules) {
-        return needs(rules, "header");
+        for (EntityRule rule : rules)
+            try {
+                Program program = rule.getProgram();
+                if (program.header != null &&
+                        (program.header.regex ||
+                                !program.header.value.startsWith("$$") ||
+                                !program.header.value.endsWith("$")))
+                    return true;
+            } catch (Throwable ex) {
+                Log.e(ex);
+            }
+
+        return false;
     }
 
     static boolean needsBody(EntityMessage message, List<EntityRule> rules) {
         if (message.encrypt != null && !EntityMessage.ENCRYPT_NONE.equals(message.encrypt))
             return false;
-        return needs(rules, "body");
-    }
 
-    private static boolean needs(List<EntityRule> rules, String what) {
         for (EntityRule rule : rules)
             try {
-                JSONObject jcondition = new JSONObject(rule.condition);
-                if (jcondition.has(what)) {
-                    if ("header".equals(what)) {
-                        JSONObject jheader = jcondition.getJSONObject("header");
-                        String value = jheader.getString("value");
-                        boolean regex = jheader.getBoolean("regex");
-                        if (!regex && value.startsWith("$$") && value.endsWith("$"))
-                            continue;
-                    }
+                if (rule.getProgram().body != null)
                     return true;
-                }
             } catch (Throwable ex) {
                 Log.e(ex);
             }
@@ -173,11 +181,12 @@ public class EntityRule {
             throws JSONException, MessagingException {
         int applied = 0;
 
+        Content content = new Content(headers, html);
         List<String> stopped = new ArrayList<>();
         for (EntityRule rule : rules) {
             if (rule.group != null && stopped.contains(rule.group))
                 continue;
-            if (rule.matches(context, message, headers, html)) {
+            if (rule.matches(context, message, content)) {
                 if (rule.execute(context, message))
                     applied++;
                 if (rule.stop)
@@ -194,92 +203,228 @@ public class EntityRule {
     }
 
     boolean matches(Context context, EntityMessage message, List<Header> headers, String html) throws MessagingException {
+        return matches(context, message, new Content(headers, html));
+    }
+
+    private boolean matches(Context context, EntityMessage message, Content content) throws MessagingException {
+        Program program;
         try {
-            JSONObject jcondition = new JSONObject(condition);
+            program = getProgram();
+        } catch (JSONException ex) {
+            Log.e(ex);
+            return false;
+        }
 
-            // general
-            if (this.daily) {
-                JSONObject jgeneral = jcondition.optJSONObject("general");
-                if (jgeneral != null) {
-                    int age = jgeneral.optInt("age");
-                    if (age > 0) {
-                        Calendar cal = Calendar.getInstance();
-                        cal.setTimeInMillis(message.received);
-                        cal.add(Calendar.DAY_OF_MONTH, age);
-                        if (cal.getTimeInMillis() > new Date().getTime())
-                            return false;
-                    }
-                }
-            }
+        // Safeguard
+        if (program.isEmpty())
+            return false;
 
-            // Sender
-            JSONObject jsender = jcondition.optJSONObject("sender");
-            if (jsender != null) {
-                String value = jsender.getString("value");
-                boolean regex = jsender.getBoolean("regex");
-                boolean known = jsender.optBoolean("known");
+        // Cheap conditions first, the message body last
 
-                boolean matches = false;
-                List<Address> senders = new ArrayList<>();
-                if (message.from != null)
-                    senders.addAll(Arrays.asList(message.from));
-                if (message.reply != null)
-                    senders.addAll(Arrays.asList(message.reply));
-                for (Address sender : senders) {
-                    InternetAddress ia = (InternetAddress) sender;
-                    String email = ia.getAddress();
-                    String personal = ia.getPersonal();
-
-                    if (known) {
-                        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-                        boolean suggest_sent = prefs.getBoolean("suggest_sent", true);
-                        if (suggest_sent) {
-                            DB db = DB.getInstance(context);
-                            EntityContact contact =
-                                    db.contact().getContact(message.account, EntityContact.TYPE_TO, email);
-                            if (contact != null) {
-                                Log.i(email + " is local contact");
-                                matches = true;
-                                break;
-                            }
-                        }
+        // General
+        if (this.daily && program.age > 0) {
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(message.received);
+            cal.add(Calendar.DAY_OF_MONTH, program.age);
+            if (cal.getTimeInMillis() > new Date().getTime())
+                return false;
+        }
 
-                        if (!TextUtils.isEmpty(message.avatar)) {
-                            Log.i(email + " is Android contact");
-                            matches = true;
-                            break;
-                        }
-                    } else {
-                        String formatted = ((personal == null ? "" : personal + " ") + "<" + email + ">");
-                        if (matches(context, message, value, formatted, regex)) {
+        // Date
+        if (program.date) {
+            long after = program.after;
+            long before = program.before;
+            if ((after != 0 && message.received < after) || (before != 0 && message.received > before))
+                return false;
+        }
+
+        // Schedule
+        if (program.schedule) {
+            boolean all = program.all;
+            Calendar cal_start = getRelativeCalendar(all, program.start, message.received);
+            Calendar cal_end = getRelativeCalendar(all, program.end, message.received);
+
+            if (cal_start.getTimeInMillis() > cal_end.getTimeInMillis())
+                if (all)
+                    cal_end.add(Calendar.DATE, 1);
+                else
+                    cal_start.add(Calendar.HOUR_OF_DAY, -7 * 24);
+
+            if (message.received < cal_start.getTimeInMillis() ||
+                    message.received > cal_end.getTimeInMillis())
+                return false;
+        }
+
+        if (program.younger != null) {
+            Calendar y = Calendar.getInstance();
+            y.add(Calendar.HOUR_OF_DAY, -program.younger);
+            if (message.received < y.getTimeInMillis())
+                return false;
+        }
+
+        // Subject
+        if (program.subject != null)
+            if (!matches(context, message, program.subject, message.subject))
+                return false;
+
+        // Sender
+        if (program.sender != null) {
+            boolean matches = false;
+            List<Address> senders = new ArrayList<>();
+            if (message.from != null)
+                senders.addAll(Arrays.asList(message.from));
+            if (message.reply != null)
+                senders.addAll(Arrays.asList(message.reply));
+            for (Address sender : senders) {
+                InternetAddress ia = (InternetAddress) sender;
+                String email = ia.getAddress();
+                String personal = ia.getPersonal();
+
+                if (program.known) {
+                    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+                    boolean suggest_sent = prefs.getBoolean("suggest_sent", true);
+                    if (suggest_sent) {
+                        DB db = DB.getInstance(context);
+                        EntityContact contact =
+                                db.contact().getContact(message.account, EntityContact.TYPE_TO, email);
+                        if (contact != null) {
+                            Log.i(email + " is local contact");
                             matches = true;
                             break;
                         }
                     }
+
+                    if (!TextUtils.isEmpty(message.avatar)) {
+                        Log.i(email + " is Android contact");
+                        matches = true;
+                        break;
+                    }
+                } else {
+                    String formatted = ((personal == null ? "" : personal + " ") + "<" + email + ">");
+                    if (matches(context, message, program.sender, formatted)) {
+                        matches = true;
+                        break;
+                    }
                 }
-                if (!matches)
-                    return false;
             }
+            if (!matches)
+                return false;
+        }
 
-            // Recipient
-            JSONObject jrecipient = jcondition.optJSONObject("recipient");
-            if (jrecipient != null) {
-                String value = jrecipient.getString("value");
-                boolean regex = jrecipient.getBoolean("regex");
+        // Recipient
+        if (program.recipient != null) {
+            boolean matches = false;
+            List<Address> recipients = new ArrayList<>();
+            if (message.to != null)
+                recipients.addAll(Arrays.asList(message.to));
+            if (message.cc != null)
+                recipients.addAll(Arrays.asList(message.cc));
+            if (message.bcc != null)
+                recipients.addAll(Arrays.asList(message.bcc));
+            for (Address recipient : recipients) {
+                InternetAddress ia = (InternetAddress) recipient;
+                String personal = ia.getPersonal();
+                String formatted = ((personal == null ? "" : personal + " ") + "<" + ia.getAddress() + ">");
+                if (matches(context, message, program.recipient, formatted)) {
+                    matches = true;
+                    break;
+                }
+            }
+            if (!matches)
+                return false;
+        }
 
+        // Header
+        if (program.header != null) {
+            String keyword = program.keyword;
+            if (keyword != null) {
+                if ("$tls".equals(keyword)) {
+                    if (!Boolean.TRUE.equals(message.tls))
+                        return false;
+                } else if ("$aligned".equals(keyword)) {
+                    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+                    boolean native_dkim = prefs.getBoolean("native_dkim", false);
+                    if (!native_dkim)
+                        return false;
+                    if (message.signedby == null)
+                        return false;
+                    if (message.from == null || message.from.length != 1)
+                        return false;
+                    String domain = UriHelper.getEmailDomain(((InternetAddress) message.from[0]).getAddress());
+                    if (domain == null)
+                        return false;
+                    boolean valid = false;
+                    for (String signer : message.signedby.split(","))
+                        if (Objects.equals(
+                                UriHelper.getRootDomain(context, signer),
+                                UriHelper.getRootDomain(context, domain))) {
+                            valid = true;
+                            break;
+                        }
+                    if (!valid)
+                        return false;
+                } else if ("$dkim".equals(keyword)) {
+                    if (!Boolean.TRUE.equals(message.dkim))
+                        return false;
+                } else if ("$spf".equals(keyword)) {
+                    if (!Boolean.TRUE.equals(message.spf))
+                        return false;
+                } else if ("$dmarc".equals(keyword)) {
+                    if (!Boolean.TRUE.equals(message.dmarc))
+                        return false;
+                } else if ("$mx".equals(keyword)) {
+                    if (!Boolean.TRUE.equals(message.mx))
+                        return false;
+                } else if ("$blocklist".equals(keyword)) {
+                    if (!Boolean.FALSE.equals(message.blocklist))
+                        return false;
+                } else if ("$replydomain".equals(keyword)) {
+                    if (!Boolean.TRUE.equals(message.reply_domain))
+                        return false;
+                } else if ("$nofrom".equals(keyword)) {
+                    if (message.from != null && message.from.length > 0)
+                        return false;
+                } else if ("$multifrom".equals(keyword)) {
+                    if (message.from == null || message.from.length < 2)
+                        return false;
+                } else if ("$automatic".equals(keyword)) {
+                    if (!Boolean.TRUE.equals(message.auto_submitted))
+                        return false;
+                } else if ("$lowpriority".equals(keyword)) {
+                    if (!EntityMessage.PRIORITIY_LOW.equals(message.priority))
+                        return false;
+                } else if ("$highpriority".equals(keyword)) {
+                    if (!EntityMessage.PRIORITIY_HIGH.equals(message.priority))
+                        return false;
+                } else if ("$signed".equals(keyword)) {
+                    if (!message.isSigned())
+                        return false;
+                } else if ("$encrypted".equals(keyword)) {
+                    if (!message.isEncrypted())
+                        return false;
+                } else {
+                    List<String> keywords = new ArrayList<>();
+                    keywords.addAll(Arrays.asList(message.keywords));
+
+                    if (message.ui_seen)
+                        keywords.add("$seen");
+                    if (message.ui_answered)
+                        keywords.add("$answered");
+                    if (message.ui_flagged)
+                        keywords.add("$flagged");
+                    if (message.ui_deleted)
+                        keywords.add("$deleted");
+                    if (message.infrastructure != null)
+                        keywords.add('$' + message.infrastructure);
+
+                    if (!keywords.contains(keyword))
+                        return false;
+                }
+            } else {
                 boolean matches = false;
-                List<Address> recipients = new ArrayList<>();
-                if (message.to != null)
-                    recipients.addAll(Arrays.asList(message.to));
-                if (message.cc != null)
-                    recipients.addAll(Arrays.asList(message.cc));
-                if (message.bcc != null)
-                    recipients.addAll(Arrays.asList(message.bcc));
-                for (Address recipient : recipients) {
-                    InternetAddress ia = (InternetAddress) recipient;
-                    String personal = ia.getPersonal();
-                    String formatted = ((personal == null ? "" : personal + " ") + "<" + ia.getAddress() + ">");
-                    if (matches(context, message, value, formatted, regex)) {
+                for (Header header : content.getHeaders(context, message)) {
+                    String formatted = header.getName() + ": " + header.getValue();
+                    if (matches(context, message, program.header, formatted)) {
                         matches = true;
                         break;
                     }
@@ -287,168 +432,244 @@ public class EntityRule {
                 if (!matches)
                     return false;
             }
+        }
 
-            // Subject
-            JSONObject jsubject = jcondition.optJSONObject("subject");
-            if (jsubject != null) {
-                String value = jsubject.getString("value");
-                boolean regex = jsubject.getBoolean("regex");
+        // Attachments
+        if (program.attachments) {
+            DB db = DB.getInstance(context);
+            List<EntityAttachment> attachments = db.attachment().getAttachments(message.id);
+            if (attachments.size() == 0)
+                return false;
+
+            String mimeType = program.mimetype;
+            if (!TextUtils.isEmpty(mimeType)) {
+                boolean found = false;
+                for (EntityAttachment attachment : attachments)
+                    if (mimeType.equalsIgnoreCase(attachment.getMimeType())) {
+                        found = true;
+                        break;
+                    }
 
-                if (!matches(context, message, value, message.subject, regex))
+                if (!found)
                     return false;
             }
+        }
 
-            // Attachments
-            if (jcondition.optBoolean("attachments")) {
-                DB db = DB.getInstance(context);
-                List<EntityAttachment> attachments = db.attachment().getAttachments(message.id);
-                if (attachments.size() == 0)
-                    return false;
+        // Body
+        if (program.body != null) {
+            boolean skip_quotes = program.skip_quotes;
 
-                if (jcondition.has("mimetype")) {
-                    String mimeType = jcondition.getString("mimetype");
-                    if (!TextUtils.isEmpty(mimeType)) {
-                        boolean found = false;
-                        for (EntityAttachment attachment : attachments)
-                            if (mimeType.equalsIgnoreCase(attachment.getMimeType())) {
-                                found = true;
-                                break;
-                            }
+            Document d = content.getDocument(context, message);
+            if (d == null)
+                return false;
 
-                        if (!found)
-                            return false;
-                    }
+            if (program.selector != null) {
+                if (skip_quotes) {
+                    d = d.clone();
+                    d.select("blockquote").remove();
                 }
+                if (d.select(program.selector).size() == 0)
+                    return false;
+            } else {
+                String text = content.getText(skip_quotes);
+                if (!matches(context, message, program.body, text))
+                    return false;
             }
+        }
 
-            // Header
-            JSONObject jheader = jcondition.optJSONObject("header");
-            if (jheader != null) {
-                String value = jheader.getString("value");
-                boolean regex = jheader.getBoolean("regex");
+        return true;
+    }
 
-                if (!regex &&
-                        value.startsWith("$") &&
-                        value.endsWith("$")) {
-                    String keyword = value.substring(1, value.length() - 1);
+    private boolean matches(Context context, EntityMessage message, Needle needle, String haystack) {
+        boolean matched = needle.matches(haystack);
 
-                    if ("$tls".equals(keyword)) {
-                        if (!Boolean.TRUE.equals(message.tls))
-                            return false;
-                    } else if ("$aligned".equals(keyword)) {
-                        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-                        boolean native_dkim = prefs.getBoolean("native_dkim", false);
-                        if (!native_dkim)
-                            return false;
-                        if (message.signedby == null)
-                            return false;
-                        if (message.from == null || message.from.length != 1)
-                            return false;
-                        String domain = UriHelper.getEmailDomain(((InternetAddress) message.from[0]).getAddress());
-                        if (domain == null)
-                            return false;
-                        boolean valid = false;
-                        for (String signer : message.signedby.split(","))
-                            if (Objects.equals(
-                                    UriHelper.getRootDomain(context, signer),
-                                    UriHelper.getRootDomain(context, domain))) {
-                                valid = true;
-                                break;
-                            }
-                        if (!valid)
-                            return false;
-                    } else if ("$dkim".equals(keyword)) {
-                        if (!Boolean.TRUE.equals(message.dkim))
-                            return false;
-                    } else if ("$spf".equals(keyword)) {
-                        if (!Boolean.TRUE.equals(message.spf))
-                            return false;
-                    } else if ("$dmarc".equals(keyword)) {
-                        if (!Boolean.TRUE.equals(message.dmarc))
-                            return false;
-                    } else if ("$mx".equals(keyword)) {
-                        if (!Boolean.TRUE.equals(message.mx))
-                            return false;
-                    } else if ("$blocklist".equals(keyword)) {
-                        if (!Boolean.FALSE.equals(message.blocklist))
-                            return false;
-                    } else if ("$replydomain".equals(keyword)) {
-                        if (!Boolean.TRUE.equals(message.reply_domain))
-                            return false;
-                    } else if ("$nofrom".equals(keyword)) {
-                        if (message.from != null && message.from.length > 0)
-                            return false;
-                    } else if ("$multifrom".equals(keyword)) {
-                        if (message.from == null || message.from.length < 2)
-                            return false;
-                    } else if ("$automatic".equals(keyword)) {
-                        if (!Boolean.TRUE.equals(message.auto_submitted))
-                            return false;
-                    } else if ("$lowpriority".equals(keyword)) {
-                        if (!EntityMessage.PRIORITIY_LOW.equals(message.priority))
-                            return false;
-                    } else if ("$highpriority".equals(keyword)) {
-                        if (!EntityMessage.PRIORITIY_HIGH.equals(message.priority))
-                            return false;
-                    } else if ("$signed".equals(keyword)) {
-                        if (!message.isSigned())
-                            return false;
-                    } else if ("$encrypted".equals(keyword)) {
-                        if (!message.isEncrypted())
-                            return false;
-                    } else {
-                        List<String> keywords = new ArrayList<>();
-                        keywords.addAll(Arrays.asList(message.keywords));
-
-                        if (message.ui_seen)
-                            keywords.add("$seen");
-                        if (message.ui_answered)
-                            keywords.add("$answered");
-                        if (message.ui_flagged)
-                            keywords.add("$flagged");
-                        if (message.ui_deleted)
-                            keywords.add("$deleted");
-                        if (message.infrastructure != null)
-                            keywords.add('$' + message.infrastructure);
-
-                        if (!keywords.contains(keyword))
-                            return false;
-                    }
-                } else {
-                    if (headers == null) {
-                        if (message.headers == null)
-                            throw new IllegalArgumentException(context.getString(R.string.title_rule_no_headers));
+        if (matched)
+            EntityLog.log(context, EntityLog.Type.Rules, message,
+                    "Rule=" + name + "@" + order + " matched " +
+                            " needle=" + needle.value + " haystack=" + haystack + " regex=" + needle.regex);
+        else
+            Log.i("Rule=" + name + "@" + order + " matched=" + matched +
+                    " needle=" + needle.value + " haystack=" + haystack + " regex=" + needle.regex);
+        return matched;
+    }
 
-                        ByteArrayInputStream bis = new ByteArrayInputStream(message.headers.getBytes());
-                        headers = Collections.list(new InternetHeaders(bis, true).getAllHeaders());
-                    }
+    @NonNull
+    private Program getProgram() throws JSONException {
+        Program program = programs.get(condition);
+        if (program == null) {
+            program = new Program(condition);
+            programs.put(condition, program);
+        }
+        return program;
+    }
 
-                    boolean matches = false;
-                    for (Header header : headers) {
-                        String formatted = header.getName() + ": " + header.getValue();
-                        if (matches(context, message, value, formatted, regex)) {
-                            matches = true;
-                            break;
-                        }
-                    }
-                    if (!matches)
-                        return false;
-                }
+    private static Pattern getPattern(String regex) {
+        Pattern pattern = patterns.get(regex);
+        if (pattern == null) {
+            pattern = Pattern.compile(regex, Pattern.DOTALL);
+            patterns.put(regex, pattern);
+        }
+        return pattern;
+    }
+
+    // Parsed condition, shared by all threads and therefore immutable
+    private static class Program {
+        final int age;
+        final Needle sender;
+        final boolean known;
+        final Needle recipient;
+        final Needle subject;
+        final boolean attachments;
+        final String mimetype;
+        final Needle header;
+        final String keyword;
+        final Needle body;
+        final boolean skip_quotes;
+        final String selector;
+        final boolean date;
+        final long after;
+        final long before;
+        final boolean schedule;
+        final boolean all;
+        final int start;
+        final int end;
+        final Integer younger;
+
+        Program(String condition) throws JSONException {
+            JSONObject jcondition = new JSONObject(condition);
+
+            JSONObject jgeneral = jcondition.optJSONObject("general");
+            this.age = (jgeneral == null ? 0 : jgeneral.optInt("age"));
+
+            JSONObject jsender = jcondition.optJSONObject("sender");
+            if (jsender == null) {
+                this.sender = null;
+                this.known = false;
+            } else {
+                this.sender = new Needle(jsender.getString("value"), jsender.getBoolean("regex"));
+                this.known = jsender.optBoolean("known");
+            }
+
+            JSONObject jrecipient = jcondition.optJSONObject("recipient");
+            this.recipient = (jrecipient == null ? null
+                    : new Needle(jrecipient.getString("value"), jrecipient.getBoolean("regex")));
+
+            JSONObject jsubject = jcondition.optJSONObject("subject");
+            this.subject = (jsubject == null ? null
+                    : new Needle(jsubject.getString("value"), jsubject.getBoolean("regex")));
+
+            this.attachments = jcondition.optBoolean("attachments");
+            this.mimetype = (jcondition.has("mimetype") ? jcondition.getString("mimetype") : null);
+
+            JSONObject jheader = jcondition.optJSONObject("header");
+            if (jheader == null) {
+                this.header = null;
+                this.keyword = null;
+            } else {
+                String value = jheader.getString("value");
+                boolean regex = jheader.getBoolean("regex");
+                this.header = new Needle(value, regex);
+                if (!regex && value.startsWith("$") && value.endsWith("$"))
+                    this.keyword = value.substring(1, value.length() - 1);
+                else
+                    this.keyword = null;
             }
 
-            // Body
             JSONObject jbody = jcondition.optJSONObject("body");
-            if (jbody != null) {
+            if (jbody == null) {
+                this.body = null;
+                this.skip_quotes = false;
+                this.selector = null;
+            } else {
                 String value = jbody.getString("value");
                 boolean regex = jbody.getBoolean("regex");
-                boolean skip_quotes = jbody.optBoolean("skip_quotes");
-
                 boolean jsoup = value.startsWith(JSOUP_PREFIX);
-
                 if (!regex && !jsoup)
                     value = value.replaceAll("\\s+", " ");
+                this.body = new Needle(value, regex && !jsoup);
+                this.skip_quotes = jbody.optBoolean("skip_quotes");
+                this.selector = (jsoup ? value.substring(JSOUP_PREFIX.length()) : null);
+            }
+
+            JSONObject jdate = jcondition.optJSONObject("date");
+            this.date = (jdate != null);
+            this.after = (jdate == null ? 0 : jdate.optLong("after", 0));
+            this.before = (jdate == null ? 0 : jdate.optLong("before", 0));
+
+            JSONObject jschedule = jcondition.optJSONObject("schedule");
+            this.schedule = (jschedule != null);
+            this.all = (jschedule != null && jschedule.optBoolean("all", false));
+            this.start = (jschedule == null ? 0 : jschedule.optInt("start", 0));
+            this.end = (jschedule == null ? 0 : jschedule.optInt("end", 0));
 
-                if (html == null && message.content) {
+            this.younger = (jcondition.has("younger") ? jcondition.getInt("younger") : null);
+        }
+
+        boolean isEmpty() {
+            return (sender == null &&
+                    recipient == null &&
+                    subject == null &&
+                    !attachments &&
+                    header == null &&
+                    body == null &&
+                    !date &&
+                    !schedule &&
+                    younger == null);
+        }
+    }
+
+    private static class Needle {
+        final String value;
+        final boolean regex;
+        private final Pattern pattern;
+        private final String lower;
+
+        Needle(String value, boolean regex) {
+            this.value = value;
+            this.regex = regex;
+            this.pattern = (regex ? getPattern(value) : null);
+            this.lower = (regex ? null : value.trim().toLowerCase());
+        }
+
+        boolean matches(String haystack) {
+            if (haystack == null)
+                return false;
+            if (regex)
+                return pattern.matcher(haystack).matches();
+            else
+                return haystack.toLowerCase().contains(lower);
+        }
+    }
+
+    // Message data used by the rules, loaded at most once per message
+    private static class Content {
+        private List<Header> headers;
+        private String html;
+        private boolean loaded = false;
+        private Document document;
+        private String text;
+        private String text_quotes;
+
+        Content(List<Header> headers, String html) {
+            this.headers = headers;
+            this.html = html;
+        }
+
+        List<Header> getHeaders(Context context, EntityMessage message) throws MessagingException {
+            if (headers == null) {
+                if (message.headers == null)
+                    throw new IllegalArgumentException(context.getString(R.string.title_rule_no_headers));
+
+                ByteArrayInputStream bis = new ByteArrayInputStream(message.headers.getBytes());
+                headers = Collections.list(new InternetHeaders(bis, true).getAllHeaders());
+            }
+            return headers;
+        }
+
+        Document getDocument(Context context, EntityMessage message) {
+            if (document == null) {
+                if (html == null && !loaded && message.content) {
+                    loaded = true;
                     File file = message.getFile(context);
                     try {
                         html = Helper.readText(file);
@@ -458,99 +679,27 @@ public class EntityRule {
                 }
 
                 if (html == null)
-                    if (false && (message.encrypt == null || EntityMessage.ENCRYPT_NONE.equals(message.encrypt)))
-                        throw new IllegalArgumentException(context.getString(R.string.title_rule_no_body));
-                    else
-                        return false;
+                    return null;
 
-                Document d = JsoupEx.parse(html);
-                if (skip_quotes)
-                    d.select("blockquote").remove();
-                if (jsoup) {
-                    String selector = value.substring(JSOUP_PREFIX.length());
-                    if (d.select(selector).size() == 0)
-                        return false;
-                } else {
-                    String text = d.body().text();
-                    if (!matches(context, message, value, text, regex))
-                        return false;
-                }
-            }
-
-            // Date
-            JSONObject jdate = jcondition.optJSONObject("date");
-            if (jdate != null) {
-                long after = jdate.optLong("after", 0);
-                long before = jdate.optLong("before", 0);
-                if ((after != 0 && message.received < after) || (before != 0 && message.received > before))
-                    return false;
-            }
-
-            // Schedule
-            JSONObject jschedule = jcondition.optJSONObject("schedule");
-            if (jschedule != null) {
-                boolean all = jschedule.optBoolean("all", false);
-                int start = jschedule.optInt("start", 0);
-                int end = jschedule.optInt("end", 0);
-
-                Calendar cal_start = getRelativeCalendar(all, start, message.received);
-                Calendar cal_end = getRelativeCalendar(all, end, message.received);
-
-                if (cal_start.getTimeInMillis() > cal_end.getTimeInMillis())
-                    if (all)
-                        cal_end.add(Calendar.DATE, 1);
-                    else
-                        cal_start.add(Calendar.HOUR_OF_DAY, -7 * 24);
-
-                if (message.received < cal_start.getTimeInMillis() ||
-                        message.received > cal_end.getTimeInMillis())
-                    return false;
+                document = JsoupEx.parse(html);
             }
+            return document;
+        }
 
-            if (jcondition.has("younger")) {
-                int younger = jcondition.getInt("younger");
-                Calendar y = Calendar.getInstance();
-                y.add(Calendar.HOUR_OF_DAY, -younger);
-                if (message.received < y.getTimeInMillis())
-                    return false;
+        String getText(boolean skip_quotes) {
+            if (skip_quotes) {
+                if (text_quotes == null) {
+                    Document d = document.clone();
+                    d.select("blockquote").remove();
+                    text_quotes = d.body().text();
+                }
+                return text_quotes;
+            } else {
+                if (text == null)
+                    text = document.body().text();
+                return text;
             }
-
-            // Safeguard
-            if (jsender == null &&
-                    jrecipient == null &&
-                    jsubject == null &&
-                    !jcondition.optBoolean("attachments") &&
-                    jheader == null &&
-                    jbody == null &&
-                    jdate == null &&
-                    jschedule == null &&
-                    !jcondition.has("younger"))
-                return false;
-        } catch (JSONException ex) {
-            Log.e(ex);
-            return false;
         }
-
-        return true;
-    }
-
-    private boolean matches(Context context, EntityMessage message, String needle, String haystack, boolean regex) {
-        boolean matched = false;
-        if (needle != null && haystack != null)
-            if (regex) {
-                Pattern pattern = Pattern.compile(needle, Pattern.DOTALL);
-                matched = pattern.matcher(haystack).matches();
-            } else
-                matched = haystack.toLowerCase().contains(needle.trim().toLowerCase());
-
-        if (matched)
-            EntityLog.log(context, EntityLog.Type.Rules, message,
-                    "Rule=" + name + "@" + order + " matched " +
-                            " needle=" + needle + " haystack=" + haystack + " regex=" + regex);
-        else
-            Log.i("Rule=" + name + "@" + order + " matched=" + matched +
-                    " needle=" + needle + " haystack=" + haystack + " regex=" + regex);
-        return matched;
     }
 
     boolean execute(Context context, EntityMessage message) throws JSONException {
@@ -1195,8 +1344,7 @@ public class EntityRule {
             sb.append(res.getString(R.string.title_rule_tts_subject))
                     .append(' ').append(message.subject).append(". ");
 
-        String body = Helper.readText(message.getFile(context));
-        String text = HtmlHelper.getFullText(body);
+        String text = HtmlHelper.getFullText(context, message.id);
         String preview = HtmlHelper.getPreview(text);
 
         if (!TextUtils.isEmpty(preview))
@@ -1416,7 +1564,7 @@ public class EntityRule {
         boolean regex = jsender.optBoolean("regex");
 
         if (regex) {
-            Pattern pattern = Pattern.compile(value, Pattern.DOTALL);
+            Pattern pattern = getPattern(value);
             if (!pattern.matcher(sender).matches())
                 return false;
         } else {
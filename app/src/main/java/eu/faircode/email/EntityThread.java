@@ -0,0 +1,117 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2023 by Marcel Bokhorst (M66B)
+*/
+
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+
+// Aggregates of the visible messages of a conversation,
+// database triggers mark changed conversations in thread_stale,
+// which are recomputed once per outermost transaction, see DB.refreshThreads
+
+// Unlike the aggregates computed by pagedUnified and pagedFolder:
+// - conversations are per (account, thread), so the folder list no longer counts
+//   messages of the same conversation in other accounts
+// - hidden messages are never counted, so the debug mode, showing hidden messages, doesn't use this table
+
+@Entity(
+        tableName = EntityThread.TABLE_NAME,
+        primaryKeys = {"account", "thread"}
+)
+public class EntityThread {
+    static final String TABLE_NAME = "thread";
+
+    static final String COLUMNS = "account, thread, count, unseen, unflagged, drafts" +
+            ", visible, visible_unseen, attachments, snoozed, total, received, senders, recipients";
+
+    @NonNull
+    public Long account;
+    @NonNull
+    public String thread;
+    @NonNull
+    public Integer count;
+    @NonNull
+    public Integer unseen;
+    @NonNull
+    public Integer unflagged;
+    @NonNull
+    public Integer drafts;
+    @NonNull
+    public Integer visible;
+    @NonNull
+    public Integer visible_unseen;
+    @NonNull
+    public Integer attachments;
+    @NonNull
+    public Integer snoozed;
+    public Long total;
+    @NonNull
+    public Long received;
+    public String senders;
+    public String recipients;
+
+    static String getSummary(String where) {
+        return "SELECT m.account, m.thread" +
+                ", COUNT(m.id)" +
+                ", SUM(1 - m.ui_seen)" +
+                ", SUM(1 - m.ui_flagged)" +
+                ", SUM(f.type = '" + EntityFolder.DRAFTS + "')" +
+                ", COUNT(DISTINCT" +
+                "   CASE WHEN NOT m.hash IS NULL THEN m.hash" +
+                "   WHEN NOT m.msgid IS NULL THEN m.msgid" +
+                "   ELSE m.id END)" +
+                ", COUNT(DISTINCT" +
+                "   CASE WHEN m.ui_seen THEN NULL" +
+                "   WHEN NOT m.hash IS NULL THEN m.hash" +
+                "   WHEN NOT m.msgid IS NULL THEN m.msgid" +
+                "   ELSE m.id END)" +
+                ", SUM(m.attachments)" +
+                ", SUM(CASE WHEN m.ui_snoozed IS NULL THEN 0 ELSE 1 END)" +
+                ", SUM(m.total)" +
+                ", MAX(m.received)" +
+                ", '[' || group_concat(m.`from`, ',') || ']'" +
+                ", '[' || group_concat(m.`to`, ',') || ']'" +
+                " FROM (SELECT * FROM message" +
+                "  WHERE " + where +
+                "  AND NOT thread IS NULL" +
+                "  AND NOT ui_hide" +
+                "  ORDER BY received DESC) AS m" + // group_concat
+                " JOIN folder AS f ON f.id = m.folder" +
+                " GROUP BY m.account, m.thread";
+    }
+
+    static String getStale(String row) {
+        return "INSERT OR IGNORE INTO thread_stale (account, thread)" +
+                " VALUES (" + row + ".account, " + row + ".thread);";
+    }
+
+    static String[] getRefresh() {
+        String stale = "EXISTS (SELECT 1 FROM thread_stale AS s" +
+                " WHERE s.account = %1$s.account AND s.thread = %1$s.thread)";
+        return new String[]{
+                "DELETE FROM thread WHERE " + String.format(stale, "thread"),
+                "INSERT INTO thread (" + COLUMNS + ") " +
+                        getSummary("thread IN (SELECT thread FROM thread_stale)" +
+                                " AND " + String.format(stale, "message")),
+                "DELETE FROM thread_stale"
+        };
+    }
+}
@@ -0,0 +1,38 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2023 by Marcel Bokhorst (M66B)
+*/
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+
+// Conversations with changed messages, see EntityThread
+
+@Entity(
+        tableName = EntityThreadStale.TABLE_NAME,
+        primaryKeys = {"account", "thread"}
+)
+public class EntityThreadStale {
+    static final String TABLE_NAME = "thread_stale";
+
+    @NonNull
+    public Long account;
+    @NonNull
+    public String thread;
+}
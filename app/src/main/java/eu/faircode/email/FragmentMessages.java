@@ -1930,6 +1930,9 @@ public class FragmentMessages extends FragmentBase
                         prev = id;
                     bottom_navigation.getMenu().findItem(R.id.action_prev).setEnabled(prev != null);
                     bottom_navigation.getMenu().findItem(R.id.action_next).setEnabled(next != null);
+
+                    if (id != null)
+                        BodyCache.prefetch(getContext(), id);
                 }
 
                 @Override
@@ -1941,6 +1944,9 @@ public class FragmentMessages extends FragmentBase
                         next = id;
                     bottom_navigation.getMenu().findItem(R.id.action_prev).setEnabled(prev != null);
                     bottom_navigation.getMenu().findItem(R.id.action_next).setEnabled(next != null);
+
+                    if (id != null)
+                        BodyCache.prefetch(getContext(), id);
                 }
 
                 @Override
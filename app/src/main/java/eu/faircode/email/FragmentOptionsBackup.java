@@ -40,6 +40,8 @@ import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 import android.text.style.ForegroundColorSpan;
 import android.text.style.StyleSpan;
+import android.util.JsonReader;
+import android.util.JsonWriter;
 import android.util.Pair;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -71,12 +73,14 @@ import org.xmlpull.v1.XmlPullParserFactory;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.security.spec.KeySpec;
@@ -86,6 +90,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -389,13 +394,93 @@ public class FragmentOptionsBackup extends FragmentBase implements SharedPrefere
                     throw new IllegalArgumentException(context.getString(R.string.title_no_stream));
                 }
 
-                Log.i("Collecting data");
                 DB db = DB.getInstance(context);
                 NotificationManager nm = Helper.getSystemService(context, NotificationManager.class);
 
+                ContentResolver resolver = context.getContentResolver();
+                DocumentFile file = DocumentFile.fromSingleUri(context, uri);
+                try (OutputStream raw = resolver.openOutputStream(uri)) {
+                    Log.i("Writing URI=" + uri + " name=" + file.getName() + " virtual=" + file.isVirtual());
+                    if (raw == null)
+                        throw new FileNotFoundException(uri.toString());
+
+                    if (TextUtils.isEmpty(password))
+                        writeExport(context, db, nm, raw);
+                    else {
+                        // https://developer.android.com/reference/javax/crypto/Cipher
+                        // https://developer.android.com/reference/kotlin/javax/crypto/SecretKeyFactory
+                        int version = 0;
+                        int ivLen = (version == 0 ? 16 : 12);
+                        String derivation = (version == 0 ? "PBKDF2WithHmacSHA1" : "PBKDF2WithHmacSHA512");
+                        int iterations = (version == 0 ? 65536 : 120000);
+                        int keyLen = 256;
+                        String transformation = (version == 0 ? "AES/CBC/PKCS5Padding" : "AES/GCM/NoPadding");
+                        Log.i("Export version=" + version +
+                                " ivLen=" + ivLen +
+                                " derivation=" + derivation +
+                                " iterations=" + iterations +
+                                " keyLen=" + keyLen +
+                                " transformation=" + transformation);
+
+                        byte[] salt = new byte[16];
+                        SecureRandom random = new SecureRandom();
+                        random.nextBytes(salt);
+
+                        // https://docs.oracle.com/javase/7/docs/technotes/guides/security/StandardNames.html#Cipher
+                        SecretKeyFactory keyFactory = SecretKeyFactory.getInstance(derivation);
+                        KeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt, iterations, keyLen);
+                        SecretKey secret = keyFactory.generateSecret(keySpec);
+                        Cipher cipher = Cipher.getInstance(transformation);
+                        cipher.init(Cipher.ENCRYPT_MODE, secret);
+
+                        if (version > 0) {
+                            raw.write("___FairEmail___".getBytes(StandardCharsets.US_ASCII));
+                            raw.write(version); // version
+                        }
+                        raw.write(salt);
+                        raw.write(cipher.getIV());
+
+                        OutputStream cout = new CipherOutputStream(raw, cipher);
+                        writeExport(context, db, nm, cout);
+                        cout.flush();
+                        raw.write(cipher.doFinal());
+                    }
+                }
+
+                Log.i("Exported data");
+
+                return null;
+            }
+
+            private void writeExport(Context context, DB db, NotificationManager nm, OutputStream os) throws IOException, JSONException {
+                // Written section by section, so the export does not need to fit in memory
+                JsonWriter jexport = new JsonWriter(new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8)));
+                jexport.setIndent("  ");
+                jexport.beginObject();
+
+                // Answers, before the rules referring to them
+                jexport.name("answers").beginArray();
+                for (EntityAnswer answer : db.answer().getAnswers(true))
+                    writeJson(jexport, answer.toJSON());
+                jexport.endArray();
+
+                // Searches
+                jexport.name("searches").beginArray();
+                for (EntitySearch search : db.search().getSearches())
+                    writeJson(jexport, search.toJSON());
+                jexport.endArray();
+
+                // Certificates
+                jexport.name("certificates").beginArray();
+                for (EntityCertificate certificate : db.certificate().getCertificates())
+                    writeJson(jexport, certificate.toJSON());
+                jexport.endArray();
+
                 // Accounts
-                JSONArray jaccounts = new JSONArray();
+                jexport.name("accounts").beginArray();
                 for (EntityAccount account : db.account().getAccounts()) {
+                    postProgress(context.getString(R.string.title_importing_account, account.name));
+
                     // Account
                     JSONObject jaccount = account.toJSON();
 
@@ -472,36 +557,30 @@ public class FragmentOptionsBackup extends FragmentBase implements SharedPrefere
                     }
                     jaccount.put("folders", jfolders);
 
-                    // Contacts
-                    JSONArray jcontacts = new JSONArray();
+                    // Contacts last, so they can be imported one by one
+                    jexport.beginObject();
+                    for (Iterator<String> it = jaccount.keys(); it.hasNext(); ) {
+                        String key = it.next();
+                        jexport.name(key);
+                        writeJson(jexport, jaccount.opt(key));
+                    }
+
+                    jexport.name("contacts").beginArray();
                     for (EntityContact contact : db.contact().getContacts(account.id))
-                        jcontacts.put(contact.toJSON());
-                    jaccount.put("contacts", jcontacts);
+                        writeJson(jexport, contact.toJSON());
+                    jexport.endArray();
 
-                    jaccounts.put(jaccount);
+                    jexport.endObject();
                 }
-
-                // Answers
-                JSONArray janswers = new JSONArray();
-                for (EntityAnswer answer : db.answer().getAnswers(true))
-                    janswers.put(answer.toJSON());
-
-                // Searches
-                JSONArray jsearches = new JSONArray();
-                for (EntitySearch search : db.search().getSearches())
-                    jsearches.put(search.toJSON());
-
-                // Certificates
-                JSONArray jcertificates = new JSONArray();
-                for (EntityCertificate certificate : db.certificate().getCertificates())
-                    jcertificates.put(certificate.toJSON());
+                jexport.endArray();
 
                 // Settings
                 SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-                JSONArray jsettings = new JSONArray();
-                for (String key : prefs.getAll().keySet()) {
+                Map<String, ?> settings = prefs.getAll();
+                jexport.name("settings").beginArray();
+                for (String key : settings.keySet()) {
                     JSONObject jsetting = new JSONObject();
-                    Object value = prefs.getAll().get(key);
+                    Object value = settings.get(key);
                     jsetting.put("key", key);
                     jsetting.put("value", value);
                     if (value instanceof Boolean)
@@ -519,89 +598,41 @@ public class FragmentOptionsBackup extends FragmentBase implements SharedPrefere
                         Log.w("Unknown type=" + type);
                         jsetting.put("type", type);
                     }
-                    jsettings.put(jsetting);
+                    writeJson(jexport, jsetting);
                 }
 
                 JSONObject jsearch = new JSONObject();
                 jsearch.put("key", "external_search");
                 jsearch.put("value", Helper.isComponentEnabled(context, ActivitySearch.class));
                 jsearch.put("type", "bool");
-                jsettings.put(jsearch);
-
-                JSONObject jexport = new JSONObject();
-                jexport.put("accounts", jaccounts);
-                jexport.put("answers", janswers);
-                jexport.put("searches", jsearches);
-                jexport.put("certificates", jcertificates);
-                jexport.put("settings", jsettings);
+                writeJson(jexport, jsearch);
+                jexport.endArray();
 
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                    JSONArray jchannels = new JSONArray();
+                    jexport.name("channels").beginArray();
                     for (NotificationChannel channel : nm.getNotificationChannels()) {
                         String id = channel.getId();
                         if (id.startsWith("notification.") && id.contains("@") &&
                                 channel.getImportance() != NotificationManager.IMPORTANCE_NONE) {
                             JSONObject jchannel = NotificationHelper.channelToJSON(channel);
-                            jchannels.put(jchannel);
+                            writeJson(jexport, jchannel);
                             Log.i("Exported contact channel=" + jchannel);
                         }
                     }
-                    jexport.put("channels", jchannels);
+                    jexport.endArray();
                 }
 
-                ContentResolver resolver = context.getContentResolver();
-                DocumentFile file = DocumentFile.fromSingleUri(context, uri);
-                try (OutputStream raw = resolver.openOutputStream(uri)) {
-                    Log.i("Writing URI=" + uri + " name=" + file.getName() + " virtual=" + file.isVirtual());
-                    if (raw == null)
-                        throw new FileNotFoundException(uri.toString());
-
-                    if (TextUtils.isEmpty(password))
-                        raw.write(jexport.toString(2).getBytes());
-                    else {
-                        // https://developer.android.com/reference/javax/crypto/Cipher
-                        // https://developer.android.com/reference/kotlin/javax/crypto/SecretKeyFactory
-                        int version = 0;
-                        int ivLen = (version == 0 ? 16 : 12);
-                        String derivation = (version == 0 ? "PBKDF2WithHmacSHA1" : "PBKDF2WithHmacSHA512");
-                        int iterations = (version == 0 ? 65536 : 120000);
-                        int keyLen = 256;
-                        String transformation = (version == 0 ? "AES/CBC/PKCS5Padding" : "AES/GCM/NoPadding");
-                        Log.i("Export version=" + version +
-                                " ivLen=" + ivLen +
-                                " derivation=" + derivation +
-                                " iterations=" + iterations +
-                                " keyLen=" + keyLen +
-                                " transformation=" + transformation);
-
-                        byte[] salt = new byte[16];
-                        SecureRandom random = new SecureRandom();
-                        random.nextBytes(salt);
-
-                        // https://docs.oracle.com/javase/7/docs/technotes/guides/security/StandardNames.html#Cipher
-                        SecretKeyFactory keyFactory = SecretKeyFactory.getInstance(derivation);
-                        KeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt, iterations, keyLen);
-                        SecretKey secret = keyFactory.generateSecret(keySpec);
-                        Cipher cipher = Cipher.getInstance(transformation);
-                        cipher.init(Cipher.ENCRYPT_MODE, secret);
-
-                        if (version > 0) {
-                            raw.write("___FairEmail___".getBytes(StandardCharsets.US_ASCII));
-                            raw.write(version); // version
-                        }
-                        raw.write(salt);
-                        raw.write(cipher.getIV());
-
-                        OutputStream cout = new CipherOutputStream(raw, cipher);
-                        cout.write(jexport.toString(2).getBytes());
-                        cout.flush();
-                        raw.write(cipher.doFinal());
-                    }
-                }
-
-                Log.i("Exported data");
+                jexport.endObject();
+                jexport.flush();
+            }
 
-                return null;
+            @Override
+            protected void onProgress(CharSequence status, Bundle data) {
+                if (toast == null || toast.getView() == null)
+                    return;
+                TextView tv = toast.getView().findViewById(android.R.id.message);
+                if (tv != null)
+                    tv.setText(status);
             }
 
             @Override
@@ -730,7 +761,6 @@ public class FragmentOptionsBackup extends FragmentBase implements SharedPrefere
 
                 NoStreamException.check(uri, context);
 
-                StringBuilder data = new StringBuilder();
                 Log.i("Reading URI=" + uri);
                 ContentResolver resolver = context.getContentResolver();
                 InputStream is = resolver.openInputStream(uri);
@@ -776,23 +806,39 @@ public class FragmentOptionsBackup extends FragmentBase implements SharedPrefere
                         in = new CipherInputStream(raw, cipher);
                     }
 
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-                    String line;
-                    while ((line = reader.readLine()) != null)
-                        data.append(line);
-                }
+                    // Read section by section, so the import does not need to fit in memory
+                    JsonReader jimport = new JsonReader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+                    try {
+                        jimport.beginObject();
+                    } catch (IOException | IllegalStateException ex) {
+                        Log.i("Invalid JSON " + ex);
+                        throw new IllegalArgumentException(context.getString(R.string.title_setup_password_invalid));
+                    }
 
-                String json = data.toString();
-                if (!json.startsWith("{") || !json.endsWith("}")) {
-                    Log.i("Invalid JSON");
-                    throw new IllegalArgumentException(context.getString(R.string.title_setup_password_invalid));
+                    Log.i("Importing data");
+                    readImport(context, jimport,
+                            import_accounts, import_delete, import_rules, import_contacts,
+                            import_answers, import_searches, import_settings);
                 }
 
-                Log.i("Importing data");
-                JSONObject jimport = new JSONObject(json);
+                ServiceSynchronize.eval(context, "import");
+                Log.i("Imported data");
+
+                SpannableStringBuilder ssb = new SpannableStringBuilderEx();
+                ssb.append(context.getString(R.string.title_setup_imported));
+                ssb.setSpan(new StyleSpan(Typeface.BOLD), 0, ssb.length(), 0);
+                postProgress(ssb, null);
+                return null;
+            }
 
+            private void readImport(Context context, JsonReader jimport,
+                                    boolean import_accounts, boolean import_delete, boolean import_rules, boolean import_contacts,
+                                    boolean import_answers, boolean import_searches, boolean import_settings)
+                    throws IOException, JSONException {
                 DB db = DB.getInstance(context);
                 NotificationManager nm = Helper.getSystemService(context, NotificationManager.class);
+                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+                SharedPreferences.Editor editor = prefs.edit();
                 try {
                     db.beginTransaction();
 
@@ -801,449 +847,512 @@ public class FragmentOptionsBackup extends FragmentBase implements SharedPrefere
                     Map<Long, Long> xFolder = new HashMap<>();
                     List<EntityRule> rules = new ArrayList<>();
 
-                    if (import_answers) {
-                        postProgress(context.getString(R.string.title_setup_import_answers), null);
-
-                        // Answers
-                        JSONArray janswers = jimport.getJSONArray("answers");
-                        for (int a = 0; a < janswers.length(); a++) {
-                            JSONObject janswer = (JSONObject) janswers.get(a);
-                            EntityAnswer answer = EntityAnswer.fromJSON(janswer);
-                            long id = answer.id;
-                            answer.id = null;
-
-                            EntityAnswer existing = db.answer().getAnswerByUUID(answer.uuid);
-                            if (existing != null)
-                                db.answer().deleteAnswer(existing.id);
-
-                            answer.id = db.answer().insertAnswer(answer);
-                            xAnswer.put(id, answer.id);
-
-                            Log.i("Imported answer=" + answer.name + " id=" + answer.id + " (" + id + ")");
-                        }
-                    }
-
-                    if (import_searches && jimport.has("searches")) {
-                        postProgress(context.getString(R.string.title_setup_import_searches), null);
-
-                        JSONArray jsearches = jimport.getJSONArray("searches");
-                        for (int s = 0; s < jsearches.length(); s++) {
-                            JSONObject jsearch = (JSONObject) jsearches.get(s);
-                            EntitySearch search = EntitySearch.fromJSON(jsearch);
-
-                            boolean found = false;
-                            for (EntitySearch other : db.search().getSearches())
-                                if (other.equals(search)) {
-                                    found = true;
+                    EntityAccount primary = db.account().getPrimaryAccount();
+
+                    // Sections are processed in the order of the file
+                    // Rules are processed last, because they can refer to answers and other accounts
+                    while (jimport.hasNext()) {
+                        String section = jimport.nextName();
+                        Log.i("Importing section=" + section);
+                        switch (section) {
+                            case "answers":
+                                if (!import_answers) {
+                                    jimport.skipValue();
                                     break;
                                 }
 
-                            if (!found) {
-                                search.id = null;
-                                db.search().insertSearch(search);
-                            }
-                        }
-                    }
-
-                    if (import_accounts) {
-                        EntityAccount primary = db.account().getPrimaryAccount();
-
-                        // Accounts
-                        JSONArray jaccounts = jimport.getJSONArray("accounts");
-                        for (int a = 0; a < jaccounts.length(); a++) {
-                            JSONObject jaccount = (JSONObject) jaccounts.get(a);
-                            EntityAccount account = EntityAccount.fromJSON(jaccount);
-                            postProgress(context.getString(R.string.title_importing_account, account.name));
+                                postProgress(context.getString(R.string.title_setup_import_answers), null);
 
-                            if (import_delete) {
-                                EntityAccount delete = db.account().getAccount(account.auth_type, account.user);
-                                if (delete != null)
-                                    db.account().deleteAccount(delete.id);
-                            }
-
-                            EntityAccount existing = db.account().getAccountByUUID(account.uuid);
-                            if (existing != null) {
-                                SpannableStringBuilder ssb = new SpannableStringBuilderEx();
-                                ssb.append(context.getString(R.string.title_importing_exists));
-                                ssb.setSpan(new StyleSpan(Typeface.BOLD), 0, ssb.length(), 0);
-                                postProgress(ssb);
-                                EntityLog.log(context, "Existing account=" + account.name +
-                                        "id=" + account.id);
-                                continue;
-                            }
+                                jimport.beginArray();
+                                while (jimport.hasNext()) {
+                                    JSONObject janswer = (JSONObject) readJson(jimport);
+                                    EntityAnswer answer = EntityAnswer.fromJSON(janswer);
+                                    long id = answer.id;
+                                    answer.id = null;
 
-                            if (account.auth_type == AUTH_TYPE_GMAIL &&
-                                    GmailState.getAccount(context, account.user) == null) {
-                                SpannableStringBuilder ssb = new SpannableStringBuilderEx();
-                                ssb.append(account.name).append(": ");
-                                ssb.append(context.getString(R.string.title_importing_wizard));
-                                ssb.setSpan(new StyleSpan(Typeface.BOLD), 0, ssb.length(), 0);
-                                ssb.setSpan(new ForegroundColorSpan(colorWarning), 0, ssb.length(), 0);
-                                postProgress(ssb);
-                                EntityLog.log(context, "Run wizard account=" + account.name +
-                                        "id=" + account.id);
-                                account.synchronize = false;
-                            }
+                                    EntityAnswer existing = db.answer().getAnswerByUUID(answer.uuid);
+                                    if (existing != null)
+                                        db.answer().deleteAnswer(existing.id);
 
-                            Long aid = account.id;
-                            account.id = null;
+                                    answer.id = db.answer().insertAnswer(answer);
+                                    xAnswer.put(id, answer.id);
 
-                            if (primary != null)
-                                account.primary = false;
+                                    Log.i("Imported answer=" + answer.name + " id=" + answer.id + " (" + id + ")");
+                                }
+                                jimport.endArray();
+                                break;
 
-                            // Forward referenced
-                            Long swipe_left = account.swipe_left;
-                            Long swipe_right = account.swipe_right;
-                            Long move_to = account.move_to;
-                            if (account.swipe_left != null && account.swipe_left > 0)
-                                account.swipe_left = null;
-                            if (account.swipe_right != null && account.swipe_right > 0)
-                                account.swipe_right = null;
-                            account.move_to = null;
+                            case "searches":
+                                if (!import_searches) {
+                                    jimport.skipValue();
+                                    break;
+                                }
 
-                            account.created = new Date().getTime();
-                            account.id = db.account().insertAccount(account);
-                            EntityLog.log(context, "Imported account=" + account.name +
-                                    " id=" + account.id + " (" + aid + ")");
+                                postProgress(context.getString(R.string.title_setup_import_searches), null);
 
-                            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                                account.deleteNotificationChannel(context);
+                                jimport.beginArray();
+                                while (jimport.hasNext()) {
+                                    JSONObject jsearch = (JSONObject) readJson(jimport);
+                                    EntitySearch search = EntitySearch.fromJSON(jsearch);
 
-                                if (account.notify)
-                                    if (jaccount.has("channel"))
-                                        try {
-                                            NotificationChannelGroup group = new NotificationChannelGroup("group." + account.id, account.name);
-                                            nm.createNotificationChannelGroup(group);
-
-                                            JSONObject jchannel = (JSONObject) jaccount.get("channel");
-                                            jchannel.put("id", EntityAccount.getNotificationChannelId(account.id));
-                                            jchannel.put("group", group.getId());
-                                            nm.createNotificationChannel(NotificationHelper.channelFromJSON(context, jchannel));
-
-                                            Log.i("Imported account channel=" + jchannel);
-                                        } catch (Throwable ex) {
-                                            Log.e(ex);
-                                            account.createNotificationChannel(context);
+                                    boolean found = false;
+                                    for (EntitySearch other : db.search().getSearches())
+                                        if (other.equals(search)) {
+                                            found = true;
+                                            break;
                                         }
-                                    else
-                                        account.createNotificationChannel(context);
-                            }
 
-                            JSONArray jidentities = (JSONArray) jaccount.get("identities");
-                            for (int i = 0; i < jidentities.length(); i++) {
-                                JSONObject jidentity = (JSONObject) jidentities.get(i);
-                                EntityIdentity identity = EntityIdentity.fromJSON(jidentity);
-                                postProgress(context.getString(R.string.title_importing_identity, identity.email));
+                                    if (!found) {
+                                        search.id = null;
+                                        db.search().insertSearch(search);
+                                    }
+                                }
+                                jimport.endArray();
+                                break;
 
-                                long id = identity.id;
-                                identity.id = null;
+                            case "accounts":
+                                if (!import_accounts) {
+                                    jimport.skipValue();
+                                    break;
+                                }
 
-                                identity.account = account.id;
-                                identity.id = db.identity().insertIdentity(identity);
-                                xIdentity.put(id, identity.id);
+                                jimport.beginArray();
+                                while (jimport.hasNext())
+                                    readAccount(context, jimport, primary,
+                                            import_delete, import_contacts,
+                                            xIdentity, xFolder, rules);
+                                jimport.endArray();
+                                break;
+
+                            case "certificates":
+                                if (!import_settings) {
+                                    jimport.skipValue();
+                                    break;
+                                }
 
-                                Log.i("Imported identity=" + identity.email + " id=" + identity + id + " (" + id + ")");
-                            }
+                                jimport.beginArray();
+                                while (jimport.hasNext()) {
+                                    JSONObject jcertificate = (JSONObject) readJson(jimport);
+                                    EntityCertificate certificate = EntityCertificate.fromJSON(jcertificate);
+                                    EntityCertificate record = db.certificate().getCertificate(certificate.fingerprint, certificate.email);
+                                    if (record == null) {
+                                        db.certificate().insertCertificate(certificate);
+                                        Log.i("Imported certificate=" + certificate.email);
+                                    }
+                                }
+                                jimport.endArray();
+                                break;
 
-                            JSONArray jfolders = (JSONArray) jaccount.get("folders");
-                            for (int f = 0; f < jfolders.length(); f++) {
-                                JSONObject jfolder = (JSONObject) jfolders.get(f);
-                                EntityFolder folder = EntityFolder.fromJSON(jfolder);
-                                long id = folder.id;
-                                folder.id = null;
-
-                                folder.account = account.id;
-                                folder.id = db.folder().insertFolder(folder);
-                                xFolder.put(id, folder.id);
-
-                                if (Objects.equals(swipe_left, id))
-                                    account.swipe_left = folder.id;
-                                if (Objects.equals(swipe_right, id))
-                                    account.swipe_right = folder.id;
-                                if (Objects.equals(move_to, id))
-                                    account.move_to = folder.id;
-
-                                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                                    String channelId = EntityFolder.getNotificationChannelId(folder.id);
-                                    nm.deleteNotificationChannel(channelId);
-
-                                    if (jfolder.has("channel"))
-                                        try {
-                                            NotificationChannelGroup group = new NotificationChannelGroup("group." + account.id, account.name);
-                                            nm.createNotificationChannelGroup(group);
+                            case "settings":
+                                if (!import_settings) {
+                                    jimport.skipValue();
+                                    break;
+                                }
 
-                                            JSONObject jchannel = (JSONObject) jfolder.get("channel");
-                                            jchannel.put("id", channelId);
-                                            jchannel.put("group", group.getId());
-                                            nm.createNotificationChannel(NotificationHelper.channelFromJSON(context, jchannel));
+                                postProgress(context.getString(R.string.title_setup_import_settings), null);
 
-                                            Log.i("Imported folder channel=" + jchannel);
-                                        } catch (Throwable ex) {
-                                            Log.e(ex);
-                                        }
+                                jimport.beginArray();
+                                while (jimport.hasNext()) {
+                                    JSONObject jsetting = (JSONObject) readJson(jimport);
+                                    importSetting(context, editor, jsetting);
                                 }
+                                jimport.endArray();
+                                break;
 
-                                if (jfolder.has("rules")) {
-                                    JSONArray jrules = jfolder.getJSONArray("rules");
-                                    for (int r = 0; r < jrules.length(); r++) {
-                                        JSONObject jrule = (JSONObject) jrules.get(r);
-                                        EntityRule rule = EntityRule.fromJSON(jrule);
-                                        rule.folder = folder.id;
-                                        rules.add(rule);
-                                    }
+                            case "channels":
+                                if (!import_accounts || Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+                                    jimport.skipValue();
+                                    break;
                                 }
-                                Log.i("Imported folder=" + folder.name + " id=" + folder.id + " (" + id + ")");
-                            }
 
-                            if (import_contacts) {
-                                // Contacts
-                                if (jaccount.has("contacts")) {
-                                    postProgress(context.getString(R.string.title_setup_import_contacts), null);
-
-                                    JSONArray jcontacts = jaccount.getJSONArray("contacts");
-                                    for (int c = 0; c < jcontacts.length(); c++) {
-                                        JSONObject jcontact = (JSONObject) jcontacts.get(c);
-                                        EntityContact contact = EntityContact.fromJSON(jcontact);
-                                        contact.account = account.id;
-                                        contact.identity = xIdentity.get(contact.identity);
-                                        if (db.contact().getContact(contact.account, contact.type, contact.email) == null)
-                                            contact.id = db.contact().insertContact(contact);
+                                jimport.beginArray();
+                                while (jimport.hasNext()) {
+                                    JSONObject jchannel = (JSONObject) readJson(jimport);
+                                    try {
+                                        String channelId = jchannel.getString("id");
+                                        nm.deleteNotificationChannel(channelId);
+
+                                        nm.createNotificationChannel(NotificationHelper.channelFromJSON(context, jchannel));
+
+                                        Log.i("Imported contact channel=" + jchannel);
+                                    } catch (Throwable ex) {
+                                        Log.e(ex);
                                     }
-                                    Log.i("Imported contacts=" + jcontacts.length());
                                 }
-                            }
+                                jimport.endArray();
+                                break;
 
-                            // Update swipe left/right
-                            db.account().updateAccount(account);
+                            default:
+                                Log.w("Unknown section=" + section);
+                                jimport.skipValue();
                         }
+                    }
+                    jimport.endObject();
 
-                        if (import_rules) {
-                            postProgress(context.getString(R.string.title_setup_import_rules), null);
-                            for (EntityRule rule : rules) {
-                                try {
-                                    JSONObject jaction = new JSONObject(rule.action);
-
-                                    int type = jaction.getInt("type");
-                                    switch (type) {
-                                        case EntityRule.TYPE_MOVE:
-                                        case EntityRule.TYPE_COPY:
-                                            String targetAccountUuid = jaction.optString("targetAccountUuid");
-                                            String targetFolderName = jaction.optString("targetFolderName");
-                                            if (!TextUtils.isEmpty(targetAccountUuid) && !TextUtils.isEmpty(targetFolderName)) {
-                                                EntityAccount a = db.account().getAccountByUUID(targetAccountUuid);
-                                                if (a != null) {
-                                                    EntityFolder f = db.folder().getFolderByName(a.id, targetFolderName);
-                                                    if (f != null) {
-                                                        jaction.put("target", f.id);
-                                                        break;
-                                                    }
-                                                }
-                                            }
+                    if (import_accounts && import_rules) {
+                        postProgress(context.getString(R.string.title_setup_import_rules), null);
+                        for (EntityRule rule : rules) {
+                            try {
+                                JSONObject jaction = new JSONObject(rule.action);
 
-                                            // Legacy
-                                            long target = jaction.getLong("target");
-                                            Long tid = xFolder.get(target);
-                                            Log.i("XLAT target " + target + " > " + tid);
-                                            if (tid != null)
-                                                jaction.put("target", tid);
-                                            break;
-                                        case EntityRule.TYPE_ANSWER:
-                                            String identityUuid = jaction.optString("identityUuid");
-                                            String answerUuid = jaction.optString("answerUuid");
-                                            if (!TextUtils.isEmpty(identityUuid) && !TextUtils.isEmpty(answerUuid)) {
-                                                EntityIdentity i = db.identity().getIdentityByUUID(identityUuid);
-                                                EntityAnswer a = db.answer().getAnswerByUUID(answerUuid);
-                                                if (i != null && a != null) {
-                                                    jaction.put("identity", i.id);
-                                                    jaction.put("answer", a.id);
+                                int type = jaction.getInt("type");
+                                switch (type) {
+                                    case EntityRule.TYPE_MOVE:
+                                    case EntityRule.TYPE_COPY:
+                                        String targetAccountUuid = jaction.optString("targetAccountUuid");
+                                        String targetFolderName = jaction.optString("targetFolderName");
+                                        if (!TextUtils.isEmpty(targetAccountUuid) && !TextUtils.isEmpty(targetFolderName)) {
+                                            EntityAccount a = db.account().getAccountByUUID(targetAccountUuid);
+                                            if (a != null) {
+                                                EntityFolder f = db.folder().getFolderByName(a.id, targetFolderName);
+                                                if (f != null) {
+                                                    jaction.put("target", f.id);
                                                     break;
                                                 }
                                             }
+                                        }
 
-                                            // Legacy
-                                            long identity = jaction.getLong("identity");
-                                            long answer = jaction.getLong("answer");
-                                            Long iid = xIdentity.get(identity);
-                                            Long aid = xAnswer.get(answer);
-                                            Log.i("XLAT identity " + identity + " > " + iid);
-                                            Log.i("XLAT answer " + answer + " > " + aid);
-                                            jaction.put("identity", iid);
-                                            jaction.put("answer", aid);
-                                            break;
-                                    }
+                                        // Legacy
+                                        long target = jaction.getLong("target");
+                                        Long tid = xFolder.get(target);
+                                        Log.i("XLAT target " + target + " > " + tid);
+                                        if (tid != null)
+                                            jaction.put("target", tid);
+                                        break;
+                                    case EntityRule.TYPE_ANSWER:
+                                        String identityUuid = jaction.optString("identityUuid");
+                                        String answerUuid = jaction.optString("answerUuid");
+                                        if (!TextUtils.isEmpty(identityUuid) && !TextUtils.isEmpty(answerUuid)) {
+                                            EntityIdentity i = db.identity().getIdentityByUUID(identityUuid);
+                                            EntityAnswer a = db.answer().getAnswerByUUID(answerUuid);
+                                            if (i != null && a != null) {
+                                                jaction.put("identity", i.id);
+                                                jaction.put("answer", a.id);
+                                                break;
+                                            }
+                                        }
 
-                                    rule.action = jaction.toString();
-                                } catch (JSONException ex) {
-                                    Log.e(ex);
+                                        // Legacy
+                                        long identity = jaction.getLong("identity");
+                                        long answer = jaction.getLong("answer");
+                                        Long iid = xIdentity.get(identity);
+                                        Long aid = xAnswer.get(answer);
+                                        Log.i("XLAT identity " + identity + " > " + iid);
+                                        Log.i("XLAT answer " + answer + " > " + aid);
+                                        jaction.put("identity", iid);
+                                        jaction.put("answer", aid);
+                                        break;
                                 }
 
-                                db.rule().insertRule(rule);
+                                rule.action = jaction.toString();
+                            } catch (JSONException ex) {
+                                Log.e(ex);
                             }
+
+                            db.rule().insertRule(rule);
                         }
                     }
 
                     if (import_settings) {
-                        postProgress(context.getString(R.string.title_setup_import_settings), null);
-
-                        // Certificates
-                        if (jimport.has("certificates")) {
-                            JSONArray jcertificates = jimport.getJSONArray("certificates");
-                            for (int c = 0; c < jcertificates.length(); c++) {
-                                JSONObject jcertificate = (JSONObject) jcertificates.get(c);
-                                EntityCertificate certificate = EntityCertificate.fromJSON(jcertificate);
-                                EntityCertificate record = db.certificate().getCertificate(certificate.fingerprint, certificate.email);
-                                if (record == null) {
-                                    db.certificate().insertCertificate(certificate);
-                                    Log.i("Imported certificate=" + certificate.email);
-                                }
-                            }
-                        }
+                        editor.apply();
+                        ApplicationEx.upgrade(context);
+                    }
 
-                        // Settings
-                        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-                        SharedPreferences.Editor editor = prefs.edit();
-                        JSONArray jsettings = jimport.getJSONArray("settings");
-                        for (int s = 0; s < jsettings.length(); s++) {
-                            JSONObject jsetting = (JSONObject) jsettings.get(s);
-                            String key = jsetting.getString("key");
-
-                            if ("pro".equals(key) && !BuildConfig.DEBUG)
-                                continue;
-                            if ("iab_json".equals(key) || "iab_signature".equals(key))
-                                continue;
-
-                            if ("accept_unsupported".equals(key))
-                                continue;
-
-                            if ("biometrics".equals(key) || "pin".equals(key))
-                                continue;
-
-                            if ("alert_once".equals(key) && !Helper.isXiaomi())
-                                continue;
-
-                            if ("default_folder".equals(key))
-                                continue;
-
-                            if ("background_service".equals(key) &&
-                                    Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
-                                continue;
-
-                            // Prevent restart
-                            if ("secure".equals(key) ||
-                                    "load_emoji".equals(key) ||
-                                    "shortcuts".equals(key) ||
-                                    "language".equals(key) ||
-                                    "wal".equals(key))
-                                continue;
-
-                            if ("theme".equals(key) || "beige".equals(key)) {
-                                defer.put(key, jsetting.get("value"));
-                                continue;
-                            }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
 
-                            if (key != null && key.startsWith("widget."))
-                                continue;
+            private void readAccount(Context context, JsonReader jimport, EntityAccount primary,
+                                     boolean import_delete, boolean import_contacts,
+                                     Map<Long, Long> xIdentity, Map<Long, Long> xFolder, List<EntityRule> rules)
+                    throws IOException, JSONException {
+                DB db = DB.getInstance(context);
+                NotificationManager nm = Helper.getSystemService(context, NotificationManager.class);
 
-                            if ("external_search".equals(key)) {
-                                boolean external_search = jsetting.getBoolean("value");
-                                Helper.enableComponent(context, ActivitySearch.class, external_search);
-                                continue;
-                            }
+                // Everything but the contacts, which are written last
+                JSONObject jaccount = new JSONObject();
+                jimport.beginObject();
+                while (jimport.hasNext()) {
+                    String name = jimport.nextName();
+                    if ("contacts".equals(name))
+                        break;
+                    jaccount.put(name, readJson(jimport));
+                }
+                boolean contacts = jimport.hasNext();
 
-                            if ("external_storage".equals(key))
-                                continue;
+                EntityAccount account = EntityAccount.fromJSON(jaccount);
+                postProgress(context.getString(R.string.title_importing_account, account.name));
 
-                            if ("reformatted_hint".equals(key))
-                                continue;
+                if (import_delete) {
+                    EntityAccount delete = db.account().getAccount(account.auth_type, account.user);
+                    if (delete != null)
+                        db.account().deleteAccount(delete.id);
+                }
 
-                            Object value = jsetting.get("value");
-                            String type = jsetting.optString("type");
-                            Log.i("Setting name=" + key + " value=" + value + " type=" + type);
-                            switch (type) {
-                                case "bool":
-                                    editor.putBoolean(key, (Boolean) value);
-                                    break;
-                                case "int":
-                                    editor.putInt(key, (Integer) value);
-                                    break;
-                                case "long":
-                                    if (value instanceof Integer)
-                                        editor.putLong(key, Long.valueOf((Integer) value));
-                                    else
-                                        editor.putLong(key, (Long) value);
-                                    break;
-                                case "float":
-                                    editor.putFloat(key, (Float) value);
-                                    break;
-                                case "string":
-                                    editor.putString(key, (String) value);
-                                    break;
-                                default:
-                                    Log.w("Inferring type of value=" + value);
-                                    if (value instanceof Boolean)
-                                        editor.putBoolean(key, (Boolean) value);
-                                    else if (value instanceof Integer) {
-                                        Integer i = (Integer) value;
-                                        if (key.endsWith(".account"))
-                                            editor.putLong(key, Long.valueOf(i));
-                                        else
-                                            editor.putInt(key, i);
-                                    } else if (value instanceof Long)
-                                        editor.putLong(key, (Long) value);
-                                    else if (value instanceof Float || value instanceof Double)
-                                        editor.putFloat(key, (Float) value);
-                                    else if (value instanceof String)
-                                        editor.putString(key, (String) value);
-                                    else {
-                                        String msg = "Unknown settings type" +
-                                                " key=" + key +
-                                                " value=" + value +
-                                                " type=" + (value == null ? null : value.getClass());
-                                        Log.e(msg);
-                                        postProgress(msg);
-                                    }
+                EntityAccount existing = db.account().getAccountByUUID(account.uuid);
+                if (existing != null) {
+                    SpannableStringBuilder ssb = new SpannableStringBuilderEx();
+                    ssb.append(context.getString(R.string.title_importing_exists));
+                    ssb.setSpan(new StyleSpan(Typeface.BOLD), 0, ssb.length(), 0);
+                    postProgress(ssb);
+                    EntityLog.log(context, "Existing account=" + account.name +
+                            "id=" + account.id);
+                    skipObject(jimport, contacts);
+                    return;
+                }
+
+                if (account.auth_type == AUTH_TYPE_GMAIL &&
+                        GmailState.getAccount(context, account.user) == null) {
+                    SpannableStringBuilder ssb = new SpannableStringBuilderEx();
+                    ssb.append(account.name).append(": ");
+                    ssb.append(context.getString(R.string.title_importing_wizard));
+                    ssb.setSpan(new StyleSpan(Typeface.BOLD), 0, ssb.length(), 0);
+                    ssb.setSpan(new ForegroundColorSpan(colorWarning), 0, ssb.length(), 0);
+                    postProgress(ssb);
+                    EntityLog.log(context, "Run wizard account=" + account.name +
+                            "id=" + account.id);
+                    account.synchronize = false;
+                }
+
+                Long aid = account.id;
+                account.id = null;
+
+                if (primary != null)
+                    account.primary = false;
+
+                // Forward referenced
+                Long swipe_left = account.swipe_left;
+                Long swipe_right = account.swipe_right;
+                Long move_to = account.move_to;
+                if (account.swipe_left != null && account.swipe_left > 0)
+                    account.swipe_left = null;
+                if (account.swipe_right != null && account.swipe_right > 0)
+                    account.swipe_right = null;
+                account.move_to = null;
+
+                account.created = new Date().getTime();
+                account.id = db.account().insertAccount(account);
+                EntityLog.log(context, "Imported account=" + account.name +
+                        " id=" + account.id + " (" + aid + ")");
+
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                    account.deleteNotificationChannel(context);
+
+                    if (account.notify)
+                        if (jaccount.has("channel"))
+                            try {
+                                NotificationChannelGroup group = new NotificationChannelGroup("group." + account.id, account.name);
+                                nm.createNotificationChannelGroup(group);
+
+                                JSONObject jchannel = (JSONObject) jaccount.get("channel");
+                                jchannel.put("id", EntityAccount.getNotificationChannelId(account.id));
+                                jchannel.put("group", group.getId());
+                                nm.createNotificationChannel(NotificationHelper.channelFromJSON(context, jchannel));
+
+                                Log.i("Imported account channel=" + jchannel);
+                            } catch (Throwable ex) {
+                                Log.e(ex);
+                                account.createNotificationChannel(context);
                             }
+                        else
+                            account.createNotificationChannel(context);
+                }
 
-                            Log.i("Imported setting=" + key);
-                        }
-                        editor.apply();
-                        ApplicationEx.upgrade(context);
-                    }
+                JSONArray jidentities = (JSONArray) jaccount.get("identities");
+                for (int i = 0; i < jidentities.length(); i++) {
+                    JSONObject jidentity = (JSONObject) jidentities.get(i);
+                    EntityIdentity identity = EntityIdentity.fromJSON(jidentity);
+                    postProgress(context.getString(R.string.title_importing_identity, identity.email));
 
-                    if (import_accounts) {
-                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                            if (jimport.has("channels")) {
-                                JSONArray jchannels = jimport.getJSONArray("channels");
-                                for (int i = 0; i < jchannels.length(); i++)
-                                    try {
-                                        JSONObject jchannel = (JSONObject) jchannels.get(i);
+                    long id = identity.id;
+                    identity.id = null;
 
-                                        String channelId = jchannel.getString("id");
-                                        nm.deleteNotificationChannel(channelId);
+                    identity.account = account.id;
+                    identity.id = db.identity().insertIdentity(identity);
+                    xIdentity.put(id, identity.id);
 
-                                        nm.createNotificationChannel(NotificationHelper.channelFromJSON(context, jchannel));
+                    Log.i("Imported identity=" + identity.email + " id=" + identity + id + " (" + id + ")");
+                }
 
-                                        Log.i("Imported contact channel=" + jchannel);
-                                    } catch (Throwable ex) {
-                                        Log.e(ex);
-                                    }
+                JSONArray jfolders = (JSONArray) jaccount.get("folders");
+                for (int f = 0; f < jfolders.length(); f++) {
+                    JSONObject jfolder = (JSONObject) jfolders.get(f);
+                    EntityFolder folder = EntityFolder.fromJSON(jfolder);
+                    long id = folder.id;
+                    folder.id = null;
+
+                    folder.account = account.id;
+                    folder.id = db.folder().insertFolder(folder);
+                    xFolder.put(id, folder.id);
+
+                    if (Objects.equals(swipe_left, id))
+                        account.swipe_left = folder.id;
+                    if (Objects.equals(swipe_right, id))
+                        account.swipe_right = folder.id;
+                    if (Objects.equals(move_to, id))
+                        account.move_to = folder.id;
+
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                        String channelId = EntityFolder.getNotificationChannelId(folder.id);
+                        nm.deleteNotificationChannel(channelId);
+
+                        if (jfolder.has("channel"))
+                            try {
+                                NotificationChannelGroup group = new NotificationChannelGroup("group." + account.id, account.name);
+                                nm.createNotificationChannelGroup(group);
+
+                                JSONObject jchannel = (JSONObject) jfolder.get("channel");
+                                jchannel.put("id", channelId);
+                                jchannel.put("group", group.getId());
+                                nm.createNotificationChannel(NotificationHelper.channelFromJSON(context, jchannel));
+
+                                Log.i("Imported folder channel=" + jchannel);
+                            } catch (Throwable ex) {
+                                Log.e(ex);
                             }
+                    }
+
+                    if (jfolder.has("rules")) {
+                        JSONArray jrules = jfolder.getJSONArray("rules");
+                        for (int r = 0; r < jrules.length(); r++) {
+                            JSONObject jrule = (JSONObject) jrules.get(r);
+                            EntityRule rule = EntityRule.fromJSON(jrule);
+                            rule.folder = folder.id;
+                            rules.add(rule);
                         }
                     }
+                    Log.i("Imported folder=" + folder.name + " id=" + folder.id + " (" + id + ")");
+                }
 
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
+                // Contacts
+                if (contacts && import_contacts) {
+                    postProgress(context.getString(R.string.title_setup_import_contacts), null);
+
+                    int count = 0;
+                    jimport.beginArray();
+                    while (jimport.hasNext()) {
+                        JSONObject jcontact = (JSONObject) readJson(jimport);
+                        EntityContact contact = EntityContact.fromJSON(jcontact);
+                        contact.account = account.id;
+                        contact.identity = xIdentity.get(contact.identity);
+                        if (db.contact().getContact(contact.account, contact.type, contact.email) == null)
+                            contact.id = db.contact().insertContact(contact);
+                        count++;
+                    }
+                    jimport.endArray();
+                    Log.i("Imported contacts=" + count);
+                    contacts = false;
                 }
 
-                ServiceSynchronize.eval(context, "import");
-                Log.i("Imported data");
+                skipObject(jimport, contacts);
 
-                SpannableStringBuilder ssb = new SpannableStringBuilderEx();
-                ssb.append(context.getString(R.string.title_setup_imported));
-                ssb.setSpan(new StyleSpan(Typeface.BOLD), 0, ssb.length(), 0);
-                postProgress(ssb, null);
-                return null;
+                // Update swipe left/right
+                db.account().updateAccount(account);
+            }
+
+            private void importSetting(Context context, SharedPreferences.Editor editor, JSONObject jsetting) throws JSONException {
+                String key = jsetting.getString("key");
+
+                if ("pro".equals(key) && !BuildConfig.DEBUG)
+                    return;
+                if ("iab_json".equals(key) || "iab_signature".equals(key))
+                    return;
+
+                if ("accept_unsupported".equals(key))
+                    return;
+
+                if ("biometrics".equals(key) || "pin".equals(key))
+                    return;
+
+                if ("alert_once".equals(key) && !Helper.isXiaomi())
+                    return;
+
+                if ("default_folder".equals(key))
+                    return;
+
+                if ("background_service".equals(key) &&
+                        Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+                    return;
+
+                // Prevent restart
+                if ("secure".equals(key) ||
+                        "load_emoji".equals(key) ||
+                        "shortcuts".equals(key) ||
+                        "language".equals(key) ||
+                        "wal".equals(key))
+                    return;
+
+                if ("theme".equals(key) || "beige".equals(key)) {
+                    defer.put(key, jsetting.get("value"));
+                    return;
+                }
+
+                if (key != null && key.startsWith("widget."))
+                    return;
+
+                if ("external_search".equals(key)) {
+                    boolean external_search = jsetting.getBoolean("value");
+                    Helper.enableComponent(context, ActivitySearch.class, external_search);
+                    return;
+                }
+
+                if ("external_storage".equals(key))
+                    return;
+
+                if ("reformatted_hint".equals(key))
+                    return;
+
+                Object value = jsetting.get("value");
+                String type = jsetting.optString("type");
+                Log.i("Setting name=" + key + " value=" + value + " type=" + type);
+                switch (type) {
+                    case "bool":
+                        editor.putBoolean(key, (Boolean) value);
+                        break;
+                    case "int":
+                        editor.putInt(key, (Integer) value);
+                        break;
+                    case "long":
+                        if (value instanceof Integer)
+                            editor.putLong(key, Long.valueOf((Integer) value));
+                        else
+                            editor.putLong(key, (Long) value);
+                        break;
+                    case "float":
+                        editor.putFloat(key, (Float) value);
+                        break;
+                    case "string":
+                        editor.putString(key, (String) value);
+                        break;
+                    default:
+                        Log.w("Inferring type of value=" + value);
+                        if (value instanceof Boolean)
+                            editor.putBoolean(key, (Boolean) value);
+                        else if (value instanceof Integer) {
+                            Integer i = (Integer) value;
+                            if (key.endsWith(".account"))
+                                editor.putLong(key, Long.valueOf(i));
+                            else
+                                editor.putInt(key, i);
+                        } else if (value instanceof Long)
+                            editor.putLong(key, (Long) value);
+                        else if (value instanceof Float || value instanceof Double)
+                            editor.putFloat(key, (Float) value);
+                        else if (value instanceof String)
+                            editor.putString(key, (String) value);
+                        else {
+                            String msg = "Unknown settings type" +
+                                    " key=" + key +
+                                    " value=" + value +
+                                    " type=" + (value == null ? null : value.getClass());
+                            Log.e(msg);
+                            postProgress(msg);
+                        }
+                }
+
+                Log.i("Imported setting=" + key);
             }
 
             @Override
@@ -1268,6 +1377,83 @@ public class FragmentOptionsBackup extends FragmentBase implements SharedPrefere
         }.setHandler(tvLog.getHandler()).execute(this, args, "setup:import");
     }
 
+    private static Object readJson(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                JSONObject jobject = new JSONObject();
+                reader.beginObject();
+                while (reader.hasNext())
+                    jobject.put(reader.nextName(), readJson(reader));
+                reader.endObject();
+                return jobject;
+            case BEGIN_ARRAY:
+                JSONArray jarray = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext())
+                    jarray.put(readJson(reader));
+                reader.endArray();
+                return jarray;
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                // Same types as JSONTokener
+                String number = reader.nextString();
+                if (number.contains(".") || number.contains("e") || number.contains("E"))
+                    return Double.valueOf(number);
+                try {
+                    long value = Long.parseLong(number);
+                    if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
+                        return (int) value;
+                    return value;
+                } catch (NumberFormatException ex) {
+                    return Double.valueOf(number);
+                }
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                throw new JSONException("Unexpected token=" + reader.peek());
+        }
+    }
+
+    private static void writeJson(JsonWriter writer, Object value) throws IOException {
+        if (value instanceof JSONObject) {
+            JSONObject jobject = (JSONObject) value;
+            writer.beginObject();
+            for (Iterator<String> it = jobject.keys(); it.hasNext(); ) {
+                String key = it.next();
+                writer.name(key);
+                writeJson(writer, jobject.opt(key));
+            }
+            writer.endObject();
+        } else if (value instanceof JSONArray) {
+            JSONArray jarray = (JSONArray) value;
+            writer.beginArray();
+            for (int i = 0; i < jarray.length(); i++)
+                writeJson(writer, jarray.opt(i));
+            writer.endArray();
+        } else if (value == null || JSONObject.NULL.equals(value))
+            writer.nullValue();
+        else if (value instanceof Boolean)
+            writer.value((Boolean) value);
+        else if (value instanceof Number)
+            writer.value((Number) value);
+        else
+            writer.value(value.toString());
+    }
+
+    private static void skipObject(JsonReader reader, boolean pending) throws IOException {
+        if (pending)
+            reader.skipValue();
+        while (reader.hasNext()) {
+            reader.nextName();
+            reader.skipValue();
+        }
+        reader.endObject();
+    }
+
     private void handleK9Import(Uri uri) {
         Bundle args = new Bundle();
         args.putParcelable("uri", uri);
@@ -75,6 +75,7 @@ public class FragmentOptionsConnection extends FragmentBase implements SharedPre
     private SwitchCompat swPreferIp4;
     private SwitchCompat swBindSocket;
     private SwitchCompat swStandaloneVpn;
+    private SwitchCompat swIdleManager;
     private SwitchCompat swTcpKeepAlive;
     private TextView tvTcpKeepAliveHint;
     private SwitchCompat swSslHarden;
@@ -94,7 +95,7 @@ public class FragmentOptionsConnection extends FragmentBase implements SharedPre
             "metered", "download", "roaming", "rlah",
             "download_headers", "download_eml", "download_plain",
             "require_validated", "require_validated_captive", "vpn_only",
-            "timeout", "prefer_ip4", "bind_socket", "standalone_vpn", "tcp_keep_alive",
+            "timeout", "prefer_ip4", "bind_socket", "standalone_vpn", "idle_manager", "tcp_keep_alive",
             "ssl_harden", "ssl_harden_strict", "cert_strict", "open_safe"
     };
 
@@ -123,6 +124,7 @@ public class FragmentOptionsConnection extends FragmentBase implements SharedPre
         swPreferIp4 = view.findViewById(R.id.swPreferIp4);
         swBindSocket = view.findViewById(R.id.swBindSocket);
         swStandaloneVpn = view.findViewById(R.id.swStandaloneVpn);
+        swIdleManager = view.findViewById(R.id.swIdleManager);
         swTcpKeepAlive = view.findViewById(R.id.swTcpKeepAlive);
         tvTcpKeepAliveHint = view.findViewById(R.id.tvTcpKeepAliveHint);
         swSslHarden = view.findViewById(R.id.swSslHarden);
@@ -282,6 +284,15 @@ public class FragmentOptionsConnection extends FragmentBase implements SharedPre
             }
         });
 
+        swIdleManager.setVisibility(debug || BuildConfig.DEBUG ? View.VISIBLE : View.GONE);
+
+        swIdleManager.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean checked) {
+                prefs.edit().putBoolean("idle_manager", checked).apply();
+            }
+        });
+
         swTcpKeepAlive.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
             @Override
             public void onCheckedChanged(CompoundButton compoundButton, boolean checked) {
@@ -458,6 +469,7 @@ public class FragmentOptionsConnection extends FragmentBase implements SharedPre
             swPreferIp4.setChecked(prefs.getBoolean("prefer_ip4", true));
             swBindSocket.setChecked(prefs.getBoolean("bind_socket", false));
             swStandaloneVpn.setChecked(prefs.getBoolean("standalone_vpn", false));
+            swIdleManager.setChecked(prefs.getBoolean("idle_manager", false));
             swTcpKeepAlive.setChecked(prefs.getBoolean("tcp_keep_alive", false));
             swSslHarden.setChecked(prefs.getBoolean("ssl_harden", false));
             swSslHardenStrict.setChecked(prefs.getBoolean("ssl_harden_strict", false));
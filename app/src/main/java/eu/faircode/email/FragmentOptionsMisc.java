@@ -85,9 +85,7 @@ import androidx.work.WorkManager;
 import com.google.android.material.textfield.TextInputLayout;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.nio.charset.Charset;
@@ -115,6 +113,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
     private SwitchCompat swExternalAnswer;
     private SwitchCompat swShortcuts;
     private SwitchCompat swFts;
+    private SwitchCompat swFts5;
     private SwitchCompat swClassification;
     private TextView tvClassMinProbability;
     private SeekBar sbClassMinProbability;
@@ -213,6 +212,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
     private SwitchCompat swFakeDark;
     private SwitchCompat swShowRecent;
     private SwitchCompat swModSeq;
+    private SwitchCompat swQResync;
     private SwitchCompat swPreamble;
     private SwitchCompat swUid;
     private SwitchCompat swExpunge;
@@ -274,7 +274,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
     private static final long MIN_FILE_SIZE = 1024 * 1024L;
 
     private final static String[] RESET_OPTIONS = new String[]{
-            "sort_answers", "shortcuts", "fts",
+            "sort_answers", "shortcuts", "fts", "fts5",
             "classification", "class_min_probability", "class_min_difference",
             "show_filtered",
             "language",
@@ -288,12 +288,12 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
             "watchdog", "experiments", "main_log", "main_log_memory", "protocol", "log_level", "debug", "leak_canary",
             "test1", "test2", "test3", "test4", "test5",
             "emergency_file", "work_manager", // "external_storage",
-            "sqlite_integrity_check", "wal", "sqlite_checkpoints", "sqlite_analyze", "sqlite_auto_vacuum", "sqlite_sync_extra", "sqlite_cache",
+            "sqlite_integrity_check", "wal", "sqlite_checkpoints", "sqlite_analyze", "sqlite_auto_vacuum", "sqlite_sync_extra", "sqlite_cache", "sqlite_coalesce",
             "chunk_size", "thread_range",
             "autoscroll_editor", "undo_manager",
             "browser_zoom", "fake_dark",
             "show_recent",
-            "use_modseq", "preamble", "uid_command", "perform_expunge", "uid_expunge",
+            "use_modseq", "use_qresync", "preamble", "uid_command", "perform_expunge", "uid_expunge",
             "auth_plain", "auth_login", "auth_ntlm", "auth_sasl", "auth_apop", "use_top",
             "keep_alive_poll", "empty_pool", "idle_done", "fast_fetch",
             "max_backoff_power", "logarithmic_backoff",
@@ -362,6 +362,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
         swExternalAnswer = view.findViewById(R.id.swExternalAnswer);
         swShortcuts = view.findViewById(R.id.swShortcuts);
         swFts = view.findViewById(R.id.swFts);
+        swFts5 = view.findViewById(R.id.swFts5);
         swClassification = view.findViewById(R.id.swClassification);
         ibClassification = view.findViewById(R.id.ibClassification);
         tvClassMinProbability = view.findViewById(R.id.tvClassMinProbability);
@@ -460,6 +461,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
         swFakeDark = view.findViewById(R.id.swFakeDark);
         swShowRecent = view.findViewById(R.id.swShowRecent);
         swModSeq = view.findViewById(R.id.swModSeq);
+        swQResync = view.findViewById(R.id.swQResync);
         swPreamble = view.findViewById(R.id.swPreamble);
         swUid = view.findViewById(R.id.swUid);
         swExpunge = view.findViewById(R.id.swExpunge);
@@ -584,18 +586,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
                     new SimpleTask<Void>() {
                         @Override
                         protected Void onExecute(Context context, Bundle args) {
-                            try {
-                                SQLiteDatabase sdb = Fts4DbHelper.getInstance(context);
-                                Fts4DbHelper.delete(sdb);
-                                Fts4DbHelper.optimize(sdb);
-                            } catch (SQLiteDatabaseCorruptException ex) {
-                                Log.e(ex);
-                                Fts4DbHelper.delete(context);
-                            }
-
-                            DB db = DB.getInstance(context);
-                            db.message().resetFts();
-
+                            resetFts(context);
                             return null;
                         }
 
@@ -608,6 +599,35 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
             }
         });
 
+        swFts5.setEnabled(Fts5DbHelper.isAvailable());
+        swFts5.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean checked) {
+                prefs.edit().putBoolean("fts5", checked).apply();
+
+                Bundle args = new Bundle();
+
+                new SimpleTask<Void>() {
+                    @Override
+                    protected Void onExecute(Context context, Bundle args) {
+                        // Rebuild the index with the selected engine
+                        resetFts(context);
+                        return null;
+                    }
+
+                    @Override
+                    protected void onExecuted(Bundle args, Void data) {
+                        WorkerFts.init(getContext(), true);
+                    }
+
+                    @Override
+                    protected void onException(Bundle args, Throwable ex) {
+                        Log.unexpectedError(getParentFragmentManager(), ex);
+                    }
+                }.execute(FragmentOptionsMisc.this, args, "fts:engine");
+            }
+        });
+
         Helper.linkPro(tvFtsPro);
 
         swClassification.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
@@ -1626,6 +1646,14 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
             }
         });
 
+        swQResync.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean checked) {
+                prefs.edit().putBoolean("use_qresync", checked).apply();
+                ServiceSynchronize.reload(compoundButton.getContext(), null, true, "use_qresync");
+            }
+        });
+
         swPreamble.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
             @Override
             public void onCheckedChanged(CompoundButton compoundButton, boolean checked) {
@@ -2158,7 +2186,9 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
                     tvFtsIndexed.setText(getString(R.string.title_advanced_fts_indexed,
                             stats.fts,
                             stats.total,
-                            Helper.humanReadableByteCount(Fts4DbHelper.size(tvFtsIndexed.getContext()))));
+                            Helper.humanReadableByteCount(Fts5DbHelper.isEnabled(tvFtsIndexed.getContext())
+                                    ? Fts5DbHelper.size(tvFtsIndexed.getContext())
+                                    : Fts4DbHelper.size(tvFtsIndexed.getContext()))));
                 last = stats;
             }
         });
@@ -2300,6 +2330,30 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
         return super.onOptionsItemSelected(item);
     }
 
+    private static void resetFts(Context context) {
+        try {
+            SQLiteDatabase sdb = Fts4DbHelper.getInstance(context);
+            Fts4DbHelper.delete(sdb);
+            Fts4DbHelper.optimize(sdb);
+        } catch (SQLiteDatabaseCorruptException ex) {
+            Log.e(ex);
+            Fts4DbHelper.delete(context);
+        }
+
+        if (Fts5DbHelper.isAvailable())
+            try {
+                SQLiteDatabase sdb = Fts5DbHelper.getInstance(context);
+                Fts5DbHelper.delete(sdb);
+                Fts5DbHelper.optimize(sdb);
+            } catch (SQLiteDatabaseCorruptException ex) {
+                Log.e(ex);
+                Fts5DbHelper.delete(context);
+            }
+
+        DB db = DB.getInstance(context);
+        db.message().resetFts();
+    }
+
     private void onResetQuestions() {
         final Context context = getContext();
         View dview = LayoutInflater.from(context).inflate(R.layout.dialog_reset_questions, null);
@@ -2411,6 +2465,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
             swExternalAnswer.setChecked(Helper.isComponentEnabled(getContext(), ActivityAnswer.class));
             swShortcuts.setChecked(prefs.getBoolean("shortcuts", true));
             swFts.setChecked(prefs.getBoolean("fts", false));
+            swFts5.setChecked(prefs.getBoolean("fts5", false));
 
             swClassification.setChecked(prefs.getBoolean("classification", false));
 
@@ -2526,6 +2581,7 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
             swFakeDark.setChecked(prefs.getBoolean("fake_dark", false));
             swShowRecent.setChecked(prefs.getBoolean("show_recent", false));
             swModSeq.setChecked(prefs.getBoolean("use_modseq", true));
+            swQResync.setChecked(prefs.getBoolean("use_qresync", false));
             swPreamble.setChecked(prefs.getBoolean("preamble", false));
             swUid.setChecked(prefs.getBoolean("uid_command", false));
             swExpunge.setChecked(prefs.getBoolean("perform_expunge", true));
@@ -2808,11 +2864,8 @@ public class FragmentOptionsMisc extends FragmentBase implements SharedPreferenc
                 Uri uri = args.getParcelable("uri");
 
                 ContentResolver resolver = context.getContentResolver();
-                File file = MessageClassifier.getFile(context, false);
                 try (OutputStream os = resolver.openOutputStream(uri)) {
-                    try (InputStream is = new FileInputStream(file)) {
-                        Helper.copy(is, os);
-                    }
+                    MessageClassifier.export(context, os);
                 }
 
                 return null;
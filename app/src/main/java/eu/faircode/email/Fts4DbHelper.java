@@ -98,7 +98,8 @@ public class Fts4DbHelper extends SQLiteOpenHelper {
         DB.getInstance(context).message().resetFts();
     }
 
-    static void insert(SQLiteDatabase db, EntityMessage message, String text) {
+    static void insert(SQLiteDatabase db, EntityMessage message, String brokenText) {
+        // The text needs to be processed with breakText by the caller
         Log.i("FTS insert id=" + message.id);
         List<Address> address = new ArrayList<>();
         if (message.from != null)
@@ -120,7 +121,7 @@ public class Fts4DbHelper extends SQLiteOpenHelper {
         cv.put("address", MessageHelper.formatAddresses(address.toArray(new Address[0]), true, false));
         cv.put("subject", breakText(message.subject));
         cv.put("keyword", TextUtils.join(" ", message.keywords));
-        cv.put("text", breakText(text));
+        cv.put("text", brokenText == null ? "" : brokenText);
         cv.put("notes", breakText(message.notes));
         db.insertWithOnConflict("message", null, cv, SQLiteDatabase.CONFLICT_FAIL);
     }
@@ -186,7 +187,8 @@ public class Fts4DbHelper extends SQLiteOpenHelper {
     static List<Long> match(
             SQLiteDatabase db,
             Long account, Long folder, long[] exclude,
-            BoundaryCallbackMessages.SearchCriteria criteria, String query) {
+            BoundaryCallbackMessages.SearchCriteria criteria, String query,
+            int limit, int offset) {
         String search = escape(breakText(query));
 
         String select = "";
@@ -208,13 +210,14 @@ public class Fts4DbHelper extends SQLiteOpenHelper {
         if (criteria.before != null)
             select += "time < " + criteria.before + " AND ";
 
-        Log.i("FTS select=" + select + " search=" + search + " query=" + query);
+        Log.i("FTS select=" + select + " search=" + search + " query=" + query +
+                " limit=" + limit + " offset=" + offset);
         List<Long> result = new ArrayList<>();
         try (Cursor cursor = db.query(
                 "message", new String[]{"rowid"},
                 select + "message MATCH ?",
                 new String[]{search},
-                null, null, "time DESC", null)) {
+                null, null, "time DESC", offset + "," + limit)) {
             while (cursor != null && cursor.moveToNext())
                 result.add(cursor.getLong(0));
         }
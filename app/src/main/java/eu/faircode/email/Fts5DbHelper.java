@@ -22,10 +22,15 @@ package eu.faircode.email;
 import android.annotation.SuppressLint;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.text.TextUtils;
+import android.util.LruCache;
+
+import androidx.preference.PreferenceManager;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -40,21 +45,47 @@ public class Fts5DbHelper extends SQLiteOpenHelper {
 
     @SuppressLint("StaticFieldLeak")
     private static Fts5DbHelper instance = null;
+    private static Boolean available = null;
 
-    private static final int DATABASE_VERSION = 5;
+    private static final int DATABASE_VERSION = 6;
     private static final String DATABASE_NAME = "fts.db";
 
+    static final char SNIPPET_START = '\u0002';
+    static final char SNIPPET_END = '\u0003';
+
     private Fts5DbHelper(Context context) {
         super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
         this.context = context.getApplicationContext();
     }
 
     static SQLiteDatabase getInstance(Context context) {
-        if (instance == null)
+        boolean has = context.getDatabasePath(DATABASE_NAME).exists();
+        if (instance == null || !has) {
+            if (!has)
+                DB.getInstance(context).message().resetFts();
             instance = new Fts5DbHelper(context);
+        }
         return instance.getWritableDatabase();
     }
 
+    static boolean isEnabled(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return (prefs.getBoolean("fts5", false) && isAvailable());
+    }
+
+    static synchronized boolean isAvailable() {
+        // The SQLite version of the OS is not necessarily compiled with FTS5
+        if (available == null)
+            try (SQLiteDatabase db = SQLiteDatabase.create(null)) {
+                db.execSQL("CREATE VIRTUAL TABLE test USING fts5(x, prefix='2')");
+                available = true;
+            } catch (SQLiteException ex) {
+                Log.w(ex);
+                available = false;
+            }
+        return available;
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         Log.i("FTS create");
@@ -68,9 +99,11 @@ public class Fts5DbHelper extends SQLiteOpenHelper {
                 ", `keyword`" +
                 ", `text`" +
                 ", `notes`" +
-                ", tokenize = \"unicode61 remove_diacritics 2\")");
+                ", tokenize = \"unicode61 remove_diacritics 2\"" +
+                ", prefix = '2 3')");
         // https://www.sqlite.org/fts5.html#unicode61_tokenizer
         // https://unicode.org/reports/tr29/
+        // https://www.sqlite.org/fts5.html#prefix_indexes
 
         // https://www.sqlite.org/fts5.html#the_fts5vocab_virtual_table_module
         db.execSQL("CREATE VIRTUAL TABLE message_terms USING fts5vocab('message', 'row');");
@@ -129,9 +162,9 @@ public class Fts5DbHelper extends SQLiteOpenHelper {
         try (Cursor cursor = db.rawQuery(
                 "SELECT term FROM message_terms" +
                         " WHERE term LIKE ?" +
-                        " ORDER BY cnt" +
+                        " ORDER BY cnt DESC" +
                         " LIMIT " + max,
-                new String[]{query})) {
+                new String[]{Fts4DbHelper.preprocessText(query)})) {
             while (cursor != null && cursor.moveToNext())
                 result.add(cursor.getString(0));
         }
@@ -142,7 +175,8 @@ public class Fts5DbHelper extends SQLiteOpenHelper {
     static List<Long> match(
             SQLiteDatabase db,
             Long account, Long folder, long[] exclude,
-            BoundaryCallbackMessages.SearchCriteria criteria) {
+            BoundaryCallbackMessages.SearchCriteria criteria,
+            int limit, int offset, LruCache<Long, String> snippets) {
 
         List<String> word = new ArrayList<>();
         List<String> plus = new ArrayList<>();
@@ -171,7 +205,7 @@ public class Fts5DbHelper extends SQLiteOpenHelper {
         StringBuilder sb = new StringBuilder();
         if (plus.size() + minus.size() + opt.size() > 0) {
             if (word.size() > 0)
-                sb.append(escape(TextUtils.join(" ", word)));
+                sb.append(escape(TextUtils.join(" ", word))).append(" *");
 
             for (String p : plus) {
                 if (sb.length() > 0)
@@ -197,7 +231,24 @@ public class Fts5DbHelper extends SQLiteOpenHelper {
             }
         }
 
-        String search = (sb.length() > 0 ? sb.toString() : escape(criteria.query));
+        // Prefix query for search as you type
+        String search = (sb.length() > 0 ? sb.toString() : escape(criteria.query.trim()) + " *");
+
+        // https://www.sqlite.org/fts5.html#fts5_column_filters
+        List<String> columns = new ArrayList<>();
+        if (criteria.in_senders || criteria.in_recipients)
+            columns.add("address");
+        if (criteria.in_subject)
+            columns.add("subject");
+        if (criteria.in_keywords)
+            columns.add("keyword");
+        if (criteria.in_message)
+            columns.add("text");
+        if (criteria.in_notes)
+            columns.add("notes");
+        if (columns.size() == 0)
+            return new ArrayList<>();
+        search = "{" + TextUtils.join(" ", columns) + "} : (" + search + ")";
 
         String select = "";
         if (account != null)
@@ -218,15 +269,25 @@ public class Fts5DbHelper extends SQLiteOpenHelper {
         if (criteria.before != null)
             select += "time < " + criteria.before + " AND ";
 
-        Log.i("FTS select=" + select + " search=" + search);
+        Log.i("FTS select=" + select + " search=" + search + " limit=" + limit + " offset=" + offset);
         List<Long> result = new ArrayList<>();
-        try (Cursor cursor = db.query(
-                "message", new String[]{"rowid"},
-                select + "message MATCH ?",
-                new String[]{search},
-                null, null, "time DESC", null)) {
-            while (cursor != null && cursor.moveToNext())
-                result.add(cursor.getLong(0));
+        // https://www.sqlite.org/fts5.html#the_bm25_function
+        // https://www.sqlite.org/fts5.html#the_snippet_function
+        // Columns: account, folder, time, address, subject, keyword, text, notes
+        try (Cursor cursor = db.rawQuery(
+                "SELECT rowid" +
+                        ", snippet(message, -1, '" + SNIPPET_START + "', '" + SNIPPET_END + "', '\u2026', 16)" +
+                        " FROM message" +
+                        " WHERE " + select + "message MATCH ?" +
+                        " ORDER BY bm25(message, 0, 0, 0, 5.0, 10.0, 5.0, 1.0, 2.0), time DESC" +
+                        " LIMIT " + limit + " OFFSET " + offset,
+                new String[]{search})) {
+            while (cursor != null && cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                result.add(id);
+                if (snippets != null && !cursor.isNull(1))
+                    snippets.put(id, cursor.getString(1));
+            }
         }
         Log.i("FTS result=" + result.size());
         return result;
@@ -100,14 +100,24 @@ import org.w3c.dom.css.CSSRuleList;
 import org.w3c.dom.css.CSSStyleSheet;
 import org.w3c.dom.stylesheets.MediaList;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.StringReader;
+import java.io.Writer;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.ParsePosition;
@@ -123,6 +133,8 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MailDateFormat;
@@ -139,6 +151,7 @@ public class HtmlHelper {
     static final float FONT_XLARGE = 1.50f; // 24px=1.5
 
     static final int MAX_FULL_TEXT_SIZE = 1024 * 1024; // characters
+    private static final int FULL_TEXT_VERSION = 1;
     static final int MAX_SHARE_TEXT_SIZE = 50 * 1024; // characters
     static final int MAX_TRANSLATABLE_TEXT_SIZE = 50 * 1024; // characters
 
@@ -2539,6 +2552,80 @@ public class HtmlHelper {
         }
     }
 
+    static String getFullText(Context context, long id) throws IOException {
+        File file = EntityMessage.getFile(context, id);
+        File sidecar = EntityMessage.getTextFile(context, id);
+
+        String text = readFullText(file, sidecar);
+        if (text == null) {
+            text = getFullText(file);
+            writeFullText(file, sidecar, text);
+        }
+
+        return text;
+    }
+
+    static void setFullText(Context context, long id, String text) {
+        File file = EntityMessage.getFile(context, id);
+        File sidecar = EntityMessage.getTextFile(context, id);
+        writeFullText(file, sidecar, text);
+    }
+
+    private static String readFullText(File file, File sidecar) {
+        if (!sidecar.exists())
+            return null;
+
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(sidecar))))) {
+            // The stored text is valid for one specific version of the HTML file
+            if (is.readInt() != FULL_TEXT_VERSION ||
+                    is.readLong() != file.length() ||
+                    is.readLong() != file.lastModified()) {
+                Log.i("Full text outdated " + sidecar);
+                return null;
+            }
+
+            StringBuilder sb = new StringBuilder();
+            Reader reader = new InputStreamReader(is, StandardCharsets.UTF_8);
+            char[] buffer = new char[8192];
+            for (int len = reader.read(buffer); len != -1; len = reader.read(buffer))
+                sb.append(buffer, 0, len);
+            return sb.toString();
+        } catch (IOException ex) {
+            Log.w(ex);
+            sidecar.delete();
+            return null;
+        }
+    }
+
+    private static void writeFullText(File file, File sidecar, String text) {
+        if (text == null) {
+            sidecar.delete();
+            return;
+        }
+
+        File tmp = new File(sidecar.getParentFile(),
+                sidecar.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            long length = file.length();
+            long modified = file.lastModified();
+            try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(new FileOutputStream(tmp))))) {
+                os.writeInt(FULL_TEXT_VERSION);
+                os.writeLong(length);
+                os.writeLong(modified);
+                Writer writer = new OutputStreamWriter(os, StandardCharsets.UTF_8);
+                writer.write(text);
+                writer.flush();
+            }
+            if (!tmp.renameTo(sidecar))
+                throw new IOException("Failed moving " + tmp);
+        } catch (IOException ex) {
+            Log.w(ex);
+            tmp.delete();
+        }
+    }
+
     private static String _getText(Document d) {
         truncate(d, MAX_FULL_TEXT_SIZE);
 
@@ -0,0 +1,283 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2023 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+
+// Remote images shared by all messages
+// Entries are keyed by the URL and point to the content, which is stored once per digest
+
+class ImageCache {
+    private static long size = -1; // bytes
+    private static final Object lock = new Object();
+
+    private static final String CACHE_DIR = "image_cache";
+    private static final long CACHE_MAX_SIZE = 64 * 1024 * 1024L; // bytes
+    private static final long CACHE_FRESH_DURATION = 24 * 3600 * 1000L; // milliseconds
+    private static final int CACHE_MAX_MEMORY = 8 * 1024 * 1024; // bytes
+
+    private static final LruCache<String, Bitmap> bitmaps =
+            new LruCache<String, Bitmap>((int) Math.min(Runtime.getRuntime().maxMemory() / 32, CACHE_MAX_MEMORY)) {
+                @Override
+                protected int sizeOf(String key, Bitmap bitmap) {
+                    return bitmap.getByteCount();
+                }
+            };
+
+    static class Entry {
+        File file;
+        String digest;
+        String etag;
+        String modified;
+        long validated;
+
+        boolean isFresh() {
+            return (validated + CACHE_FRESH_DURATION > new Date().getTime());
+        }
+    }
+
+    @Nullable
+    static Entry get(Context context, String source) {
+        File index = getIndexFile(context, source);
+        if (!index.exists())
+            return null;
+
+        try {
+            JSONObject jentry = new JSONObject(Helper.readText(index));
+
+            Entry entry = new Entry();
+            entry.digest = jentry.getString("digest");
+            entry.etag = jentry.optString("etag", null);
+            entry.modified = jentry.optString("modified", null);
+            entry.validated = jentry.getLong("validated");
+            entry.file = getContentFile(context, entry.digest);
+
+            if (!entry.file.exists()) {
+                Log.i("Image cache evicted source=" + source);
+                index.delete();
+                return null;
+            }
+
+            entry.file.setLastModified(new Date().getTime());
+            return entry;
+        } catch (IOException | JSONException ex) {
+            Log.w(ex);
+            index.delete();
+            return null;
+        }
+    }
+
+    @NonNull
+    static Entry put(Context context, String source, InputStream is, String etag, String modified) throws IOException {
+        File dir = getDir(context);
+        File tmp = File.createTempFile("image", ".tmp", dir);
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            try (DigestInputStream dis = new DigestInputStream(is, md);
+                 OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp))) {
+                Helper.copy(dis, os);
+            }
+
+            Entry entry = new Entry();
+            entry.digest = Helper.hex(md.digest());
+            entry.etag = etag;
+            entry.modified = modified;
+            entry.validated = new Date().getTime();
+            entry.file = getContentFile(context, entry.digest);
+
+            synchronized (lock) {
+                if (entry.file.exists()) {
+                    Log.i("Image cache duplicate source=" + source + " digest=" + entry.digest);
+                    entry.file.setLastModified(entry.validated);
+                } else {
+                    long length = tmp.length();
+                    if (!tmp.renameTo(entry.file))
+                        throw new IOException("Rename failed file=" + entry.file);
+                    if (size >= 0)
+                        size += length;
+                }
+            }
+
+            setIndex(context, source, entry);
+            trim(context);
+
+            return entry;
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    static void setValidated(Context context, String source, Entry entry) {
+        entry.validated = new Date().getTime();
+        try {
+            setIndex(context, source, entry);
+        } catch (IOException ex) {
+            Log.w(ex);
+        }
+    }
+
+    @Nullable
+    static Bitmap getBitmap(Entry entry, int scaleToPixels) {
+        return bitmaps.get(entry.digest + ":" + scaleToPixels);
+    }
+
+    static void putBitmap(Entry entry, int scaleToPixels, Bitmap bitmap) {
+        bitmaps.put(entry.digest + ":" + scaleToPixels, bitmap);
+    }
+
+    static void cleanup(Context context, boolean manual) {
+        bitmaps.evictAll();
+
+        File[] files = getDir(context).listFiles();
+        if (files == null)
+            return;
+
+        if (manual) {
+            Log.i("Clearing image cache");
+            for (File file : files)
+                file.delete();
+            synchronized (lock) {
+                size = 0;
+            }
+            return;
+        }
+
+        trim(context);
+
+        // Remove entries of evicted content
+        long now = new Date().getTime();
+        for (File file : files)
+            if (file.getName().endsWith(".tmp")) {
+                if (file.lastModified() + CACHE_FRESH_DURATION < now)
+                    file.delete();
+            } else if (file.getName().endsWith(".json"))
+                try {
+                    JSONObject jentry = new JSONObject(Helper.readText(file));
+                    if (!getContentFile(context, jentry.getString("digest")).exists()) {
+                        Log.i("Deleting " + file);
+                        file.delete();
+                    }
+                } catch (IOException | JSONException ex) {
+                    Log.w(ex);
+                    file.delete();
+                }
+    }
+
+    private static void trim(Context context) {
+        synchronized (lock) {
+            File[] files = getDir(context).listFiles();
+            if (files == null)
+                return;
+
+            if (size < 0) {
+                size = 0;
+                for (File file : files)
+                    if (file.getName().endsWith(".blob"))
+                        size += file.length();
+            }
+
+            if (size <= CACHE_MAX_SIZE)
+                return;
+
+            // Least recently used first
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File f1, File f2) {
+                    return Long.compare(f1.lastModified(), f2.lastModified());
+                }
+            });
+
+            long before = size;
+            for (File file : files)
+                if (size > CACHE_MAX_SIZE * 3 / 4 && file.getName().endsWith(".blob")) {
+                    long length = file.length();
+                    if (file.delete())
+                        size -= length;
+                }
+
+            Log.i("Image cache trimmed " + before + " > " + size);
+        }
+    }
+
+    private static void setIndex(Context context, String source, Entry entry) throws IOException {
+        try {
+            JSONObject jentry = new JSONObject();
+            jentry.put("digest", entry.digest);
+            if (!TextUtils.isEmpty(entry.etag))
+                jentry.put("etag", entry.etag);
+            if (!TextUtils.isEmpty(entry.modified))
+                jentry.put("modified", entry.modified);
+            jentry.put("validated", entry.validated);
+
+            // Concurrent writers of the same source each need their own temporary file
+            File index = getIndexFile(context, source);
+            File tmp = File.createTempFile("index", ".tmp", index.getParentFile());
+            try {
+                Helper.writeText(tmp, jentry.toString());
+                if (!tmp.renameTo(index))
+                    throw new IOException("Rename failed file=" + index);
+            } finally {
+                tmp.delete();
+            }
+        } catch (JSONException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static File getDir(Context context) {
+        return Helper.ensureExists(new File(context.getFilesDir(), CACHE_DIR));
+    }
+
+    private static File getIndexFile(Context context, String source) {
+        try {
+            return new File(getDir(context), Helper.sha256(source) + ".json");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static File getContentFile(Context context, String digest) {
+        return new File(getDir(context), digest + ".blob");
+    }
+}
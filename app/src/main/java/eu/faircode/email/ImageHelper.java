@@ -60,21 +60,19 @@ import com.caverock.androidsvg.SVG;
 import org.jsoup.nodes.Element;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.URL;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
@@ -449,7 +447,7 @@ class ImageHelper {
             }
 
             // Check cache
-            Drawable cached = getCachedImage(context, id, source);
+            Drawable cached = getCachedImage(context, id, source, view == null);
             if (cached != null || view == null) {
                 if (view == null)
                     if (cached == null) {
@@ -478,7 +476,7 @@ class ImageHelper {
                 public void run() {
                     try {
                         // Check cache again
-                        Drawable cached = getCachedImage(context, id, source);
+                        Drawable cached = getCachedImage(context, id, source, false);
                         if (cached != null) {
                             fitDrawable(cached, aw, ah, scale, view);
                             post(cached, source);
@@ -631,35 +629,48 @@ class ImageHelper {
         }
     }
 
-    private static Drawable getCachedImage(Context context, long id, String source) {
+    private static Drawable getCachedImage(Context context, long id, String source, boolean stale) {
         if (id < 0)
             return null;
 
-        File file = getCacheFile(context, id, source,
-                Build.VERSION.SDK_INT < Build.VERSION_CODES.P ? ".png" : ".blob");
-        if (file.exists()) {
-            Log.i("Using cached " + file);
-            file.setLastModified(new Date().getTime());
+        ImageCache.Entry entry = ImageCache.get(context, source);
+        if (entry == null || !(stale || entry.isFresh()))
+            return null;
 
-            DisplayMetrics dm = context.getResources().getDisplayMetrics();
+        Log.i("Using cached " + source + " file=" + entry.file.getName());
+        try {
+            return getCachedImage(context, entry, Helper.guessMimeType(source));
+        } catch (IOException ex) {
+            Log.i(ex);
+            return null;
+        }
+    }
 
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P)
-                try {
-                    return getScaledDrawable(context, file, null, dm.widthPixels);
-                } catch (IOException ex) {
-                    Log.i(ex);
-                    return null;
-                }
+    private static Drawable getCachedImage(Context context, ImageCache.Entry entry, String mimeType) throws IOException {
+        DisplayMetrics dm = context.getResources().getDisplayMetrics();
 
-            Bitmap bm = BitmapFactory.decodeFile(file.getAbsolutePath());
-            if (bm != null) {
-                Drawable d = new BitmapDrawable(context.getResources(), bm);
-                d.setBounds(0, 0, Math.round(bm.getWidth() * dm.density), Math.round(bm.getHeight() * dm.density));
+        Bitmap bm = ImageCache.getBitmap(entry, dm.widthPixels);
+        if (bm == null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                Drawable d = getScaledDrawable(context, entry.file, mimeType, dm.widthPixels);
+                // Animated images are decoded each time
+                if (d instanceof BitmapDrawable)
+                    ImageCache.putBitmap(entry, dm.widthPixels, ((BitmapDrawable) d).getBitmap());
                 return d;
             }
+
+            bm = _decodeImage(entry.file, mimeType, Math.max(dm.widthPixels, dm.heightPixels));
+            if (bm == null)
+                return null;
+            ImageCache.putBitmap(entry, dm.widthPixels, bm);
         }
 
-        return null;
+        Drawable d = new BitmapDrawable(context.getResources(), bm);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P)
+            d.setBounds(0, 0, d.getIntrinsicWidth(), d.getIntrinsicHeight());
+        else
+            d.setBounds(0, 0, Math.round(bm.getWidth() * dm.density), Math.round(bm.getHeight() * dm.density));
+        return d;
     }
 
     @NonNull
@@ -670,17 +681,41 @@ class ImageHelper {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         int timeout = prefs.getInt("timeout", ImageHelper.DOWNLOAD_TIMEOUT) * 1000;
 
+        if (mimeType == null)
+            mimeType = Helper.guessMimeType(source);
+
+        // Revalidate a stale cached image
+        ImageCache.Entry entry = (id < 0 ? null : ImageCache.get(context, source));
+        Map<String, String> headers = null;
+        if (entry != null && (entry.etag != null || entry.modified != null)) {
+            headers = new HashMap<>();
+            if (entry.etag != null)
+                headers.put("If-None-Match", entry.etag);
+            if (entry.modified != null)
+                headers.put("If-Modified-Since", entry.modified);
+        }
+
         Bitmap bm;
         HttpURLConnection urlConnection = null;
         try {
-            urlConnection = ConnectionHelper.openConnectionUnsafe(context, source, timeout, timeout);
+            urlConnection = ConnectionHelper.openConnectionUnsafe(context, new URL(source), timeout, timeout, headers);
 
-            if (id > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
-                File file = getCacheFile(context, id, source, ".blob");
-                try (FileOutputStream fos = new FileOutputStream(file)) {
-                    Helper.copy(urlConnection.getInputStream(), fos);
+            if (id >= 0) {
+                if (entry != null && urlConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    Log.i("Not modified image source=" + source);
+                    ImageCache.setValidated(context, source, entry);
+                } else {
+                    entry = ImageCache.put(context, source,
+                            urlConnection.getInputStream(),
+                            urlConnection.getHeaderField("ETag"),
+                            urlConnection.getHeaderField("Last-Modified"));
+                    Log.i("Downloaded image source=" + source + " digest=" + entry.digest);
                 }
-                return getScaledDrawable(context, file, null, dm.widthPixels);
+
+                Drawable d = getCachedImage(context, entry, mimeType);
+                if (d == null)
+                    throw new FileNotFoundException("Decode image failed source=" + source);
+                return d;
             }
 
             bm = getScaledBitmap(
@@ -697,13 +732,6 @@ class ImageHelper {
 
         Log.i("Downloaded image source=" + source);
 
-        if (id >= 0) {
-            File file = getCacheFile(context, id, source, ".png");
-            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file))) {
-                bm.compress(Bitmap.CompressFormat.PNG, 90, os);
-            }
-        }
-
         Drawable d = new BitmapDrawable(res, bm);
         d.setBounds(0, 0, Math.round(bm.getWidth() * dm.density), Math.round(bm.getHeight() * dm.density));
         return d;
@@ -3185,8 +3185,10 @@ public class Log {
                 }
                 try {
                     TupleFtsStats stats = db.message().getFts();
-                    size += write(os, String.format("fts: %d/%d %s\r\n", stats.fts, stats.total,
-                            Helper.humanReadableByteCount(Fts4DbHelper.size(context))));
+                    size += write(os, String.format("fts: %d/%d %s fts5=%b %s\r\n", stats.fts, stats.total,
+                            Helper.humanReadableByteCount(Fts4DbHelper.size(context)),
+                            Fts5DbHelper.isEnabled(context),
+                            Helper.humanReadableByteCount(Fts5DbHelper.size(context))));
                 } catch (Throwable ex) {
                     size += write(os, String.format("%s\r\n", ex));
                 }
@@ -3432,10 +3434,10 @@ public class Log {
         attachment.progress = 0;
         attachment.id = db.attachment().insertAttachment(attachment);
 
-        MessageClassifier.save(context);
-        File source = MessageClassifier.getFile(context, false);
         File target = attachment.getFile(context);
-        Helper.copy(source, target);
+        try (OutputStream os = new FileOutputStream(target)) {
+            MessageClassifier.export(context, os);
+        }
 
         db.attachment().setDownloaded(attachment.id, target.length());
     }
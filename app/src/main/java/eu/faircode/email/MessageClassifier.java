@@ -25,41 +25,79 @@ import android.os.Build;
 import android.text.TextUtils;
 import android.util.JsonReader;
 import android.util.JsonWriter;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+import android.util.SparseLongArray;
 
 import androidx.annotation.NonNull;
 import androidx.preference.PreferenceManager;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
 
 import javax.mail.Address;
 import javax.mail.internet.InternetAddress;
 
 public class MessageClassifier {
-    private static boolean loaded = false;
-    private static boolean dirty = false;
-    private static final Map<Long, List<String>> accountMsgIds = new HashMap<>();
-    private static final Map<Long, Map<String, Integer>> classMessages = new HashMap<>();
-    private static final Map<Long, Map<Integer, Map<String, Frequency>>> wordClassFrequency = new HashMap<>();
-    private static final Map<String, Integer> wordIndex = new LinkedHashMap<>();
-
-    private static final int VERSION = 4;
+    private static volatile boolean loaded = false;
+    private static volatile boolean dirty = false;
+    private static volatile boolean compact = false;
+    private static final Map<Long, List<String>> accountMsgIds = new ConcurrentHashMap<>();
+    private static final Map<Long, SparseIntArray> classMessages = new ConcurrentHashMap<>();
+    private static final Map<Long, SparseArray<SparseArray<Frequency>>> wordClassFrequency = new ConcurrentHashMap<>();
+    private static final Map<String, Integer> wordIndex = new HashMap<>();
+    private static final List<String> wordList = new ArrayList<>();
+    private static final Map<String, Integer> classIndex = new HashMap<>();
+    private static final List<String> classList = new ArrayList<>();
+
+    // Changes since the last save, appended to the journal file
+    private static final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private static final DataOutputStream journal = new DataOutputStream(pending);
+
+    // Classifying holds the read lock and the lock of the account,
+    // loading, saving and clearing hold the write lock
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private static final Map<Long, Object> accountLock = new ConcurrentHashMap<>();
+
+    private static final Pattern DIGIT = Pattern.compile("\\d");
+
+    private static final int MAGIC = 0x46454331; // FEC1
+    private static final int VERSION = 5;
+    private static final int JSON_VERSION = 4;
     private static final int MAX_WORDS = 1000;
+    private static final long MIN_COMPACT_SIZE = 256 * 1024L; // bytes
 
-    static synchronized void classify(EntityMessage message, EntityFolder folder, boolean added, Context context) {
+    private static final byte RECORD_WORD = 'W';
+    private static final byte RECORD_CLASS = 'C';
+    private static final byte RECORD_MESSAGE = 'M';
+    private static final byte RECORD_REMOVE = 'R';
+
+    static void classify(EntityMessage message, EntityFolder folder, boolean added, Context context) {
         try {
             if (!isEnabled(context))
                 return;
@@ -77,19 +115,37 @@ public class MessageClassifier {
             if (texts.size() == 0)
                 return;
 
+            // Split texts into words concurrently
+            List<String> words = getWords(texts);
+
             // Load data if needed
             load(context);
 
-            // Initialize account if needed
-            if (!accountMsgIds.containsKey(folder.account))
-                accountMsgIds.put(folder.account, new ArrayList<>());
-            if (!classMessages.containsKey(folder.account))
-                classMessages.put(folder.account, new HashMap<>());
-            if (!wordClassFrequency.containsKey(folder.account))
-                wordClassFrequency.put(folder.account, new HashMap<>());
+            // Get folders once instead of once per class
+            DB db = DB.getInstance(context);
+            Map<String, EntityFolder> folders = new HashMap<>();
+            for (EntityFolder f : db.folder().getFolders(folder.account, false, false))
+                folders.put(f.name, f);
 
             // Classify texts
-            String classified = classify(message, folder.name, texts, added, context);
+            String classified;
+            boolean classifiedBefore;
+            lock.readLock().lock();
+            try {
+                // Initialize account if needed
+                accountMsgIds.putIfAbsent(folder.account, new ArrayList<>());
+                getClassMessages(folder.account);
+                getWordClassFrequency(folder.account);
+
+                synchronized (getAccountLock(folder.account)) {
+                    classified = classify(message, folder.name, words, texts.size(), added, folders, context);
+                    classifiedBefore = accountMsgIds.get(folder.account).contains(message.msgid);
+                }
+
+                dirty = true;
+            } finally {
+                lock.readLock().unlock();
+            }
 
             long elapsed = new Date().getTime() - start;
             EntityLog.log(context, EntityLog.Type.Classification, message,
@@ -111,11 +167,10 @@ public class MessageClassifier {
                     !TextUtils.isEmpty(message.msgid) &&
                     !message.hasKeyword(MessageHelper.FLAG_CLASSIFIED) &&
                     (!message.hasKeyword(MessageHelper.FLAG_FILTERED) || BuildConfig.DEBUG) &&
-                    !accountMsgIds.get(folder.account).contains(message.msgid) &&
+                    !classifiedBefore &&
                     !EntityFolder.JUNK.equals(folder.type)) {
                 boolean pro = ActivityBilling.isPro(context);
 
-                DB db = DB.getInstance(context);
                 try {
                     db.beginTransaction();
 
@@ -136,8 +191,6 @@ public class MessageClassifier {
                 //if (message.ui_hide)
                 //    accountMsgIds.get(folder.account).add(message.msgid);
             }
-
-            dirty = true;
         } catch (Throwable ex) {
             Log.e(ex);
         }
@@ -177,35 +230,20 @@ public class MessageClassifier {
         if (message.subject != null)
             texts.add(message.subject);
 
-        String text = HtmlHelper.getFullText(file);
+        String text = HtmlHelper.getFullText(context, message.id);
         if (text != null)
             texts.add(text);
 
         return texts;
     }
 
-    private static String classify(EntityMessage message, @NonNull String currentClass, @NonNull List<String> texts, boolean added, @NonNull Context context) {
-        State state = new State();
-
-        // Check classes
-        DB db = DB.getInstance(context);
-        for (String clazz : new ArrayList<>(classMessages.get(message.account).keySet())) {
-            EntityFolder folder = db.folder().getFolderByName(message.account, clazz);
-            if (folder == null || !folder.auto_classify_source) {
-                EntityLog.log(context, EntityLog.Type.Classification, message,
-                        "Classifier deleting folder" +
-                                " class=" + message.account + ":" + clazz +
-                                " exists=" + (folder != null));
-                classMessages.get(message.account).remove(clazz);
-                for (int word : wordClassFrequency.get(message.account).keySet())
-                    wordClassFrequency.get(message.account).get(word).remove(clazz);
-            }
-        }
+    @NonNull
+    private static List<String> getWords(@NonNull List<String> texts) {
+        List<String> words = new ArrayList<>();
 
-        Log.i("Classifier texts=" + texts.size());
         for (String text : texts) {
             // First word
-            processWord(message.account, added, null, state);
+            addWord(words, null);
 
             // Process words
             if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
@@ -214,8 +252,8 @@ public class MessageClassifier {
                 int start = boundary.first();
                 for (int end = boundary.next(); end != java.text.BreakIterator.DONE; end = boundary.next()) {
                     String word = text.substring(start, end);
-                    processWord(message.account, added, word, state);
-                    if (state.words.size() >= MAX_WORDS)
+                    addWord(words, word);
+                    if (words.size() >= MAX_WORDS)
                         break;
                     start = end;
                 }
@@ -226,8 +264,8 @@ public class MessageClassifier {
                 int start = boundary.first();
                 for (int end = boundary.next(); end != android.icu.text.BreakIterator.DONE; end = boundary.next()) {
                     String word = text.substring(start, end);
-                    processWord(message.account, added, word, state);
-                    if (state.words.size() >= MAX_WORDS)
+                    addWord(words, word);
+                    if (words.size() >= MAX_WORDS)
                         break;
                     start = end;
                 }
@@ -235,16 +273,79 @@ public class MessageClassifier {
         }
 
         // final word
-        processWord(message.account, added, null, state);
+        addWord(words, null);
+
+        return words;
+    }
+
+    private static void addWord(List<String> words, String word) {
+        if (word != null) {
+            word = word.trim().toLowerCase();
+            if (word.length() < 2 || DIGIT.matcher(word).find())
+                return;
+        }
+
+        if (word != null ||
+                words.size() == 0 ||
+                words.get(words.size() - 1) != null)
+            words.add(word);
+    }
+
+    private static String classify(EntityMessage message, @NonNull String currentClass,
+                                   @NonNull List<String> words, int texts, boolean added,
+                                   @NonNull Map<String, EntityFolder> folders, @NonNull Context context) {
+        State state = new State();
+
+        // Check classes
+        SparseIntArray messages = classMessages.get(message.account);
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            int clazz = messages.keyAt(i);
+            String name = getClass(clazz);
+            EntityFolder folder = folders.get(name);
+            if (folder == null || !folder.auto_classify_source) {
+                EntityLog.log(context, EntityLog.Type.Classification, message,
+                        "Classifier deleting folder" +
+                                " class=" + message.account + ":" + name +
+                                " exists=" + (folder != null));
+                removeClass(message.account, clazz);
+                synchronized (journal) {
+                    try {
+                        journal.writeByte(RECORD_REMOVE);
+                        journal.writeLong(message.account);
+                        journal.writeInt(clazz);
+                    } catch (IOException ex) {
+                        Log.e(ex);
+                    }
+                }
+            }
+        }
+
+        Log.i("Classifier texts=" + texts + " words=" + words.size());
+        for (String word : words)
+            _processWord(message.account, added, word == null ? null : getWordIndex(word), state);
 
         int maxMessages = 0;
-        for (String clazz : classMessages.get(message.account).keySet()) {
-            int count = classMessages.get(message.account).get(clazz);
+        for (int i = 0; i < messages.size(); i++) {
+            int count = messages.valueAt(i);
             if (count > maxMessages)
                 maxMessages = count;
         }
 
-        updateFrequencies(message.account, currentClass, added, state);
+        int current = getClassIndex(currentClass);
+        updateFrequencies(message.account, current, added, state.words);
+        synchronized (journal) {
+            try {
+                journal.writeByte(RECORD_MESSAGE);
+                journal.writeLong(message.account);
+                journal.writeInt(current);
+                journal.writeBoolean(added);
+                journal.writeInt(state.words.size());
+                for (Integer word : state.words)
+                    journal.writeInt(word == null ? -1 : word);
+            } catch (IOException ex) {
+                Log.e(ex);
+            }
+        }
 
         if (maxMessages == 0) {
             Log.i("Classifier no messages account=" + message.account);
@@ -255,18 +356,19 @@ public class MessageClassifier {
             return null;
 
         // Calculate chance per class
-        int words = state.words.size() - texts.size() - 1;
+        int count = state.words.size() - texts - 1;
         List<Chance> chances = new ArrayList<>();
-        for (String clazz : state.classStats.keySet()) {
-            Stat stat = state.classStats.get(clazz);
+        for (int i = 0; i < state.classStats.size(); i++) {
+            String clazz = getClass(state.classStats.keyAt(i));
+            Stat stat = state.classStats.valueAt(i);
 
-            double chance = stat.totalFrequency / maxMessages / words;
+            double chance = stat.totalFrequency / maxMessages / count;
             Chance c = new Chance(clazz, chance);
             chances.add(c);
             EntityLog.log(context, EntityLog.Type.Classification, message,
                     "Classifier " + c +
                             " frequency=" + (Math.round(stat.totalFrequency * 100.0) / 100.0) + "/" + maxMessages + " msgs" +
-                            " matched=" + stat.matchedWords + "/" + words + " words" +
+                            " matched=" + stat.matchedWords + "/" + count + " words" +
                             " text=" + TextUtils.join(", ", stat.words));
         }
 
@@ -296,7 +398,7 @@ public class MessageClassifier {
         if (class_min_difference == 0) {
             for (Chance chance : chances)
                 if (chance.chance > class_min_chance) {
-                    EntityFolder target = db.folder().getFolderByName(message.account, chance.clazz);
+                    EntityFolder target = folders.get(chance.clazz);
                     if (target != null && target.auto_classify_target) {
                         Log.i("Classifier current=" + currentClass + " classified=" + chance.clazz);
                         return chance.clazz;
@@ -325,16 +427,6 @@ public class MessageClassifier {
         return classification;
     }
 
-    private static void processWord(long account, boolean added, String word, State state) {
-        if (word != null) {
-            word = word.trim().toLowerCase();
-            if (word.length() < 2 || word.matches(".*\\d.*"))
-                return;
-        }
-
-        _processWord(account, added, word == null ? null : getWordIndex(word), state);
-    }
-
     private static void _processWord(long account, boolean added, Integer word, State state) {
 
         if (word != null ||
@@ -355,12 +447,13 @@ public class MessageClassifier {
         if (current == null)
             return;
 
-        Map<String, Frequency> classFrequency = wordClassFrequency.get(account).get(current);
+        SparseArray<Frequency> classFrequency = wordClassFrequency.get(account).get(current);
         if (classFrequency == null)
             return;
 
-        for (String clazz : classFrequency.keySet()) {
-            Frequency frequency = classFrequency.get(clazz);
+        for (int i = 0; i < classFrequency.size(); i++) {
+            int clazz = classFrequency.keyAt(i);
+            Frequency frequency = classFrequency.valueAt(i);
             if (frequency.count <= 0)
                 continue;
 
@@ -371,8 +464,8 @@ public class MessageClassifier {
             }
 
             int c = (frequency.count - frequency.duplicates);
-            Integer b = (before == null ? null : frequency.before.get(before));
-            Integer a = (after == null ? null : frequency.after.get(after));
+            Integer b = (before == null ? null : frequency.getBefore(before));
+            Integer a = (after == null ? null : frequency.getAfter(after));
             double f = (c +
                     (b == null ? 2 * c : 2.0 * b / frequency.count * c) +
                     (a == null ? 2 * c : 2.0 * a / frequency.count * c)) / 5.0;
@@ -391,378 +484,742 @@ public class MessageClassifier {
     }
 
     private static int getWordIndex(String word) {
-        Integer index = wordIndex.get(word);
-        if (index == null) {
-            index = wordIndex.size();
-            wordIndex.put(word, index);
+        synchronized (wordIndex) {
+            Integer index = wordIndex.get(word);
+            if (index == null) {
+                index = wordList.size();
+                wordIndex.put(word, index);
+                wordList.add(word);
+                synchronized (journal) {
+                    try {
+                        journal.writeByte(RECORD_WORD);
+                        writeString(journal, word);
+                    } catch (IOException ex) {
+                        Log.e(ex);
+                    }
+                }
+            }
+            return index;
         }
-        return index;
     }
 
     private static String getWord(Integer index) {
         if (index == null)
             return "<null>";
-        if (index < 0 || index >= wordIndex.size())
-            return "<" + index + ">";
-        return new ArrayList<>(wordIndex.keySet()).get(index);
+        synchronized (wordIndex) {
+            if (index < 0 || index >= wordList.size())
+                return "<" + index + ">";
+            return wordList.get(index);
+        }
+    }
+
+    private static int getClassIndex(String clazz) {
+        synchronized (classIndex) {
+            Integer index = classIndex.get(clazz);
+            if (index == null) {
+                index = classList.size();
+                classIndex.put(clazz, index);
+                classList.add(clazz);
+                synchronized (journal) {
+                    try {
+                        journal.writeByte(RECORD_CLASS);
+                        writeString(journal, clazz);
+                    } catch (IOException ex) {
+                        Log.e(ex);
+                    }
+                }
+            }
+            return index;
+        }
+    }
+
+    private static String getClass(int index) {
+        synchronized (classIndex) {
+            if (index < 0 || index >= classList.size())
+                return "<" + index + ">";
+            return classList.get(index);
+        }
+    }
+
+    private static Object getAccountLock(long account) {
+        Object lock = accountLock.get(account);
+        if (lock == null) {
+            ((ConcurrentHashMap<Long, Object>) accountLock).putIfAbsent(account, new Object());
+            lock = accountLock.get(account);
+        }
+        return lock;
+    }
+
+    private static SparseIntArray getClassMessages(long account) {
+        SparseIntArray messages = classMessages.get(account);
+        if (messages == null) {
+            ((ConcurrentHashMap<Long, SparseIntArray>) classMessages).putIfAbsent(account, new SparseIntArray());
+            messages = classMessages.get(account);
+        }
+        return messages;
+    }
+
+    private static SparseArray<SparseArray<Frequency>> getWordClassFrequency(long account) {
+        SparseArray<SparseArray<Frequency>> frequencies = wordClassFrequency.get(account);
+        if (frequencies == null) {
+            ((ConcurrentHashMap<Long, SparseArray<SparseArray<Frequency>>>) wordClassFrequency).putIfAbsent(account, new SparseArray<>());
+            frequencies = wordClassFrequency.get(account);
+        }
+        return frequencies;
+    }
+
+    private static void removeClass(long account, int clazz) {
+        getClassMessages(account).delete(clazz);
+        SparseArray<SparseArray<Frequency>> frequencies = getWordClassFrequency(account);
+        for (int i = 0; i < frequencies.size(); i++)
+            frequencies.valueAt(i).remove(clazz);
     }
 
-    private static void updateFrequencies(long account, @NonNull String currentClass, boolean added, @NonNull State state) {
-        Integer m = classMessages.get(account).get(currentClass);
-        m = (m == null ? 0 : m) + (added ? 1 : -1);
+    private static void updateFrequencies(long account, int currentClass, boolean added, @NonNull List<Integer> words) {
+        SparseIntArray messages = getClassMessages(account);
+        int m = messages.get(currentClass, 0) + (added ? 1 : -1);
         if (m <= 0)
-            classMessages.get(account).remove(currentClass);
+            messages.delete(currentClass);
         else
-            classMessages.get(account).put(currentClass, m);
-        Log.i("Classifier " + currentClass + "=" + m + " msgs");
+            messages.put(currentClass, m);
+        Log.i("Classifier " + getClass(currentClass) + "=" + m + " msgs");
 
-        for (int i = 1; i < state.words.size() - 1; i++) {
-            Integer before = state.words.get(i - 1);
-            Integer current = state.words.get(i);
-            Integer after = state.words.get(i + 1);
+        SparseArray<SparseArray<Frequency>> frequencies = getWordClassFrequency(account);
+        for (int i = 1; i < words.size() - 1; i++) {
+            Integer before = words.get(i - 1);
+            Integer current = words.get(i);
+            Integer after = words.get(i + 1);
 
             if (current == null)
                 continue;
 
-            Map<String, Frequency> classFrequency = wordClassFrequency.get(account).get(current);
+            SparseArray<Frequency> classFrequency = frequencies.get(current);
             if (added) {
                 if (classFrequency == null) {
-                    classFrequency = new HashMap<>();
-                    wordClassFrequency.get(account).put(current, classFrequency);
+                    classFrequency = new SparseArray<>(1);
+                    frequencies.put(current, classFrequency);
                 }
                 Frequency c = classFrequency.get(currentClass);
                 if (c == null) {
                     c = new Frequency();
                     classFrequency.put(currentClass, c);
                 }
-                c.add(before, after, 1, state.words.indexOf(current) < i);
+                c.add(before, after, 1, words.indexOf(current) < i);
             } else {
                 Frequency c = (classFrequency == null ? null : classFrequency.get(currentClass));
                 if (c != null)
-                    c.add(before, after, -1, state.words.indexOf(current) < i);
+                    c.add(before, after, -1, words.indexOf(current) < i);
             }
         }
     }
 
     static synchronized void save(@NonNull Context context) throws IOException {
-        if (!dirty)
-            return;
+        lock.writeLock().lock();
+        try {
+            if (!dirty)
+                return;
 
-        long start = new Date().getTime();
+            long start = new Date().getTime();
 
-        reduce();
+            File file = getFile(context, false);
+            File backup = getFile(context, true);
+            File log = getJournalFile(context);
 
-        File file = getFile(context, false);
-        File backup = getFile(context, true);
-        backup.delete();
-        if (file.exists())
-            file.renameTo(backup);
+            // Append the changes to the journal, until the journal gets too large
+            if (!compact && file.exists() &&
+                    log.length() + pending.size() < Math.max(MIN_COMPACT_SIZE, file.length() / 2)) {
+                Log.i("Classifier append " + log + " size=" + pending.size());
+                try (OutputStream os = new FileOutputStream(log, true)) {
+                    pending.writeTo(os);
+                }
+                pending.reset();
+                dirty = false;
 
-        Log.i("Classifier save " + file);
-        try (JsonWriter writer = new JsonWriter(new BufferedWriter(new FileWriter(file)))) {
-            writer.beginObject();
+                long elapsed = new Date().getTime() - start;
+                Log.i("Classifier data appended elapsed=" + elapsed + " size=" + log.length());
+                return;
+            }
 
-            Log.i("Classifier write version=" + VERSION);
-            writer.name("version").value(VERSION);
+            reduce();
+
+            // The snapshot file is complete whenever it exists
+            File tmp = getTempFile(context);
+            Log.i("Classifier save " + tmp);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+
+                out.writeInt(wordList.size());
+                for (String word : wordList)
+                    writeString(out, word);
+
+                out.writeInt(classList.size());
+                for (String clazz : classList)
+                    writeString(out, clazz);
+
+                out.writeInt(classMessages.size());
+                for (Long account : classMessages.keySet()) {
+                    SparseIntArray messages = classMessages.get(account);
+                    out.writeLong(account);
+                    out.writeInt(messages.size());
+                    for (int i = 0; i < messages.size(); i++) {
+                        out.writeInt(messages.keyAt(i));
+                        out.writeInt(messages.valueAt(i));
+                    }
+                }
 
-            writer.name("messages");
-            writer.beginArray();
-            for (Long account : classMessages.keySet())
-                for (String clazz : classMessages.get(account).keySet()) {
-                    writer.beginObject();
-                    writer.name("account").value(account);
-                    writer.name("class").value(clazz);
-                    writer.name("count").value(classMessages.get(account).get(clazz));
-                    writer.endObject();
+                out.writeInt(wordClassFrequency.size());
+                for (Long account : wordClassFrequency.keySet()) {
+                    SparseArray<SparseArray<Frequency>> frequencies = wordClassFrequency.get(account);
+                    out.writeLong(account);
+                    out.writeInt(frequencies.size());
+                    for (int i = 0; i < frequencies.size(); i++) {
+                        SparseArray<Frequency> classFrequency = frequencies.valueAt(i);
+                        out.writeInt(frequencies.keyAt(i));
+                        out.writeInt(classFrequency.size());
+                        for (int j = 0; j < classFrequency.size(); j++) {
+                            Frequency f = classFrequency.valueAt(j);
+                            out.writeInt(classFrequency.keyAt(j));
+                            out.writeInt(f.count);
+                            out.writeInt(f.duplicates);
+                            writeCounts(out, f.before);
+                            writeCounts(out, f.after);
+                        }
+                    }
                 }
-            writer.endArray();
-
-            writer.name("words");
-            writer.beginArray();
-            for (Long account : wordClassFrequency.keySet())
-                for (int word : wordClassFrequency.get(account).keySet()) {
-                    Map<String, Frequency> classFrequency = wordClassFrequency.get(account).get(word);
-                    for (String clazz : classFrequency.keySet()) {
-                        Frequency f = classFrequency.get(clazz);
-                        writer.beginObject();
 
-                        writer.name("account").value(account);
-                        writer.name("word").value(word);
-                        writer.name("class").value(clazz);
-                        writer.name("count").value(f.count);
-                        writer.name("dup").value(f.duplicates);
+                out.writeInt(accountMsgIds.size());
+                for (Long account : accountMsgIds.keySet()) {
+                    List<String> msgids = accountMsgIds.get(account);
+                    out.writeLong(account);
+                    out.writeInt(msgids.size());
+                    for (String msgid : msgids)
+                        writeString(out, msgid);
+                }
+            }
 
-                        writer.name("before");
-                        writer.beginObject();
-                        for (int key : f.before.keySet())
-                            writer.name(Integer.toString(key)).value(f.before.get(key));
-                        writer.endObject();
+            backup.delete();
+            if (file.exists() && !file.renameTo(backup))
+                throw new IOException("Rename failed file=" + backup);
+            if (!tmp.renameTo(file))
+                throw new IOException("Rename failed file=" + file);
 
-                        writer.name("after");
-                        writer.beginObject();
-                        for (int key : f.after.keySet())
-                            writer.name(Integer.toString(key)).value(f.after.get(key));
-                        writer.endObject();
+            // The journal is part of the snapshot now
+            log.delete();
+            pending.reset();
+            backup.delete();
+            getLegacyFile(context).delete();
 
-                        writer.endObject();
+            compact = false;
+            dirty = false;
+
+            long elapsed = new Date().getTime() - start;
+            Log.i("Classifier data saved elapsed=" + elapsed + " size=" + file.length());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void load(@NonNull Context context) {
+        // Classifying concurrently should not wait for the write lock
+        if (loaded || dirty)
+            return;
+
+        synchronized (MessageClassifier.class) {
+            lock.writeLock().lock();
+            try {
+                if (loaded || dirty)
+                    return;
+
+                clear(context);
+                getTempFile(context).delete();
+                File file = getFile(context, false);
+                File backup = getFile(context, true);
+                File log = getJournalFile(context);
+                File legacy = getLegacyFile(context);
+                // The backup and the journal are consistent until the journal has been deleted
+                // The snapshot is written to a temporary file first, so an existing snapshot is complete
+                if (backup.exists() && (log.exists() || !file.exists()))
+                    file = backup;
+                try {
+                    long start = new Date().getTime();
+                    compact = false;
+                    if (file.exists()) {
+                        _load(file);
+                        _replay(log);
+                    } else if (legacy.exists()) {
+                        _loadJson(legacy);
+                        compact = true;
                     }
+                    pending.reset();
+
+                    loaded = true;
+                    dirty = compact;
+
+                    long elapsed = new Date().getTime() - start;
+                    Log.i("Classifier data loaded elapsed=" + elapsed + " words=" + wordList.size());
+                } catch (Throwable ex) {
+                    Log.e(ex);
+                    file.delete();
+                    log.delete();
+                    legacy.delete();
+                    clear(context);
                 }
-            writer.endArray();
-
-            writer.name("list");
-            writer.beginArray();
-            for (String word : wordIndex.keySet())
-                writer.value(word);
-            writer.endArray();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
 
-            writer.name("classified");
-            writer.beginArray();
-            for (Long account : accountMsgIds.keySet()) {
-                writer.beginObject();
-                writer.name("account").value(account);
-                writer.name("messages");
-                writer.beginArray();
-                for (String msgid : accountMsgIds.get(account))
-                    writer.value(msgid);
-                writer.endArray();
-                writer.endObject();
+    private static void _load(File file) throws IOException {
+        Log.i("Classifier read " + file);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Classifier invalid data");
+            int version = in.readInt();
+            Log.i("Classifier read version=" + version);
+            if (version != VERSION)
+                throw new IOException("Classifier unsupported version=" + version);
+
+            int words = in.readInt();
+            for (int i = 0; i < words; i++) {
+                String word = readString(in);
+                wordIndex.put(word, wordList.size());
+                wordList.add(word);
             }
-            writer.endArray();
 
-            writer.endObject();
-        }
+            int classes = in.readInt();
+            for (int i = 0; i < classes; i++) {
+                String clazz = readString(in);
+                classIndex.put(clazz, classList.size());
+                classList.add(clazz);
+            }
 
-        backup.delete();
+            int accounts = in.readInt();
+            for (int i = 0; i < accounts; i++) {
+                long account = in.readLong();
+                int count = in.readInt();
+                SparseIntArray messages = new SparseIntArray(count);
+                for (int j = 0; j < count; j++)
+                    messages.append(in.readInt(), in.readInt());
+                classMessages.put(account, messages);
+            }
 
-        dirty = false;
+            accounts = in.readInt();
+            for (int i = 0; i < accounts; i++) {
+                long account = in.readLong();
+                int count = in.readInt();
+                SparseArray<SparseArray<Frequency>> frequencies = new SparseArray<>(count);
+                for (int j = 0; j < count; j++) {
+                    int word = in.readInt();
+                    int n = in.readInt();
+                    SparseArray<Frequency> classFrequency = new SparseArray<>(n);
+                    for (int k = 0; k < n; k++) {
+                        int clazz = in.readInt();
+                        Frequency f = new Frequency();
+                        f.count = in.readInt();
+                        f.duplicates = in.readInt();
+                        f.before = readCounts(in);
+                        f.after = readCounts(in);
+                        classFrequency.append(clazz, f);
+                    }
+                    frequencies.append(word, classFrequency);
+                }
+                wordClassFrequency.put(account, frequencies);
+            }
 
-        long elapsed = new Date().getTime() - start;
-        Log.i("Classifier data saved elapsed=" + elapsed + " size=" + file.length());
+            accounts = in.readInt();
+            for (int i = 0; i < accounts; i++) {
+                long account = in.readLong();
+                int count = in.readInt();
+                List<String> msgids = new ArrayList<>(count);
+                for (int j = 0; j < count; j++)
+                    msgids.add(readString(in));
+                accountMsgIds.put(account, msgids);
+            }
+        }
     }
 
-    private static synchronized void load(@NonNull Context context) {
-        if (loaded || dirty)
+    private static void _replay(File file) throws IOException {
+        if (!file.exists())
             return;
 
-        clear(context);
-        File file = getFile(context, false);
-        File backup = getFile(context, true);
-        if (backup.exists())
-            file = backup;
-        try {
-            _load(file);
-        } catch (Throwable ex) {
-            Log.e(ex);
-            file.delete();
-            clear(context);
+        Log.i("Classifier replay " + file + " size=" + file.length());
+        int records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException ignored) {
+                    break;
+                }
+
+                try {
+                    switch (type) {
+                        case RECORD_WORD:
+                            String word = readString(in);
+                            if (!wordIndex.containsKey(word)) {
+                                wordIndex.put(word, wordList.size());
+                                wordList.add(word);
+                            }
+                            break;
+
+                        case RECORD_CLASS:
+                            String clazz = readString(in);
+                            if (!classIndex.containsKey(clazz)) {
+                                classIndex.put(clazz, classList.size());
+                                classList.add(clazz);
+                            }
+                            break;
+
+                        case RECORD_MESSAGE:
+                            long account = in.readLong();
+                            int current = in.readInt();
+                            boolean added = in.readBoolean();
+                            int count = in.readInt();
+                            List<Integer> words = new ArrayList<>(count);
+                            for (int i = 0; i < count; i++) {
+                                int w = in.readInt();
+                                words.add(w < 0 ? null : w);
+                            }
+                            updateFrequencies(account, current, added, words);
+                            break;
+
+                        case RECORD_REMOVE:
+                            removeClass(in.readLong(), in.readInt());
+                            break;
+
+                        default:
+                            throw new IOException("Classifier invalid record=" + type);
+                    }
+                } catch (EOFException ex) {
+                    // Incomplete last record
+                    Log.w(ex);
+                    break;
+                }
+
+                records++;
+            }
         }
+        Log.i("Classifier replayed records=" + records);
     }
 
-    private static synchronized void _load(File file) throws IOException {
+    private static void _loadJson(File file) throws IOException {
         Log.i("Classifier read " + file);
-        long start = new Date().getTime();
         int version = 0;
-        if (file.exists())
-            try (JsonReader reader = new JsonReader(new BufferedReader(new FileReader(file)))) {
-                reader.beginObject();
-                while (reader.hasNext())
-                    switch (reader.nextName()) {
-                        case "version":
-                            version = reader.nextInt();
-                            Log.i("Classifier read version=" + version);
-                            break;
+        try (JsonReader reader = new JsonReader(new BufferedReader(new FileReader(file)))) {
+            reader.beginObject();
+            while (reader.hasNext())
+                switch (reader.nextName()) {
+                    case "version":
+                        version = reader.nextInt();
+                        Log.i("Classifier read version=" + version);
+                        break;
 
-                        case "messages":
-                            reader.beginArray();
-                            while (reader.hasNext()) {
-                                Long account = null;
-                                String clazz = null;
-                                Integer count = null;
-
-                                reader.beginObject();
-                                while (reader.hasNext())
-                                    switch (reader.nextName()) {
-                                        case "account":
-                                            account = reader.nextLong();
-                                            break;
-                                        case "class":
-                                            clazz = reader.nextString();
-                                            break;
-                                        case "count":
-                                            count = reader.nextInt();
-                                            break;
-                                    }
-                                reader.endObject();
-
-                                if (account == null || clazz == null || count == null)
-                                    continue;
-
-                                if (!classMessages.containsKey(account))
-                                    classMessages.put(account, new HashMap<>());
-                                classMessages.get(account).put(clazz, count);
-                            }
-                            reader.endArray();
-                            break;
+                    case "messages":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            Long account = null;
+                            String clazz = null;
+                            Integer count = null;
 
-                        case "words":
-                            reader.beginArray();
-                            while (reader.hasNext()) {
-                                Long account = null;
-                                Integer word = null;
-                                String clazz = null;
-                                Frequency f = new Frequency();
-
-                                reader.beginObject();
-                                while (reader.hasNext())
-                                    switch (reader.nextName()) {
-                                        case "account":
-                                            account = reader.nextLong();
-                                            break;
-                                        case "word":
-                                            if (version > 3)
-                                                word = Integer.parseInt(reader.nextString());
-                                            else
-                                                word = getWordIndex(reader.nextString());
-                                            break;
-                                        case "class":
-                                            clazz = reader.nextString();
-                                            break;
-                                        case "count":
-                                            f.count = reader.nextInt();
-                                            break;
-                                        case "dup":
-                                            f.duplicates = reader.nextInt();
-                                            break;
-                                        case "before":
-                                            reader.beginObject();
-                                            while (reader.hasNext()) {
-                                                int b = (version > 3
-                                                        ? Integer.parseInt(reader.nextName())
-                                                        : getWordIndex(reader.nextName()));
-                                                f.before.put(b, reader.nextInt());
-                                            }
-                                            reader.endObject();
-                                            break;
-                                        case "after":
-                                            reader.beginObject();
-                                            while (reader.hasNext()) {
-                                                int a = (version > 3
-                                                        ? Integer.parseInt(reader.nextName())
-                                                        : getWordIndex(reader.nextName()));
-                                                f.after.put(a, reader.nextInt());
-                                            }
-                                            reader.endObject();
-                                            break;
-                                    }
-                                reader.endObject();
-
-                                if (account == null || word == null || clazz == null)
-                                    continue;
-
-                                if (!wordClassFrequency.containsKey(account))
-                                    wordClassFrequency.put(account, new HashMap<>());
-
-                                Map<String, Frequency> classFrequency = wordClassFrequency.get(account).get(word);
-                                if (classFrequency == null) {
-                                    classFrequency = new HashMap<>();
-                                    wordClassFrequency.get(account).put(word, classFrequency);
+                            reader.beginObject();
+                            while (reader.hasNext())
+                                switch (reader.nextName()) {
+                                    case "account":
+                                        account = reader.nextLong();
+                                        break;
+                                    case "class":
+                                        clazz = reader.nextString();
+                                        break;
+                                    case "count":
+                                        count = reader.nextInt();
+                                        break;
                                 }
+                            reader.endObject();
 
-                                classFrequency.put(clazz, f);
-                            }
-                            reader.endArray();
-                            break;
+                            if (account == null || clazz == null || count == null)
+                                continue;
 
-                        case "list":
-                            reader.beginArray();
+                            getClassMessages(account).put(getClassIndex(clazz), count);
+                        }
+                        reader.endArray();
+                        break;
+
+                    case "words":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            Long account = null;
+                            Integer word = null;
+                            String clazz = null;
+                            Frequency f = new Frequency();
+
+                            reader.beginObject();
                             while (reader.hasNext())
-                                wordIndex.put(reader.nextString(), wordIndex.size());
-                            reader.endArray();
-                            break;
+                                switch (reader.nextName()) {
+                                    case "account":
+                                        account = reader.nextLong();
+                                        break;
+                                    case "word":
+                                        if (version > 3)
+                                            word = Integer.parseInt(reader.nextString());
+                                        else
+                                            word = getWordIndex(reader.nextString());
+                                        break;
+                                    case "class":
+                                        clazz = reader.nextString();
+                                        break;
+                                    case "count":
+                                        f.count = reader.nextInt();
+                                        break;
+                                    case "dup":
+                                        f.duplicates = reader.nextInt();
+                                        break;
+                                    case "before":
+                                        reader.beginObject();
+                                        while (reader.hasNext()) {
+                                            int b = (version > 3
+                                                    ? Integer.parseInt(reader.nextName())
+                                                    : getWordIndex(reader.nextName()));
+                                            f.before.put(b, reader.nextInt());
+                                        }
+                                        reader.endObject();
+                                        break;
+                                    case "after":
+                                        reader.beginObject();
+                                        while (reader.hasNext()) {
+                                            int a = (version > 3
+                                                    ? Integer.parseInt(reader.nextName())
+                                                    : getWordIndex(reader.nextName()));
+                                            f.after.put(a, reader.nextInt());
+                                        }
+                                        reader.endObject();
+                                        break;
+                                }
+                            reader.endObject();
+
+                            if (account == null || word == null || clazz == null)
+                                continue;
 
-                        case "classified":
-                            reader.beginArray();
-                            while (reader.hasNext()) {
-                                Long account = null;
-                                List<String> msgids = new ArrayList<>();
-
-                                reader.beginObject();
-                                while (reader.hasNext())
-                                    switch (reader.nextName()) {
-                                        case "account":
-                                            account = reader.nextLong();
-                                            break;
-                                        case "messages":
-                                            reader.beginArray();
-                                            while (reader.hasNext())
-                                                msgids.add(reader.nextString());
-                                            reader.endArray();
-                                            break;
-                                    }
-                                reader.endObject();
-
-                                if (account == null)
-                                    continue;
-
-                                accountMsgIds.put(account, msgids);
+                            SparseArray<SparseArray<Frequency>> frequencies = getWordClassFrequency(account);
+                            SparseArray<Frequency> classFrequency = frequencies.get(word);
+                            if (classFrequency == null) {
+                                classFrequency = new SparseArray<>(1);
+                                frequencies.put(word, classFrequency);
                             }
-                            reader.endArray();
-                            break;
+
+                            classFrequency.put(getClassIndex(clazz), f);
+                        }
+                        reader.endArray();
+                        break;
+
+                    case "list":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            String word = reader.nextString();
+                            wordIndex.put(word, wordList.size());
+                            wordList.add(word);
+                        }
+                        reader.endArray();
+                        break;
+
+                    case "classified":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            Long account = null;
+                            List<String> msgids = new ArrayList<>();
+
+                            reader.beginObject();
+                            while (reader.hasNext())
+                                switch (reader.nextName()) {
+                                    case "account":
+                                        account = reader.nextLong();
+                                        break;
+                                    case "messages":
+                                        reader.beginArray();
+                                        while (reader.hasNext())
+                                            msgids.add(reader.nextString());
+                                        reader.endArray();
+                                        break;
+                                }
+                            reader.endObject();
+
+                            if (account == null)
+                                continue;
+
+                            accountMsgIds.put(account, msgids);
+                        }
+                        reader.endArray();
+                        break;
+                }
+            reader.endObject();
+        }
+
+        reduce();
+    }
+
+    static synchronized void export(@NonNull Context context, @NonNull OutputStream os) throws IOException {
+        lock.writeLock().lock();
+        try {
+            load(context);
+
+            try (JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(os)))) {
+                writer.beginObject();
+
+                writer.name("version").value(JSON_VERSION);
+
+                writer.name("messages");
+                writer.beginArray();
+                for (Long account : classMessages.keySet()) {
+                    SparseIntArray messages = classMessages.get(account);
+                    for (int i = 0; i < messages.size(); i++) {
+                        writer.beginObject();
+                        writer.name("account").value(account);
+                        writer.name("class").value(getClass(messages.keyAt(i)));
+                        writer.name("count").value(messages.valueAt(i));
+                        writer.endObject();
+                    }
+                }
+                writer.endArray();
+
+                writer.name("words");
+                writer.beginArray();
+                for (Long account : wordClassFrequency.keySet()) {
+                    SparseArray<SparseArray<Frequency>> frequencies = wordClassFrequency.get(account);
+                    for (int i = 0; i < frequencies.size(); i++) {
+                        SparseArray<Frequency> classFrequency = frequencies.valueAt(i);
+                        for (int j = 0; j < classFrequency.size(); j++) {
+                            Frequency f = classFrequency.valueAt(j);
+                            writer.beginObject();
+
+                            writer.name("account").value(account);
+                            writer.name("word").value(frequencies.keyAt(i));
+                            writer.name("class").value(getClass(classFrequency.keyAt(j)));
+                            writer.name("count").value(f.count);
+                            writer.name("dup").value(f.duplicates);
+
+                            writer.name("before");
+                            writer.beginObject();
+                            for (int k = 0; k < f.before.size(); k++)
+                                writer.name(Integer.toString(f.before.keyAt(k))).value(f.before.valueAt(k));
+                            writer.endObject();
+
+                            writer.name("after");
+                            writer.beginObject();
+                            for (int k = 0; k < f.after.size(); k++)
+                                writer.name(Integer.toString(f.after.keyAt(k))).value(f.after.valueAt(k));
+                            writer.endObject();
+
+                            writer.endObject();
+                        }
                     }
-                reader.endObject();
+                }
+                writer.endArray();
+
+                writer.name("list");
+                writer.beginArray();
+                for (String word : wordList)
+                    writer.value(word);
+                writer.endArray();
+
+                writer.name("classified");
+                writer.beginArray();
+                for (Long account : accountMsgIds.keySet()) {
+                    writer.beginObject();
+                    writer.name("account").value(account);
+                    writer.name("messages");
+                    writer.beginArray();
+                    for (String msgid : accountMsgIds.get(account))
+                        writer.value(msgid);
+                    writer.endArray();
+                    writer.endObject();
+                }
+                writer.endArray();
+
+                writer.endObject();
             }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-        reduce();
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
 
-        loaded = true;
-        dirty = false;
+    private static void writeCounts(DataOutputStream out, SparseIntArray counts) throws IOException {
+        out.writeInt(counts.size());
+        for (int i = 0; i < counts.size(); i++) {
+            out.writeInt(counts.keyAt(i));
+            out.writeInt(counts.valueAt(i));
+        }
+    }
 
-        long elapsed = new Date().getTime() - start;
-        Log.i("Classifier data loaded elapsed=" + elapsed + " words=" + wordIndex.size());
+    private static SparseIntArray readCounts(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        SparseIntArray counts = new SparseIntArray(count);
+        for (int i = 0; i < count; i++)
+            counts.append(in.readInt(), in.readInt());
+        return counts;
     }
 
     private static void reduce() {
         Log.i("Classifier reduce");
         for (long account : wordClassFrequency.keySet()) {
-            Map<String, Integer> max = new HashMap<>();
-            Map<String, Long> total = new HashMap<>();
-            Map<String, Integer> count = new HashMap<>();
+            SparseArray<SparseArray<Frequency>> frequencies = wordClassFrequency.get(account);
+
+            SparseIntArray max = new SparseIntArray();
+            SparseLongArray total = new SparseLongArray();
+            SparseIntArray count = new SparseIntArray();
 
-            for (int word : wordClassFrequency.get(account).keySet())
-                for (String clazz : wordClassFrequency.get(account).get(word).keySet()) {
-                    int f = wordClassFrequency.get(account).get(word).get(clazz).count;
+            for (int i = 0; i < frequencies.size(); i++) {
+                SparseArray<Frequency> classFrequency = frequencies.valueAt(i);
+                for (int j = 0; j < classFrequency.size(); j++) {
+                    int clazz = classFrequency.keyAt(j);
+                    int f = classFrequency.valueAt(j).count;
 
-                    Integer m = max.get(clazz);
-                    if (m == null || f > m)
+                    if (max.indexOfKey(clazz) < 0 || f > max.get(clazz))
                         max.put(clazz, f);
 
-                    if (!total.containsKey(clazz))
-                        total.put(clazz, 0L);
-                    total.put(clazz, total.get(clazz) + f);
+                    total.put(clazz, total.get(clazz, 0L) + f);
 
-                    if (!count.containsKey(clazz))
-                        count.put(clazz, 0);
-                    count.put(clazz, count.get(clazz) + 1);
+                    count.put(clazz, count.get(clazz, 0) + 1);
                 }
+            }
 
-            for (String clazz : max.keySet())
-                Log.i("Classifier max " + account + ":" + clazz + "=" + max.get(clazz));
+            for (int i = 0; i < max.size(); i++)
+                Log.i("Classifier max " + account + ":" + getClass(max.keyAt(i)) + "=" + max.valueAt(i));
 
             int dropped = 0;
-            for (int word : wordClassFrequency.get(account).keySet())
-                for (String clazz : new ArrayList<>(wordClassFrequency.get(account).get(word).keySet())) {
+            for (int i = frequencies.size() - 1; i >= 0; i--) {
+                int word = frequencies.keyAt(i);
+                SparseArray<Frequency> classFrequency = frequencies.valueAt(i);
+                for (int j = classFrequency.size() - 1; j >= 0; j--) {
+                    int clazz = classFrequency.keyAt(j);
                     long m = max.get(clazz);
                     long avg = total.get(clazz) / count.get(clazz);
-                    Frequency freq = wordClassFrequency.get(account).get(word).get(clazz);
+                    Frequency freq = classFrequency.valueAt(j);
                     if (freq.count < m / 5000) {
                         dropped++;
-                        wordClassFrequency.get(account).get(word).remove(clazz);
+                        classFrequency.removeAt(j);
                     } else if (freq.count < avg / 2 && false) {
                         dropped++;
                         Log.i("Classifier dropping account=" + account +
                                 " word=" + word + " class=" + clazz + " freq=" + freq.count + " avg=" + avg);
                     }
                 }
+                if (classFrequency.size() == 0)
+                    frequencies.removeAt(i);
+            }
             Log.i("Classifier dropped words=" + dropped);
 
             // Source 47 MB
@@ -791,37 +1248,53 @@ public class MessageClassifier {
     }
 
     static synchronized void cleanup(@NonNull Context context) {
+        lock.writeLock().lock();
         try {
-            load(context);
+            try {
+                load(context);
 
-            DB db = DB.getInstance(context);
-            for (Long account : accountMsgIds.keySet()) {
-                List<String> msgids = accountMsgIds.get(account);
-                Log.i("Classifier cleanup account=" + account + " count=" + msgids.size());
-                for (String msgid : new ArrayList<>(msgids)) {
-                    List<EntityMessage> messages = db.message().getMessagesByMsgId(account, msgid);
-                    if (messages != null && messages.size() == 0) {
-                        Log.i("Classifier removing msgid=" + msgid);
-                        msgids.remove(msgid);
-                        dirty = true;
+                DB db = DB.getInstance(context);
+                for (Long account : accountMsgIds.keySet()) {
+                    List<String> msgids = accountMsgIds.get(account);
+                    Log.i("Classifier cleanup account=" + account + " count=" + msgids.size());
+                    for (String msgid : new ArrayList<>(msgids)) {
+                        List<EntityMessage> messages = db.message().getMessagesByMsgId(account, msgid);
+                        if (messages != null && messages.size() == 0) {
+                            Log.i("Classifier removing msgid=" + msgid);
+                            msgids.remove(msgid);
+                            compact = true;
+                            dirty = true;
+                        }
                     }
                 }
-            }
 
-            if (dirty)
-                save(context);
-        } catch (Throwable ex) {
-            Log.e(ex);
+                if (dirty)
+                    save(context);
+            } catch (Throwable ex) {
+                Log.e(ex);
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
     static synchronized void clear(@NonNull Context context) {
-        accountMsgIds.clear();
-        classMessages.clear();
-        wordClassFrequency.clear();
-        wordIndex.clear();
-        dirty = true;
-        Log.i("Classifier data cleared");
+        lock.writeLock().lock();
+        try {
+            accountMsgIds.clear();
+            classMessages.clear();
+            wordClassFrequency.clear();
+            wordIndex.clear();
+            wordList.clear();
+            classIndex.clear();
+            classList.clear();
+            pending.reset();
+            compact = true;
+            dirty = true;
+            Log.i("Classifier data cleared");
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     static boolean isEnabled(@NonNull Context context) {
@@ -831,12 +1304,24 @@ public class MessageClassifier {
 
     static File getFile(@NonNull Context context, boolean backup) {
         return new File(context.getFilesDir(),
-                backup ? "classifier.backup" : "classifier.json");
+                backup ? "classifier.bin.backup" : "classifier.bin");
+    }
+
+    private static File getTempFile(@NonNull Context context) {
+        return new File(context.getFilesDir(), "classifier.bin.tmp");
+    }
+
+    private static File getJournalFile(@NonNull Context context) {
+        return new File(context.getFilesDir(), "classifier.journal");
+    }
+
+    private static File getLegacyFile(@NonNull Context context) {
+        return new File(context.getFilesDir(), "classifier.json");
     }
 
     static long getSize(Context context) {
         try {
-            return getFile(context, false).length();
+            return getFile(context, false).length() + getJournalFile(context).length();
         } catch (Throwable ignored) {
             return -1L;
         }
@@ -844,14 +1329,24 @@ public class MessageClassifier {
 
     private static class State {
         private final List<Integer> words = new ArrayList<>();
-        private final Map<String, Stat> classStats = new HashMap<>();
+        private final SparseArray<Stat> classStats = new SparseArray<>();
     }
 
     private static class Frequency {
         private int count = 0;
         private int duplicates = 0;
-        private Map<Integer, Integer> before = new HashMap<>();
-        private Map<Integer, Integer> after = new HashMap<>();
+        private SparseIntArray before = new SparseIntArray(0);
+        private SparseIntArray after = new SparseIntArray(0);
+
+        private Integer getBefore(int word) {
+            int index = before.indexOfKey(word);
+            return (index < 0 ? null : before.valueAt(index));
+        }
+
+        private Integer getAfter(int word) {
+            int index = after.indexOfKey(word);
+            return (index < 0 ? null : after.valueAt(index));
+        }
 
         private void add(Integer b, Integer a, int c, boolean duplicate) {
             if (count + c < 0)
@@ -862,15 +1357,11 @@ public class MessageClassifier {
             if (duplicate)
                 duplicates += c;
 
-            if (b != null) {
-                Integer x = before.get(b);
-                before.put(b, (x == null ? 0 : x) + c);
-            }
+            if (b != null)
+                before.put(b, before.get(b, 0) + c);
 
-            if (a != null) {
-                Integer x = after.get(a);
-                after.put(a, (x == null ? 0 : x) + c);
-            }
+            if (a != null)
+                after.put(a, after.get(a, 0) + c);
         }
     }
 
@@ -1479,17 +1479,26 @@ public class MessageHelper {
     }
 
     String getFlags() throws MessagingException {
+        return getFlags(imessage.getFlags());
+    }
+
+    static String getFlags(Flags flags) {
         if (!BuildConfig.DEBUG)
             return null;
 
-        Flags flags = imessage.getFlags();
+        flags = new Flags(flags);
         flags.clearUserFlags();
         return flags.toString();
     }
 
     @NonNull
     String[] getKeywords() throws MessagingException {
-        List<String> keywords = Arrays.asList(imessage.getFlags().getUserFlags());
+        return getKeywords(imessage.getFlags());
+    }
+
+    @NonNull
+    static String[] getKeywords(Flags flags) {
+        List<String> keywords = Arrays.asList(flags.getUserFlags());
         Collections.sort(keywords);
         return keywords.toArray(new String[0]);
     }
@@ -1922,9 +1931,15 @@ public class MessageHelper {
     String[] getLabels() throws MessagingException {
         //ensureMessage(false);
 
+        return getLabels(imessage instanceof GmailMessage
+                ? ((GmailMessage) imessage).getLabels() : null);
+    }
+
+    @NonNull
+    static String[] getLabels(String[] glabels) {
         List<String> labels = new ArrayList<>();
-        if (imessage instanceof GmailMessage)
-            for (String label : ((GmailMessage) imessage).getLabels())
+        if (glabels != null)
+            for (String label : glabels)
                 if (!label.startsWith("\\"))
                     labels.add(label);
 
@@ -5221,6 +5236,16 @@ public class MessageHelper {
         });
     }
 
+    static boolean isEnabled(IMAPFolder ifolder, final String capability) throws MessagingException {
+        // https://datatracker.ietf.org/doc/html/rfc5161
+        return (boolean) ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                return protocol.isEnabled(capability);
+            }
+        });
+    }
+
     static String sanitizeKeyword(String keyword) {
         // https://tools.ietf.org/html/rfc3501
         StringBuilder sb = new StringBuilder();
@@ -88,6 +88,7 @@ public class ServiceSend extends ServiceBase implements SharedPreferences.OnShar
     private TwoStateOwner owner;
     private PowerManager.WakeLock wlOutbox;
     private List<Long> handling = new ArrayList<>();
+    private final Map<Long, SmtpSession> sessions = new HashMap<>(); // send executor only
 
     private static final ExecutorService executor =
             Helper.getBackgroundExecutor(1, "send");
@@ -95,6 +96,7 @@ public class ServiceSend extends ServiceBase implements SharedPreferences.OnShar
     private static final int RETRY_MAX = 3;
     private static final int CONNECTIVITY_DELAY = 5000; // milliseconds
     private static final int PROGRESS_UPDATE_INTERVAL = 1000; // milliseconds
+    private static final int DEFAULT_KEEP_ALIVE = 60; // seconds
 
     static final int PI_SEND = 1;
     static final int PI_FIX = 2;
@@ -195,10 +197,18 @@ public class ServiceSend extends ServiceBase implements SharedPreferences.OnShar
         cm.unregisterNetworkCallback(networkCallback);
 
         getMainHandler().removeCallbacks(_checkConnectivity);
+        getMainHandler().removeCallbacks(_closeSessions);
 
         owner.stop();
         handling.clear();
 
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                closeSessions(true);
+            }
+        });
+
         stopForeground(true);
 
         NotificationManager nm = Helper.getSystemService(this, NotificationManager.class);
@@ -352,6 +362,13 @@ public class ServiceSend extends ServiceBase implements SharedPreferences.OnShar
                     owner.stop();
                     handling.clear();
                 }
+
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        closeSessions(true);
+                    }
+                });
             }
 
             boolean suitable = ConnectionHelper.getNetworkState(ServiceSend.this).isSuitable();
@@ -605,6 +622,7 @@ public class ServiceSend extends ServiceBase implements SharedPreferences.OnShar
         boolean reply_move_inbox = prefs.getBoolean("reply_move_inbox", true);
         boolean protocol = prefs.getBoolean("protocol", false);
         boolean debug = (prefs.getBoolean("debug", false) || BuildConfig.DEBUG);
+        int keep_alive = prefs.getInt("send_keep_alive", DEFAULT_KEEP_ALIVE);
 
         if (message.identity == null)
             throw new IllegalArgumentException("Send without identity");
@@ -746,28 +764,37 @@ public class ServiceSend extends ServiceBase implements SharedPreferences.OnShar
             MicrosoftGraph.send(ServiceSend.this, ident, imessage);
             end = new Date().getTime();
         } else {
-            EmailService iservice = new EmailService(
-                    this, ident.getProtocol(), ident.realm, ident.encryption, ident.insecure, ident.unicode, debug);
-            try {
+            // Reuse the connection of the previous message of the same identity
+            EmailService iservice = getSession(ident, debug, keep_alive);
+            boolean reused = (iservice != null);
+            boolean keep = false;
+            if (iservice == null) {
+                iservice = new EmailService(
+                        this, ident.getProtocol(), ident.realm, ident.encryption, ident.insecure, ident.unicode, debug);
                 iservice.setUseIp(ident.use_ip, ident.ehlo);
-                if (!message.isSigned() && !message.isEncrypted())
-                    iservice.set8BitMime(ident.octetmime);
+            }
+            try {
+                iservice.set8BitMime(!message.isSigned() && !message.isEncrypted() && ident.octetmime);
 
                 // 0=Read receipt
                 // 1=Delivery receipt
                 // 2=Read+delivery receipt
 
+                String dsn = null;
                 if (message.receipt_request != null && message.receipt_request) {
                     int receipt_type = prefs.getInt("receipt_type", 2);
                     if (receipt_type == 1 || receipt_type == 2) // Delivery receipt
-                        iservice.setDsnNotify("SUCCESS,FAILURE,DELAY");
+                        dsn = "SUCCESS,FAILURE,DELAY";
                 }
+                iservice.setDsnNotify(dsn);
 
                 // Connect transport
-                db.identity().setIdentityState(ident.id, "connecting");
-                iservice.connect(ident);
-                if (BuildConfig.DEBUG && false)
-                    throw new IOException("Test");
+                if (!reused) {
+                    db.identity().setIdentityState(ident.id, "connecting");
+                    iservice.connect(ident);
+                    if (BuildConfig.DEBUG && false)
+                        throw new IOException("Test");
+                }
                 db.identity().setIdentityState(ident.id, "connected");
 
                 max_size = iservice.getMaxSize();
@@ -829,7 +856,9 @@ public class ServiceSend extends ServiceBase implements SharedPreferences.OnShar
                 start = new Date().getTime();
                 iservice.getTransport().sendMessage(imessage, recipients.toArray(new Address[0]));
                 end = new Date().getTime();
-                EntityLog.log(this, "Sent " + via + " elapse=" + (end - start) + " ms");
+                EntityLog.log(this, "Sent " + via + " reused=" + reused + " elapse=" + (end - start) + " ms");
+
+                keep = (keep_alive > 0);
             } catch (MessagingException ex) {
                 iservice.dump(ident.email);
                 Log.e(ex);
@@ -856,7 +885,12 @@ public class ServiceSend extends ServiceBase implements SharedPreferences.OnShar
                 iservice.dump(ident.email);
                 throw ex;
             } finally {
-                iservice.close();
+                if (keep) {
+                    sessions.put(ident.id, new SmtpSession(ident, debug, iservice));
+                    getMainHandler().removeCallbacks(_closeSessions);
+                    getMainHandler().postDelayed(_closeSessions, keep_alive * 1000L);
+                } else
+                    iservice.close();
                 if (lastProgress >= 0) {
                     lastProgress = -1;
                     if (NotificationHelper.areNotificationsEnabled(nm))
@@ -940,6 +974,82 @@ public class ServiceSend extends ServiceBase implements SharedPreferences.OnShar
         ServiceSynchronize.eval(this, "sent");
     }
 
+    private EmailService getSession(EntityIdentity ident, boolean debug, int keep_alive) {
+        SmtpSession session = sessions.remove(ident.id);
+        if (session == null)
+            return null;
+
+        if (session.debug != debug ||
+                !EntityIdentity.areEqual(session.identity, ident, true, false) ||
+                session.isExpired(keep_alive)) {
+            session.close();
+            return null;
+        }
+
+        try {
+            // Start a new mail transaction, which also checks if the connection is still alive
+            session.iservice.getTransport().issueCommand("RSET", 250);
+            EntityLog.log(this, "Reusing connection " + ident.email);
+            return session.iservice;
+        } catch (Throwable ex) {
+            Log.w(ex);
+            session.close();
+            return null;
+        }
+    }
+
+    private void closeSessions(boolean all) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        int keep_alive = prefs.getInt("send_keep_alive", DEFAULT_KEEP_ALIVE);
+
+        for (Long id : new ArrayList<>(sessions.keySet())) {
+            SmtpSession session = sessions.get(id);
+            if (all || session.isExpired(keep_alive)) {
+                EntityLog.log(this, "Closing connection " + session.identity.email);
+                sessions.remove(id);
+                session.close();
+            }
+        }
+    }
+
+    private final Runnable _closeSessions = new Runnable() {
+        @Override
+        public void run() {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    closeSessions(false);
+                }
+            });
+        }
+    };
+
+    private static class SmtpSession {
+        private final EntityIdentity identity;
+        private final boolean debug;
+        private final EmailService iservice;
+        private final long used;
+
+        SmtpSession(EntityIdentity identity, boolean debug, EmailService iservice) {
+            this.identity = identity;
+            this.debug = debug;
+            this.iservice = iservice;
+            this.used = SystemClock.elapsedRealtime();
+        }
+
+        boolean isExpired(int keep_alive) {
+            return (SystemClock.elapsedRealtime() - used >= keep_alive * 1000L);
+        }
+
+        void close() {
+            try {
+                iservice.close();
+            } catch (Throwable ex) {
+                Log.w(ex);
+            }
+        }
+    }
+
     private void checkICalendar(long sid) {
         boolean permission = Helper.hasPermission(this, Manifest.permission.WRITE_CALENDAR);
         if (!permission)
@@ -61,6 +61,8 @@ import com.sun.mail.iap.ProtocolException;
 import com.sun.mail.iap.Response;
 import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.IdleManager;
+import com.sun.mail.imap.ResyncData;
 import com.sun.mail.imap.protocol.IMAPProtocol;
 import com.sun.mail.imap.protocol.IMAPResponse;
 
@@ -78,11 +80,14 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -98,8 +103,11 @@ import javax.mail.MessagingException;
 import javax.mail.NoSuchProviderException;
 import javax.mail.Quota;
 import javax.mail.ReadOnlyFolderException;
+import javax.mail.Session;
 import javax.mail.Store;
 import javax.mail.StoreClosedException;
+import javax.mail.event.ConnectionAdapter;
+import javax.mail.event.ConnectionEvent;
 import javax.mail.event.FolderAdapter;
 import javax.mail.event.FolderEvent;
 import javax.mail.event.MessageChangedEvent;
@@ -132,6 +140,10 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
             Helper.getBackgroundExecutor(1, "sync");
     private static final ExecutorService executorNotify =
             Helper.getBackgroundExecutor(1, "notify");
+    private static final ExecutorService executorIdle =
+            Helper.getBackgroundExecutor(0, "idle");
+
+    private static IdleManager idleManager = null;
 
     static final int DEFAULT_BACKOFF_POWER = 3; // 2^3=8 seconds (totally 8+2x20=48 seconds)
 
@@ -170,7 +182,7 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
             "sync_folders",
             "sync_shared_folders",
             "download_headers", "download_eml",
-            "prefer_ip4", "bind_socket", "standalone_vpn", "tcp_keep_alive", "ssl_harden", "ssl_harden_strict", "cert_strict", // force reconnect
+            "prefer_ip4", "bind_socket", "standalone_vpn", "tcp_keep_alive", "idle_manager", "ssl_harden", "ssl_harden_strict", "cert_strict", // force reconnect
             "experiments", "debug", "protocol", // force reconnect
             "auth_plain", "auth_login", "auth_ntlm", "auth_sasl", "auth_apop", // force reconnect
             "keep_alive_poll", "empty_pool", "idle_done", // force reconnect
@@ -1020,6 +1032,8 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
 
         liveAccountNetworkState.postDestroy();
 
+        stopIdleManager();
+
         TTSHelper.shutdown();
 
         try {
@@ -1558,6 +1572,10 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                 boolean subscriptions = prefs.getBoolean("subscriptions", false);
                 boolean keep_alive_poll = prefs.getBoolean("keep_alive_poll", false);
                 boolean empty_pool = prefs.getBoolean("empty_pool", true);
+                boolean use_qresync = prefs.getBoolean("use_qresync", false);
+                boolean bind_socket = prefs.getBoolean("bind_socket", false);
+                boolean idle_manager = (prefs.getBoolean("idle_manager", false) && !bind_socket &&
+                        account.protocol == EntityAccount.TYPE_IMAP);
                 boolean debug = (prefs.getBoolean("debug", false) || BuildConfig.DEBUG);
 
                 final EmailService iservice = new EmailService(
@@ -1565,6 +1583,7 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                 iservice.setPartialFetch(account.partial_fetch);
                 iservice.setRawFetch(account.raw_fetch);
                 iservice.setIgnoreBodyStructureSize(account.ignore_size);
+                iservice.setUseSocketChannels(idle_manager);
                 if (account.protocol != EntityAccount.TYPE_IMAP)
                     iservice.setLeaveOnServer(account.leave_on_server);
 
@@ -1655,6 +1674,7 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                 final long group = Thread.currentThread().getId();
                 final Map<EntityFolder, IMAPFolder> mapFolders = new LinkedHashMap<>();
                 List<Thread> idlers = new ArrayList<>();
+                final Set<Long> watching = Collections.synchronizedSet(new HashSet<>());
                 try {
                     // Initiate connection
                     EntityLog.log(this, EntityLog.Type.Account, account,
@@ -1706,6 +1726,9 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                             iservice.hasCapability("UTF8=ACCEPT") ||
                                     iservice.hasCapability("UTF8=ONLY");
                     final boolean capNotify = iservice.hasCapability("NOTIFY");
+                    // https://datatracker.ietf.org/doc/html/rfc7162#section-3.2
+                    final ResyncData resync =
+                            (use_qresync && iservice.hasCapability("QRESYNC") ? ResyncData.QRESYNC : null);
 
                     String capabilities = TextUtils.join(" ", iservice.getCapabilities());
                     if (capabilities.length() > 500)
@@ -1836,13 +1859,13 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                             try {
                                 if (BuildConfig.DEBUG && "Postausgang".equals(folder.name))
                                     throw new ReadOnlyFolderException(ifolder);
-                                ifolder.open(Folder.READ_WRITE);
+                                ifolder.open(Folder.READ_WRITE, resync);
                                 folder.read_only = ifolder.getUIDNotSticky();
                                 db.folder().setFolderReadOnly(folder.id, folder.read_only);
                             } catch (ReadOnlyFolderException ex) {
                                 Log.w(folder.name + " read only");
                                 try {
-                                    ifolder.open(Folder.READ_ONLY);
+                                    ifolder.open(Folder.READ_ONLY, resync);
                                     folder.read_only = true;
                                     db.folder().setFolderReadOnly(folder.id, folder.read_only);
                                 } catch (Throwable ex1) {
@@ -1930,6 +1953,8 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                                 account.name + "/" + folder.name + " added " + Log.formatThrowable(ex, false));
                                         EntityOperation.sync(ServiceSynchronize.this, folder.id, false);
                                     } finally {
+                                        if (watching.contains(folder.id))
+                                            watchFolder(folder, ifolder);
                                         if (wlMessage.isHeld())
                                             wlMessage.release();
                                         else if (!isOptimizing && !BuildConfig.PLAY_STORE_RELEASE)
@@ -1950,6 +1975,8 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                                 account.name + "/" + folder.name + " removed " + Log.formatThrowable(ex, false));
                                         EntityOperation.sync(ServiceSynchronize.this, folder.id, false);
                                     } finally {
+                                        if (watching.contains(folder.id))
+                                            watchFolder(folder, ifolder);
                                         if (wlMessage.isHeld())
                                             wlMessage.release();
                                         else if (!isOptimizing && !BuildConfig.PLAY_STORE_RELEASE)
@@ -1976,6 +2003,8 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                                 account.name + "/" + folder.name + " changed " + Log.formatThrowable(ex, false));
                                         EntityOperation.sync(ServiceSynchronize.this, folder.id, false);
                                     } finally {
+                                        if (watching.contains(folder.id))
+                                            watchFolder(folder, ifolder);
                                         if (wlMessage.isHeld())
                                             wlMessage.release();
                                         else if (!isOptimizing && !BuildConfig.PLAY_STORE_RELEASE)
@@ -1985,44 +2014,60 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                             });
 
                             // Idle folder
-                            Thread idler = new Thread(new RunnableEx("idle") {
-                                @Override
-                                public void delegate() {
-                                    try {
-                                        Log.i(folder.name + " start idle");
-                                        while (ifolder.isOpen() && state.isRunning() && state.isRecoverable()) {
-                                            Log.i(folder.name + " do idle");
-                                            ifolder.idle(false);
-                                            state.activity();
-                                        }
-                                    } catch (Throwable ex) {
-                                        /*
-                                            javax.mail.FolderClosedException: * BYE Jakarta Mail Exception: java.net.SocketTimeoutException: Read timed out
-                                                at com.sun.mail.imap.IMAPFolder.handleIdle(SourceFile:252)
-                                                at com.sun.mail.imap.IMAPFolder.idle(SourceFile:7)
-                                                at eu.faircode.email.ServiceSynchronize$21.delegate(SourceFile:78)
-                                                at eu.faircode.email.RunnableEx.run(SourceFile:1)
-                                                at java.lang.Thread.run(Thread.java:1012)
-                                            ... javax.mail.StoreClosedException: NOOP INBOX
-                                            javax.mail.StoreClosedException: NOOP INBOX
-                                                at eu.faircode.email.ServiceSynchronize.monitorAccount(SourceFile:151)
-                                                at eu.faircode.email.ServiceSynchronize.access$1200(Unknown Source:0)
-                                                at eu.faircode.email.ServiceSynchronize$4$2.delegate(SourceFile:15)
-                                                at eu.faircode.email.RunnableEx.run(SourceFile:1)
-                                                at java.lang.Thread.run(Thread.java:1012)
-                                         */
-                                        Log.e(folder.name, ex);
+                            if (idle_manager && watchFolder(folder, ifolder)) {
+                                watching.add(folder.id);
+
+                                // The idle manager drops failed folders silently
+                                ifolder.addConnectionListener(new ConnectionAdapter() {
+                                    @Override
+                                    public void closed(ConnectionEvent e) {
+                                        if (!watching.remove(folder.id))
+                                            return;
                                         EntityLog.log(ServiceSynchronize.this, EntityLog.Type.Account, folder,
-                                                account.name + "/" + folder.name + " idle " + Log.formatThrowable(ex, false));
-                                        state.error(new FolderClosedException(ifolder, "IDLE", new Exception(ex)));
-                                    } finally {
-                                        Log.i(folder.name + " end idle");
+                                                account.name + "/" + folder.name + " idle closed");
+                                        state.error(new FolderClosedException(ifolder, "IDLE"));
                                     }
-                                }
-                            }, "idler." + folder.id);
-                            idler.setPriority(THREAD_PRIORITY_BACKGROUND);
-                            idler.start();
-                            idlers.add(idler);
+                                });
+                            } else {
+                                Thread idler = new Thread(new RunnableEx("idle") {
+                                    @Override
+                                    public void delegate() {
+                                        try {
+                                            Log.i(folder.name + " start idle");
+                                            while (ifolder.isOpen() && state.isRunning() && state.isRecoverable()) {
+                                                Log.i(folder.name + " do idle");
+                                                ifolder.idle(false);
+                                                state.activity();
+                                            }
+                                        } catch (Throwable ex) {
+                                            /*
+                                                javax.mail.FolderClosedException: * BYE Jakarta Mail Exception: java.net.SocketTimeoutException: Read timed out
+                                                    at com.sun.mail.imap.IMAPFolder.handleIdle(SourceFile:252)
+                                                    at com.sun.mail.imap.IMAPFolder.idle(SourceFile:7)
+                                                    at eu.faircode.email.ServiceSynchronize$21.delegate(SourceFile:78)
+                                                    at eu.faircode.email.RunnableEx.run(SourceFile:1)
+                                                    at java.lang.Thread.run(Thread.java:1012)
+                                                ... javax.mail.StoreClosedException: NOOP INBOX
+                                                javax.mail.StoreClosedException: NOOP INBOX
+                                                    at eu.faircode.email.ServiceSynchronize.monitorAccount(SourceFile:151)
+                                                    at eu.faircode.email.ServiceSynchronize.access$1200(Unknown Source:0)
+                                                    at eu.faircode.email.ServiceSynchronize$4$2.delegate(SourceFile:15)
+                                                    at eu.faircode.email.RunnableEx.run(SourceFile:1)
+                                                    at java.lang.Thread.run(Thread.java:1012)
+                                             */
+                                            Log.e(folder.name, ex);
+                                            EntityLog.log(ServiceSynchronize.this, EntityLog.Type.Account, folder,
+                                                    account.name + "/" + folder.name + " idle " + Log.formatThrowable(ex, false));
+                                            state.error(new FolderClosedException(ifolder, "IDLE", new Exception(ex)));
+                                        } finally {
+                                            Log.i(folder.name + " end idle");
+                                        }
+                                    }
+                                }, "idler." + folder.id);
+                                idler.setPriority(THREAD_PRIORITY_BACKGROUND);
+                                idler.start();
+                                idlers.add(idler);
+                            }
 
                             EntityOperation.sync(this, folder.id, false, force && !forced);
 
@@ -2242,14 +2287,20 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
 
                                                                 try {
                                                                     try {
-                                                                        ifolder.open(Folder.READ_WRITE);
+                                                                        if (ifolder instanceof IMAPFolder)
+                                                                            ((IMAPFolder) ifolder).open(Folder.READ_WRITE, resync);
+                                                                        else
+                                                                            ifolder.open(Folder.READ_WRITE);
                                                                         if (ifolder instanceof IMAPFolder) {
                                                                             folder.read_only = ((IMAPFolder) ifolder).getUIDNotSticky();
                                                                             db.folder().setFolderReadOnly(folder.id, folder.read_only);
                                                                         }
                                                                     } catch (ReadOnlyFolderException ex) {
                                                                         Log.w(folder.name + " read only");
-                                                                        ifolder.open(Folder.READ_ONLY);
+                                                                        if (ifolder instanceof IMAPFolder)
+                                                                            ((IMAPFolder) ifolder).open(Folder.READ_ONLY, resync);
+                                                                        else
+                                                                            ifolder.open(Folder.READ_ONLY);
                                                                         folder.read_only = true;
                                                                         db.folder().setFolderReadOnly(folder.id, folder.read_only);
                                                                     }
@@ -2299,6 +2350,10 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                                                 dc.stop(state.getForeground(), executor);
                                                             }
 
+                                                            // Commands end IDLE
+                                                            if (!shouldClose && watching.contains(folder.id))
+                                                                watchFolder(folder, (IMAPFolder) ifolder);
+
                                                         } catch (Throwable ex) {
                                                             if (ex instanceof OperationCanceledException ||
                                                                     (ex instanceof IllegalStateException &&
@@ -2410,6 +2465,8 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                                             // Sends folder NOOP
                                             if (!mapFolders.get(folder).isOpen())
                                                 throw new StoreClosedException(iservice.getStore(), "NOOP " + folder.name);
+                                            if (watching.contains(folder.id))
+                                                watchFolder(folder, mapFolders.get(folder));
                                             if (keep_alive_poll)
                                                 EntityOperation.poll(this, folder.id);
                                         } else {
@@ -2622,6 +2679,7 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
                             ((ThreadPoolExecutor) executor).remove(task);
 
                     // Close store
+                    watching.clear();
                     try {
                         db.account().setAccountState(account.id, "closing");
                         for (EntityFolder folder : mapFolders.keySet())
@@ -2903,6 +2961,38 @@ public class ServiceSynchronize extends ServiceBase implements SharedPreferences
         }
     }
 
+    private static boolean watchFolder(EntityFolder folder, IMAPFolder ifolder) {
+        // One selector thread for all idling folders instead of one thread per folder
+        // Watching a folder again restarts IDLE after other commands ended it
+        for (int attempt = 0; attempt < 2; attempt++)
+            try {
+                getIdleManager().watch(ifolder);
+                Log.i(folder.name + " watching");
+                return true;
+            } catch (Throwable ex) {
+                Log.w(folder.name, ex);
+                if (!"IdleManager is not running".equals(ex.getMessage()))
+                    return false;
+                synchronized (ServiceSynchronize.class) {
+                    idleManager = null;
+                }
+            }
+        return false;
+    }
+
+    private static synchronized IdleManager getIdleManager() throws IOException {
+        if (idleManager == null)
+            idleManager = new IdleManager(Session.getInstance(new Properties(), null), executorIdle);
+        return idleManager;
+    }
+
+    private static synchronized void stopIdleManager() {
+        if (idleManager != null) {
+            idleManager.stop();
+            idleManager = null;
+        }
+    }
+
     private final ConnectivityManager.NetworkCallback networkCallback = new ConnectivityManager.NetworkCallback() {
         @Override
         public void onAvailable(@NonNull Network network) {
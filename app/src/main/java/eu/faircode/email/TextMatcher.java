@@ -0,0 +1,364 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    FairEmail is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with FairEmail.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018-2023 by Marcel Bokhorst (M66B)
+*/
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Search query compiled once and matched in a single pass over the text
+// https://en.wikipedia.org/wiki/Aho%E2%80%93Corasick_algorithm
+
+public class TextMatcher {
+    final String query;
+    final boolean partial;
+
+    private final int phrase; // Term index of the phrase or -1
+    private final int terms;
+    private final int[] length;
+    private final boolean[] excluded;
+    private final int included; // Number of terms which need to be found
+
+    // Sparse transition tables: sorted characters and target states per state
+    private char[][] keys = new char[0][];
+    private int[][] targets = new int[0][];
+    private int[] fail = new int[0];
+    private int[][] output = new int[0][];
+    private int states = 0;
+
+    TextMatcher(String query, boolean partial) {
+        this.query = query;
+        this.partial = partial;
+
+        List<String> term = new ArrayList<>();
+        List<Boolean> exclude = new ArrayList<>();
+        List<String> word = new ArrayList<>();
+        for (String w : query.trim().split("\\s+"))
+            if (w.length() > 1 && w.startsWith("+")) {
+                term.add(normalize(w.substring(1)));
+                exclude.add(false);
+            } else if (w.length() > 1 && w.startsWith("-")) {
+                term.add(normalize(w.substring(1)));
+                exclude.add(true);
+            } else if (partial)
+                word.add(normalize(w));
+            else
+                word.addAll(Arrays.asList(tokenize(w).split(" ")));
+
+        // Empty words can result from punctuation only
+        for (int i = word.size() - 1; i >= 0; i--)
+            if (TextUtils.isEmpty(word.get(i)))
+                word.remove(i);
+
+        if (word.size() > 0) {
+            phrase = term.size();
+            term.add(TextUtils.join(" ", word));
+            exclude.add(false);
+        } else
+            phrase = -1;
+
+        int count = 0;
+        this.terms = term.size();
+        this.length = new int[terms];
+        this.excluded = new boolean[terms];
+        for (int i = 0; i < terms; i++) {
+            length[i] = term.get(i).length();
+            excluded[i] = exclude.get(i);
+            if (!excluded[i])
+                count++;
+        }
+        this.included = count;
+
+        build(term);
+    }
+
+    private void build(List<String> term) {
+        addNode();
+        for (int t = 0; t < term.size(); t++) {
+            String s = term.get(t);
+            int state = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                int n = step(state, c);
+                if (n < 0) {
+                    n = addNode();
+                    int k = -Arrays.binarySearch(keys[state], c) - 1;
+                    keys[state] = insert(keys[state], k, c);
+                    targets[state] = insert(targets[state], k, n);
+                }
+                state = n;
+            }
+            output[state] = append(output[state], t);
+        }
+
+        // Breadth first to set the failure links, states are numbered in insertion order
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = 0;
+        while (head < tail) {
+            int state = queue[head++];
+            for (int i = 0; i < keys[state].length; i++) {
+                char c = keys[state][i];
+                int n = targets[state][i];
+                queue[tail++] = n;
+
+                int f = 0;
+                if (state != 0) {
+                    f = fail[state];
+                    while (f != 0 && step(f, c) < 0)
+                        f = fail[f];
+                    f = Math.max(step(f, c), 0);
+                }
+
+                fail[n] = f;
+                for (int t : output[f])
+                    output[n] = append(output[n], t);
+            }
+        }
+    }
+
+    private int step(int state, char c) {
+        char[] k = keys[state];
+        int i = (k.length == 1 ? (k[0] == c ? 0 : -1) : Arrays.binarySearch(k, c));
+        return (i < 0 ? -1 : targets[state][i]);
+    }
+
+    private int addNode() {
+        if (states == fail.length) {
+            int capacity = Math.max(16, states * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            targets = Arrays.copyOf(targets, capacity);
+            fail = Arrays.copyOf(fail, capacity);
+            output = Arrays.copyOf(output, capacity);
+        }
+        keys[states] = new char[0];
+        targets[states] = new int[0];
+        output[states] = new int[0];
+        return states++;
+    }
+
+    private static char[] insert(char[] array, int index, char value) {
+        char[] result = new char[array.length + 1];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = value;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+    private static int[] insert(int[] array, int index, int value) {
+        int[] result = new int[array.length + 1];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = value;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+    private static int[] append(int[] array, int value) {
+        int[] result = Arrays.copyOf(array, array.length + 1);
+        result[array.length] = value;
+        return result;
+    }
+
+    boolean matches(String text) {
+        return matches(text, false);
+    }
+
+    boolean matches(String text, boolean html) {
+        if (TextUtils.isEmpty(text))
+            return false;
+        return new Scanner(html).scan(text);
+    }
+
+    // Streamed equivalent of Fts4DbHelper.preprocessText with collapsed white space
+    static String normalize(String text) {
+        return normalize(text, false);
+    }
+
+    // Like Fts4DbHelper.breakText, but words and punctuation are separated without a BreakIterator
+    static String tokenize(String text) {
+        return normalize(text, true);
+    }
+
+    private static String normalize(String text, boolean words) {
+        StringBuilder sb = new StringBuilder(text.length());
+        CharNormalizer normalizer = new CharNormalizer(words);
+        for (int i = 0; i < text.length(); i++)
+            normalizer.append(sb, text.charAt(i));
+        return sb.toString().trim();
+    }
+
+    private static class CharNormalizer {
+        private final boolean words;
+        private boolean space = true;
+        private char last = ' ';
+        private final Map<Character, String> cache = new HashMap<>();
+
+        CharNormalizer(boolean words) {
+            // Separate words from punctuation and punctuation characters from each other
+            this.words = words;
+        }
+
+        void append(StringBuilder sb, char c) {
+            if (c < 0x80) {
+                if (Character.isWhitespace(c))
+                    space(sb);
+                else
+                    put(sb, Character.toLowerCase(c));
+                return;
+            }
+
+            if (Character.isSurrogate(c)) {
+                put(sb, c);
+                return;
+            }
+
+            String decomposed = cache.get(c);
+            if (decomposed == null) {
+                if (Character.isWhitespace(c) || Character.isSpaceChar(c))
+                    decomposed = " ";
+                else
+                    decomposed = java.text.Normalizer.normalize(
+                                    String.valueOf(Character.toLowerCase(c)), java.text.Normalizer.Form.NFKD)
+                            .replaceAll("[\\p{InCombiningDiacriticalMarks}]", "");
+                cache.put(c, decomposed);
+            }
+
+            if (" ".equals(decomposed))
+                space(sb);
+            else
+                for (int i = 0; i < decomposed.length(); i++)
+                    put(sb, decomposed.charAt(i));
+        }
+
+        private void put(StringBuilder sb, char c) {
+            if (words && !space && !Character.isLowSurrogate(c) && !(isWord(last) && isWord(c)))
+                sb.append(' ');
+            sb.append(c);
+            space = false;
+            last = c;
+        }
+
+        private void space(StringBuilder sb) {
+            if (!space)
+                sb.append(' ');
+            space = true;
+            last = ' ';
+        }
+    }
+
+    private class Scanner {
+        private final boolean html;
+        private final boolean[] found = new boolean[terms];
+        private int count = 0;
+        private boolean rejected = false;
+
+        private int state = 0;
+        private final char[] window; // Ring buffer with the last phrase length + 1 characters
+        private long fed = 0;
+        private boolean pending = false; // Phrase match waiting for the next character
+
+        Scanner(boolean html) {
+            // Excluded words can be part of tags and attributes
+            this.html = html;
+            this.window = (!partial && phrase >= 0 ? new char[length[phrase] + 1] : null);
+        }
+
+        boolean scan(String text) {
+            StringBuilder sb = new StringBuilder();
+            CharNormalizer normalizer = new CharNormalizer(!partial);
+            for (int i = 0; i < text.length() && !done(); i++) {
+                sb.setLength(0);
+                normalizer.append(sb, text.charAt(i));
+                for (int j = 0; j < sb.length(); j++)
+                    feed(sb.charAt(j));
+            }
+            return result();
+        }
+
+        private boolean done() {
+            if (rejected)
+                return true;
+            // Without excluded terms there is nothing left to find
+            return (count == included && (html || included == terms));
+        }
+
+        private boolean result() {
+            if (pending)
+                onPhrase(true);
+            return (!rejected && count == included);
+        }
+
+        private void feed(char c) {
+            if (pending)
+                onPhrase(c == ' ');
+
+            if (window != null)
+                window[(int) (fed++ % window.length)] = c;
+
+            int n;
+            while ((n = step(state, c)) < 0 && state != 0)
+                state = fail[state];
+            state = Math.max(n, 0);
+
+            for (int t : output[state])
+                if (t == phrase && !partial) {
+                    if (!found[t] && !pending && startsAtBoundary(length[t]))
+                        pending = true;
+                } else
+                    onFound(t);
+
+        }
+
+        private boolean startsAtBoundary(int len) {
+            // window contains the match preceded by at most one character
+            // Tokens of the normalized text are separated by a space
+            long start = fed - len;
+            return (start == 0 || window[(int) ((start - 1) % window.length)] == ' ');
+        }
+
+        private void onPhrase(boolean boundary) {
+            pending = false;
+            if (boundary)
+                onFound(phrase);
+        }
+
+        private void onFound(int t) {
+            if (found[t])
+                return;
+            if (excluded[t]) {
+                if (!html)
+                    rejected = true;
+                return;
+            }
+            found[t] = true;
+            count++;
+        }
+    }
+
+    private static boolean isWord(char c) {
+        // Same as \b of java.util.regex
+        return (Character.isLetterOrDigit(c) || c == '_');
+    }
+}
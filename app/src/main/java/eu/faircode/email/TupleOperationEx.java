@@ -94,6 +94,43 @@ public class TupleOperationEx extends EntityOperation {
         return key;
     }
 
+    String getSimilarKey(int protocol) {
+        try {
+            switch (name) {
+                case SEEN:
+                case FLAG:
+                    if (protocol != EntityAccount.TYPE_IMAP)
+                        return null;
+                    return name + ":" + new JSONArray(args).getBoolean(0);
+
+                case MOVE: {
+                    JSONArray jargs = new JSONArray(args);
+                    if (protocol == EntityAccount.TYPE_IMAP)
+                        return name + ":" + jargs.getLong(0) + ":" + jargs.optBoolean(4);
+                    else
+                        return name + ":" + jargs.getLong(0);
+                }
+
+                case DELETE:
+                    return name;
+
+                case FETCH: {
+                    JSONArray jargs = new JSONArray(args);
+                    return name + ":" + jargs.getLong(0) + ":" + jargs.optBoolean(1) + ":" + jargs.optBoolean(2);
+                }
+
+                case DOWNLOAD:
+                    return name + ":" + new JSONArray(args).getLong(0);
+
+                default:
+                    return null;
+            }
+        } catch (Throwable ex) {
+            Log.e(ex);
+            return null;
+        }
+    }
+
     class PartitionKey {
         private long folder;
         private long order;
@@ -119,21 +119,33 @@ public class ViewModelMessages extends ViewModel {
                             .setPageSize(LOCAL_PAGE_SIZE)
                             .setMaxSize(MAX_CACHED_ITEMS)
                             .build();
-                    builder = new LivePagedListBuilder<>(
-                            db.message().pagedUnified(
-                                    args.type,
-                                    args.threading,
-                                    args.group_category,
-                                    args.sort, args.ascending,
-                                    args.filter_seen,
-                                    args.filter_unflagged,
-                                    args.filter_unknown,
-                                    args.filter_snoozed,
-                                    args.filter_deleted,
-                                    args.filter_language,
-                                    false,
-                                    args.debug),
-                            configUnified);
+                    if (useThreads(args))
+                        builder = new LivePagedListBuilder<>(
+                                db.message().pagedUnifiedThreads(
+                                        args.type,
+                                        args.group_category,
+                                        args.sort, args.ascending,
+                                        args.filter_seen,
+                                        args.filter_unflagged,
+                                        args.filter_snoozed,
+                                        args.filter_deleted),
+                                configUnified);
+                    else
+                        builder = new LivePagedListBuilder<>(
+                                db.message().pagedUnified(
+                                        args.type,
+                                        args.threading,
+                                        args.group_category,
+                                        args.sort, args.ascending,
+                                        args.filter_seen,
+                                        args.filter_unflagged,
+                                        args.filter_unknown,
+                                        args.filter_snoozed,
+                                        args.filter_deleted,
+                                        args.filter_language,
+                                        false,
+                                        args.debug),
+                                configUnified);
                     break;
 
                 case FOLDER:
@@ -143,19 +155,30 @@ public class ViewModelMessages extends ViewModel {
                             .setPrefetchDistance(REMOTE_PAGE_SIZE)
                             .setMaxSize(MAX_CACHED_ITEMS)
                             .build();
-                    builder = new LivePagedListBuilder<>(
-                            db.message().pagedFolder(
-                                    args.folder, args.threading,
-                                    args.sort, args.ascending,
-                                    args.filter_seen,
-                                    args.filter_unflagged,
-                                    args.filter_unknown,
-                                    args.filter_snoozed,
-                                    args.filter_deleted,
-                                    args.filter_language,
-                                    false,
-                                    args.debug),
-                            configFolder);
+                    if (useThreads(args))
+                        builder = new LivePagedListBuilder<>(
+                                db.message().pagedFolderThreads(
+                                        args.folder,
+                                        args.sort, args.ascending,
+                                        args.filter_seen,
+                                        args.filter_unflagged,
+                                        args.filter_snoozed,
+                                        args.filter_deleted),
+                                configFolder);
+                    else
+                        builder = new LivePagedListBuilder<>(
+                                db.message().pagedFolder(
+                                        args.folder, args.threading,
+                                        args.sort, args.ascending,
+                                        args.filter_seen,
+                                        args.filter_unflagged,
+                                        args.filter_unknown,
+                                        args.filter_snoozed,
+                                        args.filter_deleted,
+                                        args.filter_language,
+                                        false,
+                                        args.debug),
+                                configFolder);
                     builder.setBoundaryCallback(boundary);
                     break;
 
@@ -602,6 +625,11 @@ public class ViewModelMessages extends ViewModel {
         }
     }
 
+    private static boolean useThreads(Args args) {
+        // The thread table has no aggregates of hidden messages, known senders and languages
+        return (args.threading && !args.debug && !args.filter_unknown && args.filter_language == null);
+    }
+
     private void dump() {
         Log.i("Current models=" + TextUtils.join(", ", models.keySet()));
     }
@@ -117,6 +117,7 @@ public class WorkerCleanup extends Worker {
                         if (!file.exists()) {
                             Log.w("Message file missing id=" + mid);
                             db.message().resetMessageContent(mid);
+                            EntityMessage.getTextFile(context, mid).delete();
                         }
                     }
                 }
@@ -164,6 +165,7 @@ public class WorkerCleanup extends Worker {
                 ServiceSynchronize.reschedule(context);
 
                 DnsBlockList.clearCache();
+                DnsHelper.clearCache();
                 MessageClassifier.cleanup(context);
                 ContactInfo.clearCache(context);
 
@@ -315,6 +317,12 @@ public class WorkerCleanup extends Worker {
                             file.delete();
                         }
 
+            Log.i("Cleanup image cache");
+            ImageCache.cleanup(context, manual);
+
+            Log.i("Cleanup rendered messages");
+            BodyCache.cleanup(context, manual);
+
             // Cleanup shared files
             File[] shared = new File(context.getFilesDir(), "shared").listFiles();
             if (shared != null)
@@ -334,21 +342,31 @@ public class WorkerCleanup extends Worker {
             Log.i("Cleanup FTS=" + fts);
             if (fts) {
                 int deleted = 0;
-                SQLiteDatabase sdb = Fts4DbHelper.getInstance(context);
-                try (Cursor cursor = Fts4DbHelper.getIds(sdb)) {
+                boolean fts5 = Fts5DbHelper.isEnabled(context);
+                SQLiteDatabase sdb = (fts5
+                        ? Fts5DbHelper.getInstance(context)
+                        : Fts4DbHelper.getInstance(context));
+                try (Cursor cursor = (fts5 ? Fts5DbHelper.getIds(sdb) : Fts4DbHelper.getIds(sdb))) {
                     while (cursor.moveToNext()) {
                         long rowid = cursor.getLong(0);
                         EntityMessage message = db.message().getMessage(rowid);
                         if (message == null || !message.fts) {
                             Log.i("Deleting FTS rowid=" + rowid);
-                            Fts4DbHelper.delete(sdb, rowid);
+                            if (fts5)
+                                Fts5DbHelper.delete(sdb, rowid);
+                            else
+                                Fts4DbHelper.delete(sdb, rowid);
                             deleted++;
                         }
                     }
                 }
                 Log.i("Cleanup FTS=" + deleted);
-                if (manual)
-                    Fts4DbHelper.optimize(sdb);
+                if (manual) {
+                    if (fts5)
+                        Fts5DbHelper.optimize(sdb);
+                    else
+                        Fts4DbHelper.optimize(sdb);
+                }
             }
 
             Log.i("Cleanup contacts");
@@ -35,14 +35,21 @@ import androidx.work.WorkManager;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
-import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 public class WorkerFts extends Worker {
     private static final int INDEX_DELAY = 30; // seconds
     private static final int INDEX_BATCH_SIZE = 100;
+    private static final int INDEX_THREADS = 4;
+
+    private static final ExecutorService executor = Helper.getBackgroundExecutor(
+            Math.max(1, Math.min(INDEX_THREADS, Runtime.getRuntime().availableProcessors() - 1)), "fts");
 
     public WorkerFts(@NonNull Context context, @NonNull WorkerParameters workerParams) {
         super(context, workerParams);
@@ -65,54 +72,58 @@ public class WorkerFts extends Worker {
             List<Long> ids = new ArrayList<>(INDEX_BATCH_SIZE);
             DB db = DB.getInstance(context);
 
-            SQLiteDatabase sdb = Fts4DbHelper.getInstance(context);
+            boolean fts5 = Fts5DbHelper.isEnabled(context);
+            SQLiteDatabase sdb = (fts5
+                    ? Fts5DbHelper.getInstance(context)
+                    : Fts4DbHelper.getInstance(context));
 
             try (Cursor cursor = db.message().getMessageFts()) {
-                while (cursor != null && cursor.moveToNext())
-                    try {
-                        long id = cursor.getLong(0);
-                        Log.i("FTS index=" + id);
-
-                        ids.add(id);
-
-                        EntityMessage message = db.message().getMessage(id);
-                        if (message == null) {
-                            Log.i("FTS gone");
-                            continue;
-                        }
+                while (cursor != null && cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    Log.i("FTS index=" + id);
 
-                        String text = null;
-                        if (message.content) {
-                            File file = message.getFile(context);
-                            text = HtmlHelper.getFullText(file);
-                        }
+                    ids.add(id);
 
+                    if (ids.size() >= INDEX_BATCH_SIZE || cursor.isLast())
                         try {
-                            sdb.beginTransaction();
-                            Fts4DbHelper.insert(sdb, message, text);
-                            sdb.setTransactionSuccessful();
-                        } catch (SQLiteException ex) {
-                            Log.w(ex);
-                            break;
-                        } finally {
-                            sdb.endTransaction();
-                        }
-
-                        indexed++;
-
-                        if (ids.size() >= INDEX_BATCH_SIZE)
+                            int count;
+                            try {
+                                count = indexBatch(context, sdb, fts5, ids);
+                            } catch (Throwable ex) {
+                                Log.e(ex);
+                                count = -1;
+                            }
+
+                            if (count < 0) {
+                                // Index the messages of the failed batch one by one
+                                count = 0;
+                                for (Long mid : ids)
+                                    try {
+                                        int c = indexBatch(context, sdb, fts5, Collections.singletonList(mid));
+                                        if (c < 0)
+                                            Log.w("FTS skip id=" + mid);
+                                        else
+                                            count += c;
+                                    } catch (Throwable ex) {
+                                        Log.e(ex);
+                                    }
+                            }
+                            indexed += count;
+
+                            // Failed messages are marked too, else they would be selected again on every run
                             markIndexed(db, ids);
 
-                        boolean fts = prefs.getBoolean("fts", false);
-                        if (!fts)
-                            break;
-                    } catch (Throwable ex) {
-                        Log.e(ex);
-                    }
+                            boolean fts = prefs.getBoolean("fts", false);
+                            if (!fts)
+                                break;
+                        } catch (Throwable ex) {
+                            Log.e(ex);
+                        } finally {
+                            ids.clear();
+                        }
+                }
             }
 
-            markIndexed(db, ids);
-
             if (checkpoints) {
                 DB.checkpoint(context);
                 Helper.sync();
@@ -126,6 +137,54 @@ public class WorkerFts extends Worker {
         }
     }
 
+    private static int indexBatch(Context context, SQLiteDatabase sdb, boolean fts5, List<Long> ids) {
+        DB db = DB.getInstance(context);
+
+        List<EntityMessage> messages = db.message().getMessages(ids);
+        Log.i("FTS batch=" + ids.size() + " messages=" + messages.size());
+
+        // Extract text in parallel, the batch size bounds the memory usage
+        List<Future<String>> futures = new ArrayList<>(messages.size());
+        for (EntityMessage message : messages)
+            futures.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    if (!message.content)
+                        return null;
+                    String text = HtmlHelper.getFullText(context, message.id);
+                    // FTS5 uses the unicode61 tokenizer
+                    return (fts5 ? text : Fts4DbHelper.breakText(text));
+                }
+            }));
+
+        List<String> texts = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++)
+            try {
+                texts.add(futures.get(i).get());
+            } catch (Throwable ex) {
+                Log.e(ex);
+                texts.add(null);
+            }
+
+        // Single transaction per batch
+        try {
+            sdb.beginTransaction();
+            for (int i = 0; i < messages.size(); i++)
+                if (fts5)
+                    Fts5DbHelper.insert(sdb, messages.get(i), texts.get(i));
+                else
+                    Fts4DbHelper.insert(sdb, messages.get(i), texts.get(i));
+            sdb.setTransactionSuccessful();
+        } catch (SQLiteException ex) {
+            Log.w(ex);
+            return -1;
+        } finally {
+            sdb.endTransaction();
+        }
+
+        return messages.size();
+    }
+
     private void markIndexed(DB db, List<Long> ids) {
         try {
             db.beginTransaction();